@@ -0,0 +1,149 @@
+package org.pealfactory.strike.bench;
+
+import org.pealfactory.strike.errorcorrection.*;
+import org.pealfactory.strike.input.*;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * Checks that the error correction chain allocates nothing per strike once it is running. Each data set's
+ * strikes, as delivered by its inputter, are fed through a fresh chain of its ErrorCorrecters into a counting
+ * sink. The first half of the touch lets the correcters grow their buffers; the bytes allocated by the
+ * thread whilst the second half is fed through are then counted by the JVM. This is repeated with a fresh
+ * chain several times, since the JVM itself occasionally allocates a few bytes on the thread, for example as
+ * code is first resolved or recompiled. At least one of the later runs must allocate nothing at all, which
+ * can't happen if anything is allocated per strike. The RowAccumulator is left out, since it keeps every row
+ * it is given.
+ * <p>
+ * Build with mvn package, then run from the project root:
+ * </p>
+ * <pre>
+ * java -cp bench/target/benchmarks.jar org.pealfactory.strike.bench.AllocationCheck [-rows 5040]
+ * </pre>
+ * <p>
+ * The JMH benchmarks report the bytes allocated per operation too, when run with -prof gc.
+ * </p>
+ * <p>
+ * Exits with status 1 if any chain allocates, or 2 if the JVM can't count allocations.
+ * </p>
+ * <p>
+ * CAS Copyright 2003-2012 Mark B Davies
+ * </p>
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * </p>
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * </p>
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * </p>
+ *
+ * @author MBD
+ */
+public class AllocationCheck
+{
+	/** Each chain is run this many times; the first is only a warmup */
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args)
+	{
+		int syntheticRows = SyntheticPeal.DEFAULT_ROWS;
+		if (args.length==2 && args[0].equals("-rows"))
+			syntheticRows = Integer.parseInt(args[1]);
+		else if (args.length>0)
+		{
+			System.out.println("Usage: AllocationCheck [-rows n]");
+			System.exit(1);
+		}
+		if (getAllocatedBytes()<0)
+		{
+			System.out.println("This JVM can't count allocated bytes");
+			System.exit(2);
+		}
+		try
+		{
+			List<DataSets.DataSet> dataSets = new ArrayList<DataSets.DataSet>();
+			for (String name: DataSets.FULL_ANALYSIS)
+				dataSets.add(DataSets.create(name, syntheticRows));
+			int nFailed = 0;
+			for (DataSets.DataSet ds: dataSets)
+			{
+				if (!check(ds))
+					nFailed++;
+			}
+			if (nFailed>0)
+			{
+				System.out.println(nFailed+" of "+dataSets.size()+" correction chains allocated per strike");
+				System.exit(1);
+			}
+			System.out.println("No allocation per strike in "+dataSets.size()+" correction chains");
+		}
+		catch (Exception e)
+		{
+			System.out.println("Allocation check failed: "+e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * @param ds
+	 * @return true if the data set's correction chain allocated nothing in the second half of some round after the first
+	 */
+	private static boolean check(DataSets.DataSet ds) throws IOException
+	{
+		DataSets.BongRecorder strikes = new DataSets.BongRecorder(null);
+		ds.createInputter().startLoad(strikes);
+		int half = strikes.fNBongs/2;
+		long first = 0;
+		long least = Long.MAX_VALUE;
+		for (int round=0; round<ROUNDS; round++)
+		{
+			DataSets.CountingSink sink = new DataSets.CountingSink();
+			StrikeListener chain = createChain(ds, sink);
+			for (int i=0; i<half; i++)
+				chain.receiveStrike(strikes.fBell[i], strikes.fTime[i], strikes.fStroke[i]);
+			// Allow for anything the counter itself allocates.
+			long start = getAllocatedBytes();
+			long overhead = getAllocatedBytes()-start;
+			start = getAllocatedBytes();
+			for (int i=half; i<strikes.fNBongs; i++)
+				chain.receiveStrike(strikes.fBell[i], strikes.fTime[i], strikes.fStroke[i]);
+			long allocated = getAllocatedBytes()-start-overhead;
+			chain.notifyInputComplete();
+			if (round==0)
+				first = allocated;
+			else
+				least = Math.min(least, allocated);
+		}
+		System.out.println(ds.fName+": "+(strikes.fNBongs-half)+" strikes, "+least+" bytes allocated ("+first+" on the first run)");
+		return least<=0;
+	}
+
+	private static StrikeListener createChain(DataSets.DataSet ds, StrikeListener sink) throws IOException
+	{
+		StrikingDataInput inputter = ds.createInputter();
+		return DataSets.createChain(inputter, inputter.getErrorCorrecters().size(), sink);
+	}
+
+	/**
+	 * @return bytes allocated so far by the current thread, or -1 if not supported
+	 */
+	static long getAllocatedBytes()
+	{
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+}
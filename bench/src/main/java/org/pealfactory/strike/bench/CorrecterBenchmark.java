@@ -0,0 +1,141 @@
+package org.pealfactory.strike.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.pealfactory.strike.errorcorrection.*;
+import org.pealfactory.strike.input.*;
+import org.pealfactory.strike.pipeline.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs one stage of error correction in isolation, fed the exact strikes it would receive from the earlier
+ * stages when the file is loaded. The stage is named by its class; RowAccumulator is the stage after the
+ * last ErrorCorrecter. The synthetic CAS file goes through every stage, so is the default; other data sets
+ * can be chosen with -p dataSet, but only for the stages in their own chains.
+ * <p>
+ * CAS Copyright 2003-2012 Mark B Davies
+ * </p>
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * </p>
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * </p>
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * </p>
+ *
+ * @author MBD
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CorrecterBenchmark
+{
+	public static final String ROW_ACCUMULATOR = "RowAccumulator";
+
+	@Param({DataSets.SYNTHETIC_CAS})
+	public String dataSet;
+
+	@Param({"5040"})
+	public int rows;
+
+	@Param({"TimeOrderCorrecter", "SensorEchoCorrecter", "ExtraneousStrikeCorrector", "RowOverlapCorrector",
+			"StrokeCorrecter", "LeadLieCorrector", ROW_ACCUMULATOR})
+	public String stage;
+
+	private StrikingDataInput fInputter;
+	private int fStage;
+	private DataSets.BongRecorder fStageInput;
+
+	@Setup
+	public void setUp() throws Exception
+	{
+		DataSets.DataSet ds = DataSets.create(dataSet, rows);
+		fInputter = ds.createInputter();
+		List<ErrorCorrecter> correcters = fInputter.getErrorCorrecters();
+		fStage = -1;
+		if (stage.equals(ROW_ACCUMULATOR))
+			fStage = correcters.size();
+		for (int i=0; i<correcters.size(); i++)
+		{
+			if (correcters.get(i).getClass().getSimpleName().equals(stage))
+				fStage = i;
+		}
+		if (fStage<0)
+			throw new IllegalArgumentException(stage+" is not in the error correction chain of "+dataSet);
+		// Record what reaches the stage, by loading the file through the stages before it.
+		fStageInput = new DataSets.BongRecorder(null);
+		ds.createInputter().startLoad(new DataSets.BongRecorder(DataSets.createChain(fInputter, fStage, fStageInput)));
+	}
+
+	@Benchmark
+	public int correct() throws Exception
+	{
+		List<ErrorCorrecter> correcters = fInputter.getErrorCorrecters();
+		if (fStage<correcters.size())
+		{
+			ErrorCorrecter correcter = correcters.get(fStage);
+			DataSets.CountingSink sink = new DataSets.CountingSink();
+			correcter.setNextStage(sink);
+			fStageInput.replay(correcter);
+			return sink.fNBongs;
+		}
+		// The RowAccumulator belongs to its pipeline, so load a headless one with no error correction.
+		Pipeline pipeline = new Pipeline(new RecordedInput());
+		pipeline.load();
+		return pipeline.getRawTouchData().getNRows();
+	}
+
+	/**
+	 * Delivers the recorded strikes, with no error correction stages of its own.
+	 */
+	private class RecordedInput implements StrikingDataInput
+	{
+		public String getInputFormat()
+		{
+			return fInputter.getInputFormat();
+		}
+
+		public String getInputSource()
+		{
+			return fInputter.getInputSource();
+		}
+
+		public String getInputName()
+		{
+			return fInputter.getInputName();
+		}
+
+		public List<ErrorCorrecter> getErrorCorrecters()
+		{
+			return new ArrayList<ErrorCorrecter>();
+		}
+
+		public void startLoad(InputStageListener pipeline)
+		{
+			fStageInput.replay(pipeline);
+		}
+
+		public boolean isOpen()
+		{
+			return false;
+		}
+
+		public boolean isClosed()
+		{
+			return true;
+		}
+	}
+}
@@ -0,0 +1,293 @@
+package org.pealfactory.strike.bench;
+
+import org.pealfactory.strike.*;
+import org.pealfactory.strike.analyser.*;
+import org.pealfactory.strike.data.*;
+import org.pealfactory.strike.errorcorrection.*;
+import org.pealfactory.strike.input.*;
+import org.pealfactory.strike.pipeline.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The striking data used by the benchmarks: the bundled Bagley peal and one Lowndes file from StrikingData,
+ * plus a synthetic 16-bell peal of configurable length, written out as CAS text, Lowndes and CAS binary files.
+ * The CAS text form of the synthetic peal goes through every error correction stage, so it is the one to use
+ * when benchmarking each correcter in isolation.
+ * <p>
+ * StrikingData is looked for in the working directory, unless the system property cas.data names another
+ * directory.
+ * <p>
+ * CAS Copyright 2003-2012 Mark B Davies
+ * </p>
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * </p>
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * </p>
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * </p>
+ *
+ * @author MBD
+ */
+public class DataSets
+{
+	public static final String BAGLEY = "bagley.peal";
+	public static final String LOWNDES = "lowndes.050607_1";
+	public static final String SYNTHETIC_CAS = "cas.synthetic16";
+	public static final String SYNTHETIC_LOWNDES = "lowndes.synthetic16";
+	public static final String SYNTHETIC_BINARY = "casbinary.synthetic16";
+
+	/** The data sets which can be loaded and analysed; the other two are only parsed */
+	public static final String[] FULL_ANALYSIS = {BAGLEY, LOWNDES, SYNTHETIC_CAS};
+
+	private static final String SYNTHETIC = "synthetic16";
+	private static final int SYNTHETIC_BELLS = 16;
+	private static final long SYNTHETIC_SEED = 16L;
+
+	/**
+	 * @param name one of the data set names above
+	 * @param syntheticRows length of the synthetic peal; ignored for the StrikingData files
+	 */
+	static DataSet create(String name, int syntheticRows) throws IOException
+	{
+		File dataDirectory = new File(System.getProperty("cas.data", "StrikingData"));
+		if (name.equals(BAGLEY))
+			return new DataSet(name, existingFile(dataDirectory, "peal.txt"));
+		if (name.equals(LOWNDES))
+			return new DataSet(name, existingFile(dataDirectory, "050607_1.txt"));
+
+		File tempDirectory = createTempDirectory();
+		SyntheticPeal peal = new SyntheticPeal(SYNTHETIC_BELLS, syntheticRows, SYNTHETIC_SEED);
+		File casFile = new File(tempDirectory, SYNTHETIC+".txt");
+		peal.writeCasFile(casFile);
+		casFile.deleteOnExit();
+		DataSet synthetic = new DataSet(SYNTHETIC_CAS, casFile);
+		if (name.equals(SYNTHETIC_CAS))
+			return synthetic;
+		if (name.equals(SYNTHETIC_LOWNDES))
+		{
+			File lowndesFile = new File(tempDirectory, SYNTHETIC+"_lowndes.txt");
+			peal.writeLowndesFile(lowndesFile);
+			lowndesFile.deleteOnExit();
+			return new DataSet(name, lowndesFile);
+		}
+		if (name.equals(SYNTHETIC_BINARY))
+		{
+			File binaryFile = new File(tempDirectory, SYNTHETIC+CasBinaryBongInput.EXT_CAS_BINARY);
+			writeBinaryFile(synthetic, binaryFile);
+			return new DataSet(name, binaryFile);
+		}
+		throw new IllegalArgumentException("Unknown data set "+name);
+	}
+
+	private static File existingFile(File dir, String name) throws FileNotFoundException
+	{
+		File f = new File(dir, name);
+		if (!f.exists())
+			throw new FileNotFoundException(f.getAbsolutePath()+" not found - run from the project root, or set -Dcas.data");
+		return f;
+	}
+
+	private static File createTempDirectory() throws IOException
+	{
+		File dir = File.createTempFile("casbench", "");
+		if (!dir.delete() || !dir.mkdir())
+			throw new IOException("Can't create temporary directory "+dir);
+		dir.deleteOnExit();
+		return dir;
+	}
+
+	private static void writeBinaryFile(DataSet ds, File file) throws IOException
+	{
+		Visualiser visualiser = analyse(ds.loadTouch(), new LastBellPerfectVisualiser(1.0));
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		try
+		{
+			CasBinaryBongInput.outputRowData(visualiser.getAveragedTouchData(), ds.createInputter().getInputFormat(), out);
+		}
+		finally
+		{
+			out.close();
+		}
+		file.deleteOnExit();
+	}
+
+	/**
+	 * Links up the first n error correction stages of the inputter, ending in the given stage.
+	 * @return the first stage of the chain
+	 */
+	static StrikeListener createChain(StrikingDataInput inputter, int n, StrikeListener lastStage)
+	{
+		List<ErrorCorrecter> correcters = inputter.getErrorCorrecters();
+		StrikeListener first = lastStage;
+		for (int i=n-1; i>=0; i--)
+		{
+			correcters.get(i).setNextStage(first);
+			first = correcters.get(i);
+		}
+		return first;
+	}
+
+	static Visualiser analyse(RowSource touch, Visualiser visualiser)
+	{
+		visualiser.setAnalysisListener(new AnalysisStageListener(){
+			public void analysisComplete()
+			{
+			}
+
+			public void newAveragedRowAvailable()
+			{
+			}
+		});
+		visualiser.newRowsAvailable(touch);
+		visualiser.notifyLastRowRung();
+		return visualiser;
+	}
+
+	/**
+	 * A striking file, with relative names (e.g. the oddstruck file) resolved against its directory.
+	 */
+	static class DataSet implements FileInputSource
+	{
+		String fName;
+		File fFile;
+
+		DataSet(String name, File file)
+		{
+			fName = name;
+			fFile = file;
+		}
+
+		public Reader getReader(String name) throws FileNotFoundException
+		{
+			return new BufferedReader(new FileReader(getFile(name)));
+		}
+
+		public File getFile(String name)
+		{
+			File f = new File(name);
+			if (!f.isAbsolute() && !f.exists())
+				f = new File(fFile.getAbsoluteFile().getParentFile(), name);
+			return f;
+		}
+
+		StrikingDataInput createInputter() throws IOException
+		{
+			return new InputFactory().createInputter(fFile.getPath(), this);
+		}
+
+		RowSource loadTouch() throws IOException
+		{
+			Pipeline pipeline = new Pipeline(createInputter());
+			pipeline.load();
+			RowSource touch = pipeline.getRawTouchData();
+			if (touch==null)
+				throw new IOException("Failed to load "+fFile);
+			return touch;
+		}
+	}
+
+	/**
+	 * Final stage which just counts what it is sent.
+	 */
+	static class CountingSink implements InputStageListener
+	{
+		int fNBongs;
+
+		public void receiveBong(Bong bong)
+		{
+			fNBongs++;
+		}
+
+		public void receiveStrike(int bell, int time, int stroke)
+		{
+			fNBongs++;
+		}
+
+		public void receiveStrikes(int[] bells, int[] times, int[] strokes, int count)
+		{
+			fNBongs+= count;
+		}
+
+		public void notifyInputComplete()
+		{
+		}
+
+		public void notifyInputError(String msg)
+		{
+		}
+	}
+
+	/**
+	 * Records the bell, time and stroke of every strike it receives, then passes them on.
+	 */
+	static class BongRecorder implements InputStageListener
+	{
+		StrikeListener fNextStage;
+		int[] fBell = new int[1024];
+		int[] fTime = new int[1024];
+		int[] fStroke = new int[1024];
+		int fNBongs;
+
+		BongRecorder(StrikeListener nextStage)
+		{
+			fNextStage = nextStage;
+		}
+
+		public void receiveBong(Bong bong)
+		{
+			receiveStrike(bong.bell, bong.time, bong.stroke);
+		}
+
+		public void receiveStrike(int bell, int time, int stroke)
+		{
+			if (fNBongs==fBell.length)
+			{
+				fBell = Arrays.copyOf(fBell, fNBongs*2);
+				fTime = Arrays.copyOf(fTime, fNBongs*2);
+				fStroke = Arrays.copyOf(fStroke, fNBongs*2);
+			}
+			fBell[fNBongs] = bell;
+			fTime[fNBongs] = time;
+			fStroke[fNBongs] = stroke;
+			fNBongs++;
+			if (fNextStage!=null)
+				fNextStage.receiveStrike(bell, time, stroke);
+		}
+
+		public void receiveStrikes(int[] bells, int[] times, int[] strokes, int count)
+		{
+			for (int i=0; i<count; i++)
+				receiveStrike(bells[i], times[i], strokes[i]);
+		}
+
+		public void notifyInputComplete()
+		{
+			if (fNextStage!=null)
+				fNextStage.notifyInputComplete();
+		}
+
+		public void notifyInputError(String msg)
+		{
+			System.out.println("Input error: "+msg);
+		}
+
+		void replay(StrikeListener stage)
+		{
+			for (int i=0; i<fNBongs; i++)
+				stage.receiveStrike(fBell[i], fTime[i], fStroke[i]);
+			stage.notifyInputComplete();
+		}
+	}
+}
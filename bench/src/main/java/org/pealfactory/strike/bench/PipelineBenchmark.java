@@ -0,0 +1,66 @@
+package org.pealfactory.strike.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.pealfactory.strike.analyser.*;
+import org.pealfactory.strike.pipeline.*;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end: loads a file through the Pipeline, analyses it with the default visualiser and writes the stats.
+ * <p>
+ * CAS Copyright 2003-2012 Mark B Davies
+ * </p>
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * </p>
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * </p>
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * </p>
+ *
+ * @author MBD
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PipelineBenchmark
+{
+	@Param({DataSets.BAGLEY, DataSets.LOWNDES, DataSets.SYNTHETIC_CAS})
+	public String dataSet;
+
+	@Param({"5040"})
+	public int rows;
+
+	private DataSets.DataSet fDataSet;
+
+	@Setup
+	public void setUp() throws Exception
+	{
+		fDataSet = DataSets.create(dataSet, rows);
+	}
+
+	@Benchmark
+	public String pipeline() throws Exception
+	{
+		Visualiser visualiser = DataSets.analyse(fDataSet.loadTouch(), new LastBellPerfectVisualiser(1.0));
+		StringWriter s = new StringWriter();
+		PrintWriter out = new PrintWriter(s);
+		visualiser.getAveragedTouchData().outputStats(out, true);
+		out.flush();
+		return s.toString();
+	}
+}
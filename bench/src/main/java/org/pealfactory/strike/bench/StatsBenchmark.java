@@ -0,0 +1,68 @@
+package org.pealfactory.strike.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.pealfactory.strike.analyser.*;
+import org.pealfactory.strike.data.*;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calculates every stat afresh from the averaged rows of a touch, and writes them out with
+ * TouchStats.outputStats(), both for the changes only and for the whole touch.
+ * <p>
+ * CAS Copyright 2003-2012 Mark B Davies
+ * </p>
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * </p>
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * </p>
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * </p>
+ *
+ * @author MBD
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StatsBenchmark
+{
+	@Param({DataSets.BAGLEY, DataSets.LOWNDES, DataSets.SYNTHETIC_CAS})
+	public String dataSet;
+
+	@Param({"5040"})
+	public int rows;
+
+	private TouchStats fAveragedTouch;
+
+	@Setup
+	public void setUp() throws Exception
+	{
+		fAveragedTouch = DataSets.analyse(DataSets.create(dataSet, rows).loadTouch(), new LastBellPerfectVisualiser(1.0)).getAveragedTouchData();
+	}
+
+	@Benchmark
+	public String outputStats()
+	{
+		TouchStats stats = new TouchStats(fAveragedTouch, fAveragedTouch.getNBells());
+		StringWriter s = new StringWriter();
+		PrintWriter out = new PrintWriter(s);
+		stats.outputStats(out, true);
+		stats.outputStats(out, false);
+		out.flush();
+		return s.toString();
+	}
+}
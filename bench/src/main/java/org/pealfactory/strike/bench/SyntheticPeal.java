@@ -0,0 +1,175 @@
+package org.pealfactory.strike.bench;
+
+import org.pealfactory.strike.Constants;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Generates a synthetic touch of Plain Bob on any even number of bells, with a few rows of rounds at either
+ * end, and writes it out in the CAS and Lowndes text formats. Strike times follow a steady rhythm with an open
+ * handstroke lead, plus random striking errors from a fixed seed so runs are repeatable.
+ * <p>
+ * CAS Copyright 2003-2012 Mark B Davies
+ * </p>
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * </p>
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * </p>
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * </p>
+ *
+ * @author MBD
+ */
+public class SyntheticPeal implements Constants
+{
+	public static final int DEFAULT_ROWS = 5040;
+
+	private static final int INTERBELL_GAP = 200;
+	private static final double ERROR_SD = 10.0;
+	private static final int ROUNDS_ROWS = 4;
+
+	private int fNBells;
+	/** Bell in each place, for each row */
+	private int[][] fRows;
+	/** Strike time of each place, for each row */
+	private int[][] fTimes;
+
+	/**
+	 * @param nbells even number of bells, up to MAXNBELLS
+	 * @param nrows rows of changes, not counting the rounds at either end
+	 * @param seed
+	 */
+	public SyntheticPeal(int nbells, int nrows, long seed)
+	{
+		fNBells = nbells;
+		int total = nrows+2*ROUNDS_ROWS;
+		fRows = new int[total][];
+		fTimes = new int[total][];
+		int[] row = new int[nbells];
+		for (int place=0; place<nbells; place++)
+			row[place] = place+1;
+		Random random = new Random(seed);
+		int time = 1000;
+		for (int r=0; r<total; r++)
+		{
+			if (r>ROUNDS_ROWS && r<=ROUNDS_ROWS+nrows)
+				plainBobChange(row, r-ROUNDS_ROWS-1);
+			else if (r>ROUNDS_ROWS)
+				rounds(row);
+			// Handstroke lead
+			if (r%2==0)
+				time+= INTERBELL_GAP;
+			fRows[r] = row.clone();
+			fTimes[r] = new int[nbells];
+			for (int place=0; place<nbells; place++)
+			{
+				time+= INTERBELL_GAP;
+				// Keep errors well inside half an interval, so strikes stay in time order.
+				double error = Math.max(-3.0, Math.min(3.0, random.nextGaussian()))*ERROR_SD;
+				fTimes[r][place] = time+(int)error;
+			}
+		}
+	}
+
+	/**
+	 * Applies change number i of a plain course of Plain Bob: x.1n repeated, with 12 at the lead end.
+	 */
+	private void plainBobChange(int[] row, int i)
+	{
+		int leadLength = 2*fNBells;
+		int change = i%leadLength;
+		if (change%2==0)
+			swapPairs(row, 0);
+		else if (change==leadLength-1)
+			swapPairs(row, 2);
+		else
+			swapPairs(row, 1);
+	}
+
+	private void swapPairs(int[] row, int first)
+	{
+		int last = first==1? fNBells-1: fNBells;
+		for (int place=first; place+1<last; place+= 2)
+		{
+			int b = row[place];
+			row[place] = row[place+1];
+			row[place+1] = b;
+		}
+	}
+
+	private void rounds(int[] row)
+	{
+		for (int place=0; place<fNBells; place++)
+			row[place] = place+1;
+	}
+
+	public int getNBells()
+	{
+		return fNBells;
+	}
+
+	public int getNRows()
+	{
+		return fRows.length;
+	}
+
+	public void writeCasFile(File file) throws IOException
+	{
+		PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+		try
+		{
+			out.println("CAS synthetic "+fNBells+"-bell touch");
+			int timestamp = fTimes[0][0];
+			for (int r=0; r<fRows.length; r++)
+			{
+				StringBuilder buf = new StringBuilder();
+				buf.append(r%2==0? "H ": "B ");
+				for (int place=0; place<fNBells; place++)
+				{
+					buf.append(BELL_CHARS.charAt(fRows[r][place]-1));
+					buf.append(' ');
+					buf.append(fTimes[r][place]-timestamp);
+					buf.append(' ');
+					timestamp = fTimes[r][place];
+				}
+				out.println(buf.toString());
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	public void writeLowndesFile(File file) throws IOException
+	{
+		PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+		try
+		{
+			for (int r=0; r<fRows.length; r++)
+			{
+				char stroke = r%2==0? 'H': 'B';
+				for (int place=0; place<fNBells; place++)
+				{
+					String hex = Integer.toHexString(0x10000|(fTimes[r][place]&0xFFFF)).substring(1).toUpperCase();
+					out.println(stroke+" "+BELL_CHARS.charAt(fRows[r][place]-1)+" 0x"+hex);
+				}
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+}
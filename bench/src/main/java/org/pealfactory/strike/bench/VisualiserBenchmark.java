@@ -0,0 +1,78 @@
+package org.pealfactory.strike.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.pealfactory.strike.*;
+import org.pealfactory.strike.analyser.*;
+import org.pealfactory.strike.data.*;
+import org.pealfactory.strike.pipeline.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Analyses a loaded touch with each visualiser from CAS.getAvailableVisualisers(), named by its class.
+ * <p>
+ * CAS Copyright 2003-2012 Mark B Davies
+ * </p>
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * </p>
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * </p>
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * </p>
+ *
+ * @author MBD
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class VisualiserBenchmark
+{
+	@Param({DataSets.BAGLEY, DataSets.LOWNDES, DataSets.SYNTHETIC_CAS})
+	public String dataSet;
+
+	@Param({"5040"})
+	public int rows;
+
+	@Param({"RodVisualiser2", "RodVisualiser5", "SimpleAveragedRowVisualiser", "LastBellPerfectVisualiser",
+			"SimpleLADVisualiser"})
+	public String visualiser;
+
+	private RowSource fTouch;
+	private int fVisualiser;
+
+	@Setup
+	public void setUp() throws Exception
+	{
+		fTouch = DataSets.create(dataSet, rows).loadTouch();
+		fVisualiser = -1;
+		List<Visualiser> visualisers = CAS.getAvailableVisualisers();
+		for (int i=0; i<visualisers.size(); i++)
+		{
+			if (visualisers.get(i).getClass().getSimpleName().equals(visualiser))
+				fVisualiser = i;
+		}
+		if (fVisualiser<0)
+			throw new IllegalArgumentException(visualiser+" is not one of the available visualisers");
+	}
+
+	@Benchmark
+	public TouchStats visualise()
+	{
+		Visualiser v = DataSets.analyse(fTouch, CAS.getAvailableVisualisers().get(fVisualiser));
+		return v.getAveragedTouchData();
+	}
+}
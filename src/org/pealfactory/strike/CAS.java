@@ -5,6 +5,7 @@ import org.pealfactory.strike.input.*;
 import org.pealfactory.strike.ui.*;
 import org.pealfactory.strike.audio.*;
 import org.pealfactory.strike.pipeline.Pipeline;
+import org.pealfactory.strike.pipeline.TouchCache;
 
 import javax.swing.*;
 import java.io.*;
@@ -46,17 +47,24 @@ public class CAS extends JApplet implements CASContainer
 	private CASWindow fWindow;
 
 	private static File gHomeDirectory;
+	/** Null unless -cache is given */
+	private static TouchCache gTouchCache;
 
 	public static void main(String[] args)
 	{
 		if (args==null || args.length>20)
 		{
-			System.out.println("Usage: CAS [file]");
+			System.out.println("Usage: CAS [file] [-cache]");
 			System.exit(1);
 		}
 		String toLoad = null;
-		if (args.length>0)
-			toLoad = args[0];
+		for (int i=0; i<args.length; i++)
+		{
+			if (args[i].equals("-cache"))
+				setTouchCache(TouchCache.getDefaultCache());
+			else if (toLoad==null)
+				toLoad = args[i];
+		}
 		try
 		{
 			//UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
@@ -81,6 +89,19 @@ public class CAS extends JApplet implements CASContainer
 		gHomeDirectory = homeDir;
 	}
 
+	/**
+	 * @return the cache for analysed touches, or null if touches shouldn't be cached
+	 */
+	public static synchronized TouchCache getTouchCache()
+	{
+		return gTouchCache;
+	}
+
+	public static synchronized void setTouchCache(TouchCache cache)
+	{
+		gTouchCache = cache;
+	}
+
 	public static CASWindow createNewCASWindow()
 	{
 		CASWindow window = new CASWindow();
@@ -0,0 +1,434 @@
+package org.pealfactory.strike;
+
+import org.pealfactory.strike.analyser.*;
+import org.pealfactory.strike.data.*;
+import org.pealfactory.strike.input.*;
+import org.pealfactory.strike.pipeline.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Headless batch analysis. Given a directory of striking files, or a .lst band list file, every touch is
+ * loaded through a Pipeline and analysed by each of the visualisers returned by CAS.getAvailableVisualisers().
+ * The touch stats for each file/visualiser combination are written to a CSV file in the output directory.
+ * With -cache, corrected rows and visualiser results are kept in the default TouchCache, so that running
+ * again over the same files is much quicker.
+ * <p>
+ * Files are processed in parallel on a thread pool sized to the number of available processors; each task
+ * creates its own Pipeline and visualiser instances, since these are not thread-safe.
+ * </p>
+ * <p>
+ * CAS Copyright 2003-2012 Mark B Davies
+ * </p>
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * </p>
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * </p>
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * </p>
+ *
+ * @author MBD
+ */
+public class CASBatch
+{
+	public final static String EXT_BAND_LIST = ".lst";
+	public final static String EXT_CSV = ".csv";
+	public final static String SUFFIX_LEADS = "_leads";
+	public final static String PREFIX_SEASON = "_season_";
+	private final static String[] STROKE_NAMES = {"whole", "hand", "back"};
+
+	private File fHomeDirectory;
+	private File fOutputDirectory;
+	private boolean fInChangesOnly = true;
+	/** If set, touches analysed before are taken from the cache */
+	private TouchCache fTouchCache;
+	/** Lateness histograms merged over every file, by visualiser name, then stroke and bell */
+	private Map<String,LatenessHistogram[][]> fSeasonLateness = new TreeMap<String,LatenessHistogram[][]>();
+	private Map<String,Integer> fSeasonTouches = new HashMap<String,Integer>();
+
+	public static void main(String[] args)
+	{
+		if (args==null || args.length<1 || args.length>4)
+		{
+			System.out.println("Usage: CASBatch <directory|bandlist.lst> [output directory] [-all] [-cache]");
+			System.exit(1);
+		}
+		File input = new File(args[0]);
+		File outputDir = new File(".");
+		boolean inChangesOnly = true;
+		boolean useCache = false;
+		for (int i=1; i<args.length; i++)
+		{
+			if (args[i].equals("-all"))
+				inChangesOnly = false;
+			else if (args[i].equals("-cache"))
+				useCache = true;
+			else
+				outputDir = new File(args[i]);
+		}
+		try
+		{
+			CASBatch batch = new CASBatch(outputDir);
+			batch.setInChangesOnly(inChangesOnly);
+			if (useCache)
+				batch.setTouchCache(TouchCache.getDefaultCache());
+			List<File> files = batch.findFiles(input);
+			long start = System.currentTimeMillis();
+			int nFailed = batch.analyse(files);
+			System.out.println("Analysed "+(files.size()-nFailed)+" of "+files.size()+" files in "+(System.currentTimeMillis()-start)+"ms");
+			if (nFailed>0)
+				System.exit(2);
+		}
+		catch (Exception e)
+		{
+			System.out.println("Batch analysis failed: "+e);
+			System.exit(1);
+		}
+	}
+
+	public CASBatch(File outputDir)
+	{
+		fOutputDirectory = outputDir;
+	}
+
+	public void setInChangesOnly(boolean inChangesOnly)
+	{
+		fInChangesOnly = inChangesOnly;
+	}
+
+	public void setTouchCache(TouchCache cache)
+	{
+		fTouchCache = cache;
+	}
+
+	/**
+	 * Returns the striking files to analyse - either every file in the given directory which is in a
+	 * recognised input format, or the files named in the given band list. Relative names (including the oddstruckness file needed by Bagley
+	 * input) are resolved against the directory containing the files.
+	 *
+	 * @param input
+	 * @return
+	 * @throws IOException
+	 */
+	public List<File> findFiles(File input) throws IOException
+	{
+		List<File> files = new ArrayList<File>();
+		if (input.isDirectory())
+		{
+			fHomeDirectory = input;
+			File[] contents = input.listFiles();
+			if (contents==null)
+				throw new IOException("Can't list directory "+input);
+			Arrays.sort(contents);
+			InputFactory factory = new InputFactory();
+			for (File f: contents)
+			{
+				String name = f.getName().toLowerCase();
+				if (!f.isFile() || name.endsWith(EXT_BAND_LIST) || name.equals(BagleyBongInput.ODDSTRUCKFILE))
+					continue;
+				if (factory.isRecognised(f))
+					files.add(f);
+				else
+					System.out.println("Skipping "+f.getName()+": not a striking data file");
+			}
+		}
+		else if (input.getName().toLowerCase().endsWith(EXT_BAND_LIST))
+		{
+			fHomeDirectory = input.getAbsoluteFile().getParentFile();
+			List<?> bands = new InputFactory().readBandListFile(input.getPath());
+			for (Object band: bands)
+				files.add(new File(fHomeDirectory, band.toString().trim()));
+		}
+		else
+		{
+			fHomeDirectory = input.getAbsoluteFile().getParentFile();
+			files.add(input);
+		}
+		return files;
+	}
+
+	/**
+	 * Analyses all files on a bounded thread pool, returning the number of files which could not be analysed.
+	 *
+	 * @param files
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public int analyse(List<File> files) throws InterruptedException
+	{
+		if (!fOutputDirectory.isDirectory() && !fOutputDirectory.mkdirs())
+		{
+			System.out.println("Can't create output directory "+fOutputDirectory);
+			return files.size();
+		}
+		int nThreads = Math.max(1, Math.min(files.size(), Runtime.getRuntime().availableProcessors()));
+		ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		try
+		{
+			for (final File f: files)
+			{
+				results.add(executor.submit(new Callable<Boolean>(){
+					public Boolean call() throws Exception
+					{
+						analyseFile(f);
+						return Boolean.TRUE;
+					}
+				}));
+			}
+			int nFailed = 0;
+			for (int i=0; i<files.size(); i++)
+			{
+				try
+				{
+					results.get(i).get();
+				}
+				catch (ExecutionException e)
+				{
+					System.out.println("Failed to analyse "+files.get(i)+": "+e.getCause());
+					nFailed++;
+				}
+			}
+			try
+			{
+				writeSeasonStats();
+			}
+			catch (IOException e)
+			{
+				System.out.println("Failed to write season stats: "+e);
+			}
+			return nFailed;
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Runs one file through the pipeline (on the calling thread), then through every visualiser.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	protected void analyseFile(File file) throws IOException
+	{
+		BatchInputSource source = new BatchInputSource();
+		StrikingDataInput inputter = new InputFactory().createInputter(file.getPath(), source);
+		Pipeline pipeline = new Pipeline(inputter);
+		if (fTouchCache!=null)
+			pipeline.setTouchCache(fTouchCache, TouchCache.makeTouchKey(file.getPath(), source, inputter));
+		pipeline.load();
+		RowSource touch = pipeline.getRawTouchData();
+		if (touch==null)
+			throw new IOException("Input did not complete");
+		MethodIdentifier method = pipeline.getMethodIdentifier();
+
+		AnalysisStageListener listener = new AnalysisStageListener(){
+			public void analysisComplete()
+			{
+			}
+
+			public void newAveragedRowAvailable()
+			{
+			}
+		};
+		for (Visualiser visualiser: CAS.getAvailableVisualisers())
+		{
+			visualiser.setAnalysisListener(listener);
+			pipeline.analyse(visualiser);
+			writeStats(file, visualiser);
+			addToSeason(visualiser);
+			if (method.getMethodName()!=null)
+				writeLeadStats(file, visualiser, method);
+		}
+		String methodName = method.getMethodName()==null? "": "; "+method.getMethodName();
+		System.out.println("Analysed "+file.getName()+": "+touch.getNRows()+" rows; "+pipeline.getTruthChecker().getSummary()+methodName);
+	}
+
+	private void writeStats(File file, Visualiser visualiser) throws IOException
+	{
+		File out = new File(fOutputDirectory, getOutputName(file)+"_"+toFilename(visualiser.getName())+EXT_CSV);
+		PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(out)));
+		try
+		{
+			writer.println("Analysing: "+file.getName()+" with "+visualiser.getName());
+			TouchStats stats = visualiser.getAveragedTouchData();
+			stats.outputStats(writer, fInChangesOnly);
+		}
+		finally
+		{
+			writer.close();
+		}
+		if (writer.checkError())
+			throw new IOException("Failed to write "+out);
+	}
+
+	/**
+	 * Merges the lateness histograms of a touch into the season totals for its visualiser.
+	 *
+	 * @param visualiser
+	 */
+	private void addToSeason(Visualiser visualiser)
+	{
+		TouchStats stats = visualiser.getAveragedTouchData();
+		synchronized (fSeasonLateness)
+		{
+			LatenessHistogram[][] season = fSeasonLateness.get(visualiser.getName());
+			if (season==null)
+			{
+				season = new LatenessHistogram[3][Constants.MAXNBELLS+1];
+				for (int stroke=0; stroke<3; stroke++)
+					for (int bell=1; bell<=Constants.MAXNBELLS; bell++)
+						season[stroke][bell] = new LatenessHistogram();
+				fSeasonLateness.put(visualiser.getName(), season);
+				fSeasonTouches.put(visualiser.getName(), 0);
+			}
+			for (int stroke=0; stroke<3; stroke++)
+				for (int bell=1; bell<=stats.getNBells(); bell++)
+					season[stroke][bell].merge(stats.getLatenessHistogram(bell, stroke, fInChangesOnly));
+			fSeasonTouches.put(visualiser.getName(), fSeasonTouches.get(visualiser.getName())+1);
+		}
+	}
+
+	/**
+	 * Writes lateness percentiles per bell and stroke, over every touch analysed, for each visualiser.
+	 *
+	 * @throws IOException
+	 */
+	private void writeSeasonStats() throws IOException
+	{
+		synchronized (fSeasonLateness)
+		{
+			for (Map.Entry<String,LatenessHistogram[][]> entry: fSeasonLateness.entrySet())
+			{
+				File out = new File(fOutputDirectory, PREFIX_SEASON+toFilename(entry.getKey())+EXT_CSV);
+				PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(out)));
+				try
+				{
+					writer.println("Season lateness with "+entry.getKey()+" over "+fSeasonTouches.get(entry.getKey())+" touches");
+					writer.println("Bell, stroke, strikes, "+TouchStats.TEXT_MEDIAN_MS_LATE+", "+TouchStats.TEXT_P90_MS_LATE+", "+TouchStats.TEXT_P99_MS_LATE);
+					LatenessHistogram[][] season = entry.getValue();
+					for (int bell=1; bell<=Constants.MAXNBELLS; bell++)
+					{
+						if (season[TouchStats.WHOLEPULL][bell].getCount()==0)
+							continue;
+						for (int stroke=0; stroke<3; stroke++)
+						{
+							LatenessHistogram h = season[stroke][bell];
+							writer.println(bell+", "+STROKE_NAMES[stroke]+", "+h.getCount()+", "+h.getPercentile(50)+", "+h.getPercentile(90)+", "+h.getPercentile(99));
+						}
+					}
+				}
+				finally
+				{
+					writer.close();
+				}
+				if (writer.checkError())
+					throw new IOException("Failed to write "+out);
+			}
+		}
+	}
+
+	/**
+	 * Writes the main stats for each complete lead and course of the touch, once the method is known.
+	 *
+	 * @param file
+	 * @param visualiser
+	 * @param method
+	 * @throws IOException
+	 */
+	private void writeLeadStats(File file, Visualiser visualiser, MethodIdentifier method) throws IOException
+	{
+		File out = new File(fOutputDirectory, getOutputName(file)+"_"+toFilename(visualiser.getName())+SUFFIX_LEADS+EXT_CSV);
+		PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(out)));
+		try
+		{
+			writer.println("Analysing: "+file.getName()+" with "+visualiser.getName()+", method "+method.getMethodName());
+			writer.println("Section, first row, rows, "+TouchStats.TEXT_STRIKING_RMSE+", "+TouchStats.TEXT_DISCRETE_RMSE+", "+TouchStats.TEXT_INTERVAL_MEAN+", "+TouchStats.TEXT_FAULTS);
+			TouchStats stats = visualiser.getAveragedTouchData();
+			writeSections(writer, "Lead", method.getLeadHeads(), stats);
+			writeSections(writer, "Course", method.getCourseHeads(), stats);
+		}
+		finally
+		{
+			writer.close();
+		}
+		if (writer.checkError())
+			throw new IOException("Failed to write "+out);
+	}
+
+	private void writeSections(PrintWriter writer, String name, int[] heads, TouchStats stats)
+	{
+		for (int i=0; i+1<heads.length; i++)
+		{
+			TouchStats section = stats.getSlice(heads[i], heads[i+1]);
+			writer.println(name+" "+(i+1)+", "+(heads[i]+1)+", "+section.getNRows()
+					+", "+section.getStrikingRMSE(fInChangesOnly).whole
+					+", "+section.getDiscreteStrikingRMSE(fInChangesOnly).whole
+					+", "+section.getMeanInterbellGap(fInChangesOnly).whole
+					+", "+section.getFaults(fInChangesOnly));
+		}
+	}
+
+	/**
+	 * Output files are named after the input file's path from the home directory, so that files of the same
+	 * name in different directories of a band list don't overwrite each other's results.
+	 *
+	 * @param file
+	 * @return
+	 */
+	private String getOutputName(File file)
+	{
+		String path = file.getAbsolutePath();
+		if (fHomeDirectory!=null)
+		{
+			String home = fHomeDirectory.getAbsolutePath()+File.separator;
+			if (path.startsWith(home))
+				path = path.substring(home.length());
+		}
+		return path.replace(File.separatorChar, '_').replace('/', '_').replace(':', '_');
+	}
+
+	private static String toFilename(String name)
+	{
+		StringBuilder s = new StringBuilder(name.length());
+		for (int i=0; i<name.length(); i++)
+		{
+			char c = name.charAt(i);
+			s.append(Character.isLetterOrDigit(c)? c: '_');
+		}
+		return s.toString();
+	}
+
+	/**
+	 * Reads absolute paths as given, and relative names from the home directory of the batch.
+	 */
+	class BatchInputSource implements FileInputSource
+	{
+		public Reader getReader(String name) throws FileNotFoundException
+		{
+			return new BufferedReader(new FileReader(getFile(name)));
+		}
+
+		public File getFile(String name)
+		{
+			File f = new File(name);
+			if (!f.isAbsolute() && !f.exists() && fHomeDirectory!=null)
+				f = new File(fHomeDirectory, name);
+			return f;
+		}
+	}
+}
@@ -40,6 +40,12 @@ public class LastBellPerfectVisualiser extends VisualiserHelper
 		fHandstrokeGap = handstrokeGap;
 	}
 
+	@Override
+	public String getSettings()
+	{
+		return Double.toString(fHandstrokeGap);
+	}
+
 	protected void newRow(Row row)
 	{
 		// Row end time is always where last bell rang.
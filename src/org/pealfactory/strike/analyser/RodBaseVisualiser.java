@@ -42,6 +42,12 @@ abstract class RodBaseVisualiser extends VisualiserHelper
 		fRows =  new Row[fNWholePulls*2];
 	}
 
+	@Override
+	public String getSettings()
+	{
+		return Integer.toString(fNWholePulls);
+	}
+
 	public void clearData()
 	{
 		super.clearData();
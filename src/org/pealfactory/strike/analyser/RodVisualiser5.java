@@ -39,6 +39,12 @@ public class RodVisualiser5 extends RodBaseVisualiser
 		fHandstrokeGap = handstrokeGap;
 	}
 
+	@Override
+	public String getSettings()
+	{
+		return super.getSettings()+","+fHandstrokeGap;
+	}
+
 	protected double getCurrentHandstrokeGap()
 	{
 		return fHandstrokeGap;
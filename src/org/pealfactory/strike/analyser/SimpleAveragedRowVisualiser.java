@@ -45,6 +45,12 @@ public class SimpleAveragedRowVisualiser extends VisualiserHelper
 		fHandstrokeGap = handstrokeGap;
 	}
 
+	@Override
+	public String getSettings()
+	{
+		return Double.toString(fHandstrokeGap);
+	}
+
 	public void clearData()
 	{
 		super.clearData();
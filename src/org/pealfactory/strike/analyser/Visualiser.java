@@ -34,6 +34,11 @@ public interface Visualiser extends AveragedRowSource
 
 	public String getInfo();
 
+	/**
+	 * @return the visualiser's parameters, as text - anything besides its input which affects its output
+	 */
+	public String getSettings();
+
 	public void newRowsAvailable(RowSource rowSource);
 
 	public void notifyLastRowRung();
@@ -45,4 +50,14 @@ public interface Visualiser extends AveragedRowSource
 	public TouchStats getAveragedTouchData();
 
 	public void clearData();
+
+	/**
+	 * Replaces the visualiser's data with the results of an earlier analysis of the same rows (e.g. from
+	 * TouchCache), as if newRowsAvailable() had been called with them and the last row rung. The listener is
+	 * told the analysis is complete, so notifyLastRowRung() should not be called as well.
+	 *
+	 * @param rows averaged rows from the earlier analysis
+	 * @param rowSource the rows which were analysed
+	 */
+	public void loadAnalysis(AveragedRowData rows, RowSource rowSource);
 }
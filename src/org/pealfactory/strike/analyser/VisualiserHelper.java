@@ -48,6 +48,19 @@ public abstract class VisualiserHelper implements Visualiser
 		fNRowsProcessed = 0;
 	}
 
+	public void loadAnalysis(AveragedRowData rows, RowSource rowSource)
+	{
+		clearData();
+		fRows = rows;
+		fNBells = rowSource.getNBells();
+		fNRowsProcessed = rowSource.getNRows();
+		if (fListener!=null)
+		{
+			fListener.newAveragedRowAvailable();
+			fListener.analysisComplete();
+		}
+	}
+
 	public void setAnalysisListener(AnalysisStageListener listener)
 	{
 		fListener = listener;
@@ -88,7 +101,7 @@ public abstract class VisualiserHelper implements Visualiser
 	 */
 	public TouchStats getAveragedTouchData()
 	{
-		return new TouchStats(fRows, fRows.getNBells());
+		return fRows.getTouchStats();
 	}
 
 	protected void addAveragedRow(Row row, int endTime, double handstrokeGap)
@@ -115,6 +128,14 @@ public abstract class VisualiserHelper implements Visualiser
 		return fInfo;
 	}
 
+	/**
+	 * Visualisers without parameters need not override this.
+	 */
+	public String getSettings()
+	{
+		return "";
+	}
+
 	public int getNRows()
 	{
 		return fRows.getNRows();
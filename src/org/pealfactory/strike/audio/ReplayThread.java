@@ -3,7 +3,6 @@ package org.pealfactory.strike.audio;
 import org.pealfactory.strike.data.AveragedRowData;
 import org.pealfactory.strike.data.AveragedRow;
 import org.pealfactory.strike.data.AveragedRowSource;
-import sun.misc.*;
 
 /**
  * <p>
@@ -176,19 +175,15 @@ public class ReplayThread implements Runnable
 		return false;
 	}
 
+	/**
+	 * Millisecond timer from System.nanoTime(), which has replaced the old sun.misc.Perf counter
+	 * (no longer available from Java 9).
+	 */
 	class HiResTimer
 	{
-		Perf hiResTimer;
-		long freq;
-
-		public HiResTimer()
-		{
-			hiResTimer = Perf.getPerf();
-			freq = hiResTimer.highResFrequency();
-		}
 		public long currentTimeMillis()
 		{
-			return hiResTimer.highResCounter()*1000/freq;
+			return System.nanoTime()/1000000;
 		}
 	}
 }
@@ -0,0 +1,92 @@
+package org.pealfactory.strike.data;
+
+import java.util.*;
+
+/**
+ * An append-only list written by one thread and read by any number of others without locking. Items are
+ * stored in fixed-size chunks which, once allocated, are never moved or copied, so a reader can never see a
+ * half-copied array; only the small directory of chunks is replaced as the log grows. The committed size is
+ * volatile and is written after the item itself, so any index below a size a reader has seen holds a fully
+ * published item.
+ * <p>
+ * Only the writer may call add(). Items are published once; if an item is mutable, changes made to it after
+ * it is added need their own publication, for example volatile fields.
+ * </p>
+ * <p>
+ * CAS Copyright 2003-2012 Mark B Davies
+ * </p>
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * </p>
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * </p>
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * </p>
+ *
+ * @author MBD
+ */
+public class AppendLog<T>
+{
+	private static final int CHUNK_BITS = 8;
+	private static final int CHUNK_SIZE = 1<<CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE-1;
+
+	private volatile Object[][] fChunks = new Object[4][];
+	private volatile int fSize = 0;
+
+	/**
+	 * Appends an item. Writer thread only.
+	 *
+	 * @param item
+	 */
+	public void add(T item)
+	{
+		int i = fSize;
+		int c = i>>CHUNK_BITS;
+		Object[][] chunks = fChunks;
+		if (c==chunks.length)
+		{
+			// Chunks are shared with the old directory, not copied, so readers still using it are unaffected.
+			chunks = Arrays.copyOf(chunks, c*2);
+			fChunks = chunks;
+		}
+		if (chunks[c]==null)
+			chunks[c] = new Object[CHUNK_SIZE];
+		chunks[c][i&CHUNK_MASK] = item;
+		fSize = i+1;
+	}
+
+	/**
+	 * @return number of items committed so far
+	 */
+	public int size()
+	{
+		return fSize;
+	}
+
+	public boolean isEmpty()
+	{
+		return fSize==0;
+	}
+
+	/**
+	 * @param i 0..size()-1
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public T get(int i)
+	{
+		if (i<0 || i>=fSize)
+			throw new IndexOutOfBoundsException("Index: "+i+", Size: "+fSize);
+		return (T)fChunks[i>>CHUNK_BITS][i&CHUNK_MASK];
+	}
+}
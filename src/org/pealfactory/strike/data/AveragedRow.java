@@ -1,6 +1,12 @@
 package org.pealfactory.strike.data;
 
+import org.pealfactory.strike.Constants;
+
 /**
+ * One row of a touch as averaged by a Visualiser - a view onto the row's entry in AveragedRowData. Correct
+ * strike times, lateness and variances are worked out once, when the row is added, and stored in the
+ * AveragedRowData columns, so the getters here are just array reads; only the "in changes" state, which
+ * can change as later rows are added, is kept in the row itself.
  * <p>
  * CAS Copyright 2003-2012 Mark B Davies
  * </p>
@@ -29,67 +35,35 @@ public class AveragedRow implements Row
 	public final static double GOOD_CUTOFF = 30;
 	public final static double BAD_CUTOFF = 60;
 
-	private Row fRow;
-	/** Values calculated by the Visualiser in effect */
-	private int fRowEndTime;
-	/** As a proportion of average inter-bell gap, i.e. 1.0 is nominal (and may be set for all rows by some Visualisers) */
-	private double fHandstrokeGap;
-	private int fRowDuration;
+	private static final int NBELLS = Constants.MAXNBELLS;
 
-  private double fAverageGap;
-	private double fRowVariance;
-	private double fDiscreteRowVariance;
+	private Row fRow;
+	/** Values calculated by the Visualiser in effect, held in AveragedRowData's columns */
+	private AveragedRowData.Columns fColumns;
+	/** Row within fColumns */
+	private int fIndex;
+	/** Index of the row's first place in fColumns' per-strike columns */
+	private int fFirst;
 
-	private int fWholePullDuration;
+	/** This and the in-changes fields may be changed after the row is added to AveragedRowData, so are volatile */
+	private volatile int fWholePullDuration;
 
 	/** Set for rows which are believed to be "in changes", i.e. not part of initial and finishing rounds */
-	private boolean fInChanges;
+	private volatile boolean fInChanges;
+	/** Earlier values of fInChanges, most recent first - see AveragedRowData.Snapshot */
+	private volatile AveragedRowData.FlagChange fFlagChanges;
 
 	/** If we're in changes, a count of the number of preceding consecutive rows of changes; or if we're in rounds,
 	 *  a count of the number of preceding consecutive rows of rounds. Used to ignore short bursts of changes whilst
 	 *  we're ringing rounds (e.g. caused by failure to settle into rounds properly).  */
-	private int fInChangesCount;
+	private volatile int fInChangesCount;
 
-  public AveragedRow(Row row, int endTime, double handstrokeGap, int duration)
+	AveragedRow(Row row, AveragedRowData.Columns columns, int index)
 	{
 		fRow = row;
-		fRowEndTime = endTime;
-		fHandstrokeGap = handstrokeGap;
-		fRowDuration = duration;
-		calcStats();
-	}
-
-	private void calcStats()
-	{
-		// Calculate average gap
-		double n = getNBells();
-		if (isHandstroke())
-			n+= fHandstrokeGap;
-		fAverageGap = (double)fRowDuration/n;
-
-		// Calculate row variance.
-		n = getRowSize();
-		double d = 0.0;
-		double dd = 0.0;
-		for (int i=0; i<n; i++)
-		{
-      double t = getStrikeTime(i+1)-getCorrectStrikeTime(i+1);
-			d+= t*t;
-			int x = (int)(Math.abs(t)/GOOD_CUTOFF);
-			t = x*GOOD_CUTOFF;
-			/*
-			if (t<GOOD_CUTOFF)
-				t = 0;
-				*/
-			dd+= t*t;
-		}
-		if (n>0)
-		{
-			d = d/n;
-			dd = dd/n;
-		}
-		fRowVariance = d;
-		fDiscreteRowVariance = dd;
+		fColumns = columns;
+		fIndex = index;
+		fFirst = index*NBELLS;
 	}
 
 	public String toString()
@@ -136,34 +110,32 @@ public class AveragedRow implements Row
 	 */
 	public int getCorrectStrikeTime(int place)
 	{
-		double timePerBell = fAverageGap;
-		int correctTime = fRowEndTime-(int)(timePerBell*(getNBells()-place));
-		return correctTime;
+		return fColumns.fCorrectTime[fFirst+place-1];
 	}
 
 	public int getLatenessMilliseconds(int place)
 	{
-		return getStrikeTime(place) - getCorrectStrikeTime(place);
+		return fColumns.fLateness[fFirst+place-1];
 	}
 
 	public double getPercentageDeviation()
 	{
-		return getStandardDeviation()/fAverageGap;
+		return getStandardDeviation()/getAveragedGap();
 	}
 
 	public double getStandardDeviation()
 	{
-		return Math.sqrt(fRowVariance);
+		return Math.sqrt(getVariance());
 	}
 
 	public double getVariance()
 	{
-    return fRowVariance;
+    return fColumns.fVariance[fIndex];
 	}
 
 	public double getDiscreteVariance()
 	{
-    return fDiscreteRowVariance;
+    return fColumns.fDiscreteVariance[fIndex];
 	}
 
 	/**
@@ -173,7 +145,7 @@ public class AveragedRow implements Row
 	 */
 	public double getAveragedGap()
 	{
-		return fAverageGap;
+		return fColumns.fAverageGap[fIndex];
 	}
 
 	/**
@@ -184,10 +156,7 @@ public class AveragedRow implements Row
 	 */
 	public double getMeanInterbellGap()
 	{
-		double d = 0.0;
-		if (getRowSize()>1)
-			d =  (getBong(getRowSize()).time-getBong(1).time)/(getRowSize()-1);
-		return d;
+		return fColumns.fMeanInterbellGap[fIndex];
 	}
 
 	public boolean isHandstroke()
@@ -197,12 +166,12 @@ public class AveragedRow implements Row
 
 	public int getRowEndTime()
 	{
-		return fRowEndTime;
+		return fColumns.fRowEndTime[fIndex];
 	}
 
 	public int getRowDuration()
 	{
-		return fRowDuration;
+		return fColumns.fRowDuration[fIndex];
 	}
 
 	public int getWholePullDuration()
@@ -215,9 +184,12 @@ public class AveragedRow implements Row
 		fWholePullDuration = duration;
 	}
 
+	/**
+	 * @return as a proportion of average inter-bell gap, i.e. 1.0 is nominal (and may be set for all rows by some Visualisers)
+	 */
 	public double getHandstrokeGap()
 	{
-		return fHandstrokeGap;
+		return fColumns.fHandstrokeGap[fIndex];
 	}
 
 	/**
@@ -227,7 +199,7 @@ public class AveragedRow implements Row
 	 */
 	public double getHandstrokeGapMs()
 	{
-		return fHandstrokeGap*fAverageGap;
+		return getHandstrokeGap()*getAveragedGap();
 	}
 
 	public int getNBells()
@@ -260,9 +232,42 @@ public class AveragedRow implements Row
 		fInChanges = inChanges;
 	}
 
+	/**
+	 * Changes the "in changes" flag of a row which readers may already see, recording the old value so that
+	 * isInChanges(version) can still answer for earlier versions.
+	 *
+	 * @param inChanges
+	 * @param version version number of this change
+	 */
+	void changeInChanges(boolean inChanges, int version)
+	{
+		// The old value is recorded before the flag is changed - isInChanges(version) reads them in the opposite order.
+		fFlagChanges = new AveragedRowData.FlagChange(version, fInChanges, fFlagChanges);
+		fInChanges = inChanges;
+	}
+
+	/**
+	 * @param version
+	 * @return the "in changes" flag as it was at the given version, undoing any later changes
+	 */
+	boolean isInChanges(int version)
+	{
+		boolean inChanges = fInChanges;
+		for (AveragedRowData.FlagChange change=fFlagChanges; change!=null && change.fVersion>version; change=change.fPrevious)
+			inChanges = change.fWasInChanges;
+		return inChanges;
+	}
+
+	public long getSignature()
+	{
+		return fRow.getSignature();
+	}
+
 	public boolean isCloseToRounds()
 	{
-    return fRow.isCloseToRounds();
+		if (PackedRow.isRounds(fRow.getSignature(), getRowSize()))
+			return true;
+		return fRow.isCloseToRounds();
 	}
 
 	public int getInChangesCount()
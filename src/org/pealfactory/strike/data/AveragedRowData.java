@@ -1,8 +1,25 @@
 package org.pealfactory.strike.data;
 
+import org.pealfactory.strike.Constants;
+
 import java.util.*;
 
 /**
+ * The averaged rows of a touch, with running stats kept up to date as rows are added.
+ * <p>
+ * Rows are added by a single thread (the visualiser's), under the instance lock, but are held in an
+ * AppendLog so that getRow() and getNRows() - called per visible row by the displays - need no lock. Adding
+ * a row can change the "in changes" flag of earlier rows; each such change is given a new version number and
+ * recorded on the row with the flag's old value, so that the TouchStats snapshots handed out see the flags as they were
+ * when the snapshot was taken, however long they are kept - see Snapshot.
+ * </p>
+ * <p>
+ * Everything about a row which is fixed once it is added - its correct strike times, the lateness of each
+ * bell, its variances - is worked out in addRow() and stored in primitive columns, rather than in fields of
+ * each AveragedRow, which is just a view onto them. The columns are split into chunks of CHUNK_ROWS rows,
+ * each laid out contiguously, so they never move as the touch grows; the display, playback and stats then
+ * read them as plain array lookups instead of working them out again for every bell of every row each time.
+ * </p>
  * <p>
  * CAS Copyright 2003-2012 Mark B Davies
  * </p>
@@ -28,31 +45,247 @@ import java.util.*;
 public class AveragedRowData implements AveragedRowSource
 {
 	public static final boolean LOG_DEVIATIONS = false;
+	/** Default size of the rolling window - 24 whole pulls */
+	public static final int DEFAULT_WINDOW_ROWS = 48;
+
+	private static final int CHUNK_BITS = 8;
+	private static final int CHUNK_ROWS = 1<<CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_ROWS-1;
+	private static final int NBELLS = Constants.MAXNBELLS;
 
-	private int fNBells;
-	private List<AveragedRow> fRows;
+	private volatile int fNBells;
+	private AppendLog<AveragedRow> fRows;
+	/** Incremented each time the "in changes" flag of a row already added is changed */
+	private int fVersion = 0;
+	/** Columns holding the latest rows - earlier ones are reached through their rows */
+	private Columns fLastColumns;
+
+	/** Running stats for all rows, and for just those rows currently flagged as in changes - see getTouchStats() */
+	private StatsAccumulator fAllRowsStats = new StatsAccumulator();
+	private StatsAccumulator fInChangesStats = new StatsAccumulator();
+	/** Number of rows which have been added to the running stats */
+	private int fNRowsAccumulated = 0;
+	/** Fault count each row contributed to fInChangesStats, while it is in changes */
+	private int[] fInChangesFaults = new int[256];
+	/** Prefix sums for stats over any range of rows - see getRangeStats(). Extended to new rows when needed,
+	 *  and updated in place when an earlier row's flag or fault count changes. */
+	private RowPrefixSums fAllRowsSums = new RowPrefixSums();
+	private RowPrefixSums fInChangesSums = new RowPrefixSums();
+	/** Running stats for the most recent rows only, from fWindowStart up to the last row accumulated */
+	private int fWindowRows = DEFAULT_WINDOW_ROWS;
+	private int fWindowStart = 0;
+	private StatsAccumulator fWindowAllStats = new StatsAccumulator();
+	private StatsAccumulator fWindowInChangesStats = new StatsAccumulator();
 
   public AveragedRowData()
 	{
-		fRows = new ArrayList();
+		fRows = new AppendLog<AveragedRow>();
 		fNBells = 0;
 	}
 
-	public synchronized AveragedRow getRow(int i)
+	public AveragedRow getRow(int i)
 	{
 		return fRows.get(i);
 	}
 
-	public synchronized int getNRows()
+	public int getNRows()
 	{
 		return fRows.size();
 	}
 
-	public synchronized int getNBells()
+	public int getNBells()
 	{
 		return fNBells;
 	}
 
+	/**
+	 * Returns a snapshot of the stats for all rows added so far. The stats are kept up to date as each row
+	 * is added, so this takes constant time however long the touch is.
+	 *
+	 * @return
+	 */
+	public synchronized TouchStats getTouchStats()
+	{
+		// A row holding a min or max duration may have dropped out of changes.
+		rebuildExtremes(fInChangesStats, 0, true);
+		int nrows = fRows.size();
+		return new TouchStats(new Snapshot(0, nrows), nrows, fNBells, fAllRowsStats, fInChangesStats);
+	}
+
+	/**
+	 * Returns a snapshot of the stats for the most recent rows - see setWindowRows(). Like getTouchStats(), the
+	 * stats are kept up to date as rows are added and dropped from the window, so this takes constant time
+	 * however large the window; only the quickest and slowest rows may need finding again, if the row holding
+	 * one of them has left the window. Rows are numbered from 0 in the snapshot.
+	 *
+	 * @return
+	 */
+	public synchronized TouchStats getWindowStats()
+	{
+		final int first = fWindowStart;
+		final int nrows = fNRowsAccumulated-first;
+		rebuildExtremes(fWindowAllStats, first, false);
+		rebuildExtremes(fWindowInChangesStats, first, true);
+		return new TouchStats(new Snapshot(first, nrows), nrows, fNBells, fWindowAllStats, fWindowInChangesStats);
+	}
+
+	public synchronized int getWindowRows()
+	{
+		return fWindowRows;
+	}
+
+	/**
+	 * Sets the number of rows in the rolling window (twice the number of whole pulls), and recalculates the
+	 * window stats.
+	 *
+	 * @param nrows
+	 */
+	public synchronized void setWindowRows(int nrows)
+	{
+		fWindowRows = Math.max(1, nrows);
+		fWindowAllStats = new StatsAccumulator();
+		fWindowInChangesStats = new StatsAccumulator();
+		fWindowStart = Math.max(0, fNRowsAccumulated-fWindowRows);
+		for (int i=fWindowStart; i<fNRowsAccumulated; i++)
+		{
+			AveragedRow row = getRow(i);
+			fWindowAllStats.add(row, getStroke(i), getFaults(i));
+			if (row.isInChanges())
+				fWindowInChangesStats.add(row, getStroke(i), fInChangesFaults[i]);
+		}
+	}
+
+	/**
+	 * Drops rows from the start of the window until it is no bigger than fWindowRows.
+	 */
+	private void slideWindow()
+	{
+		while (fNRowsAccumulated-fWindowStart>fWindowRows)
+		{
+			int i = fWindowStart++;
+			AveragedRow row = getRow(i);
+			fWindowAllStats.remove(row, getStroke(i), getFaults(i));
+			if (row.isInChanges())
+				fWindowInChangesStats.remove(row, getStroke(i), fInChangesFaults[i]);
+		}
+	}
+
+	private void rebuildExtremes(StatsAccumulator stats, int first, boolean inChangesOnly)
+	{
+		if (stats.isExtremesValid())
+			return;
+		// A row holding a min or max duration has dropped out - rebuild them.
+		stats.resetExtremes();
+		for (int i=first; i<fNRowsAccumulated; i++)
+		{
+			AveragedRow row = getRow(i);
+			if (!inChangesOnly || row.isInChanges())
+				stats.addExtremes(row, getStroke(i));
+		}
+	}
+
+	/**
+	 * Fault count of row i among all rows - depends on the last strike of the previous row.
+	 */
+	private int getFaults(int i)
+	{
+		int prevTime = 0;
+		if (i>0)
+			prevTime = TouchStats.getLastStrikeTime(getRow(i-1), prevTime);
+		return TouchStats.countFaults(getRow(i), TouchStats.FAULTFACTOR, prevTime);
+	}
+
+	/**
+	 * Returns a snapshot of the stats for a range of rows, such as one lead. The standard stats come from
+	 * prefix sums over the rows, so take logarithmic time however long the range; the sums are extended
+	 * to cover rows added since the last call. Rows in the range are numbered from 0 in the snapshot, but
+	 * keep the stroke they have in the whole touch, and a row's fault count still depends on the row before,
+	 * even if that is outside the range. Minimum and maximum durations are worked out from the rows if asked for.
+	 *
+	 * @param first first row of the range
+	 * @param end row after the last row of the range
+	 * @return
+	 */
+	public synchronized TouchStats getRangeStats(int first, int end)
+	{
+		end = Math.min(end, fRows.size());
+		int nrows = Math.max(0, end-first);
+		updatePrefixSums();
+		boolean evenRowsAreHandstrokes = fRows.isEmpty() || getRow(0).isHandstroke();
+		return new TouchStats(new Snapshot(first, nrows), nrows, fNBells, fAllRowsSums, fInChangesSums, first, evenRowsAreHandstrokes);
+	}
+
+	/**
+	 * Returns the stats for a range of rows as they were when an earlier snapshot was taken - see
+	 * TouchStats.getSlice(). The prefix sums only hold the current "in changes" flags, so can only be used if
+	 * no flag has changed since the snapshot; otherwise the rows of the range are added up afresh, using the
+	 * flags as they were. Since only the last few rows' flags ever change, this is rare.
+	 *
+	 * @param touch snapshot starting at row 0
+	 * @param first first row of the range
+	 * @param end row after the last row of the range, at most the end of the snapshot
+	 * @return
+	 */
+	synchronized TouchStats getRangeStats(Snapshot touch, int first, int end)
+	{
+		if (touch.fSnapshotVersion==fVersion)
+			return getRangeStats(first, end);
+		int version = touch.fSnapshotVersion;
+		int nrows = Math.max(0, end-first);
+		StatsAccumulator allRows = new StatsAccumulator();
+		StatsAccumulator inChangesRows = new StatsAccumulator();
+		int prevTime = 0;
+		for (int i=first-1; i>=0; i--)
+		{
+			if (getRow(i).isInChanges(version))
+			{
+				prevTime = TouchStats.getLastStrikeTime(getRow(i), 0);
+				break;
+			}
+		}
+		for (int i=first; i<end; i++)
+		{
+			AveragedRow row = getRow(i);
+			allRows.add(row, getStroke(i), getFaults(i));
+			if (row.isInChanges(version))
+			{
+				inChangesRows.add(row, getStroke(i), TouchStats.countFaults(row, TouchStats.FAULTFACTOR, prevTime));
+				prevTime = TouchStats.getLastStrikeTime(row, prevTime);
+			}
+		}
+		return new TouchStats(new Snapshot(first, nrows, version), nrows, fNBells, allRows, inChangesRows);
+	}
+
+	/**
+	 * Lends a snapshot the running lateness histograms, if they still cover exactly its rows - see
+	 * TouchStats.getHistograms().
+	 *
+	 * @param touch
+	 * @param inChanges
+	 * @return null if rows have been added, or flags changed, since the snapshot was taken
+	 */
+	synchronized LatenessHistogram[][] shareHistograms(Snapshot touch, boolean inChanges)
+	{
+		if (touch.fSnapshotVersion!=fVersion || touch.fFirst+touch.fNRows!=fNRowsAccumulated)
+			return null;
+		if (touch.fFirst==0)
+			return (inChanges? fInChangesStats: fAllRowsStats).shareHistograms();
+		if (touch.fFirst==fWindowStart)
+			return (inChanges? fWindowInChangesStats: fWindowAllStats).shareHistograms();
+		return null;
+	}
+
+	private void updatePrefixSums()
+	{
+		for (int i=fAllRowsSums.getNValid(); i<fNRowsAccumulated; i++)
+			fAllRowsSums.add(getRow(i), getStroke(i)==TouchStats.HANDSTROKE, true, getFaults(i));
+		for (int i=fInChangesSums.getNValid(); i<fNRowsAccumulated; i++)
+		{
+			AveragedRow row = getRow(i);
+			fInChangesSums.add(row, getStroke(i)==TouchStats.HANDSTROKE, row.isInChanges(), fInChangesFaults[i]);
+		}
+	}
+
 	/**
 	 * Add an averaged row with the given row end time, the default handstroke gap (1.0), and row duration
 	 * calculated from the end of the previous row.
@@ -112,7 +345,21 @@ public class AveragedRowData implements AveragedRowSource
 	 */
 	public void addRow(Row row, int endTime, double handstrokeGap, int duration)
 	{
-		addRow(new AveragedRow(row, endTime, handstrokeGap, duration));
+		addRow(createRow(row, endTime, handstrokeGap, duration));
+	}
+
+	/**
+	 * Works out the row's averaged values into the next entry of the columns, and returns a view onto it.
+	 * The row isn't visible to readers until it is added to fRows.
+	 */
+	private AveragedRow createRow(Row row, int endTime, double handstrokeGap, int duration)
+	{
+		int i = fRows.size();
+		if ((i&CHUNK_MASK)==0)
+			fLastColumns = new Columns();
+		int r = i&CHUNK_MASK;
+		fLastColumns.setRow(r, row, endTime, handstrokeGap, duration);
+		return new AveragedRow(row, fLastColumns, r);
 	}
 
 	/** How many changes of e.g. not-round we need before deciding it really isn't rounds; and vice versa */
@@ -127,10 +374,8 @@ public class AveragedRowData implements AveragedRowSource
 	 */
 	private synchronized void addRow(AveragedRow row)
 	{
-		fRows.add(row);
-		fNBells = Math.max(fNBells, row.getNBells());
-
-		int n = fRows.size();
+		// The row is only appended to fRows once it is complete, so readers never see it half set up.
+		int n = fRows.size()+1;
 		// At every backstroke, calculate whole pull durations, store in both hand & back rows.
 		if (!row.isHandstroke())
 		{
@@ -173,6 +418,9 @@ public class AveragedRowData implements AveragedRowSource
 				row.setInChangesCount(0);
 			}
 		}
+		fRows.add(row);
+		fNBells = Math.max(fNBells, row.getNBells());
+		accumulateStats(n-1);
 		if (LOG_DEVIATIONS)
 		{
 			StringBuffer s = new StringBuffer("Row ");
@@ -196,18 +444,266 @@ public class AveragedRowData implements AveragedRowSource
 			int prevCount = endOfPreviousSegment.getInChangesCount();
 			if (prevCount<IN_CHANGES_SENSITIVITY)
 			{
-				endOfPreviousSegment.setIsInChanges(currentInChanges);
+				setInChanges(end, currentInChanges);
 				for (int i=1; i<=prevCount; i++)
-					getRow(end-i).setIsInChanges(currentInChanges);
+					setInChanges(end-i, currentInChanges);
 				// Recursively sort out any even earlier small segments
 				resetInChanges(currentInChanges, end-prevCount-1);
 			}
 			else if (currentInChanges)
 			{
 				// Always mark the last row of rounds as "inchanges", to make it part of the touch.
-				endOfPreviousSegment.setIsInChanges(true);
+				setInChanges(end, true);
 			}
 		}
 	}
 
+	/**
+	 * Adds a newly-added row to the running stats.
+	 *
+	 * @param i
+	 */
+	private void accumulateStats(int i)
+	{
+		AveragedRow row = getRow(i);
+		int faults = getFaults(i);
+		fAllRowsStats.add(row, getStroke(i), faults);
+		fWindowAllStats.add(row, getStroke(i), faults);
+		fNRowsAccumulated = i+1;
+		if (fNRowsAccumulated>fInChangesFaults.length)
+			fInChangesFaults = Arrays.copyOf(fInChangesFaults, fInChangesFaults.length*2);
+		if (row.isInChanges())
+			addInChangesStats(i);
+		slideWindow();
+	}
+
+	/**
+	 * Changes the "in changes" flag of an earlier row, moving it in or out of the running in-changes stats.
+	 *
+	 * @param i
+	 * @param inChanges
+	 */
+	private void setInChanges(int i, boolean inChanges)
+	{
+		AveragedRow row = getRow(i);
+		if (row.isInChanges()==inChanges)
+			return;
+		row.changeInChanges(inChanges, ++fVersion);
+		if (i>=fNRowsAccumulated)
+			return;
+		if (inChanges)
+		{
+			addInChangesStats(i);
+		}
+		else
+		{
+			fInChangesStats.remove(row, getStroke(i), fInChangesFaults[i]);
+			if (i>=fWindowStart)
+				fWindowInChangesStats.remove(row, getStroke(i), fInChangesFaults[i]);
+			if (i<fInChangesSums.getNValid())
+				fInChangesSums.update(i, row, getStroke(i)==TouchStats.HANDSTROKE, -1, fInChangesFaults[i]);
+			updateNextInChangesFaults(i);
+		}
+	}
+
+	private void addInChangesStats(int i)
+	{
+		AveragedRow row = getRow(i);
+		int faults = TouchStats.countFaults(row, TouchStats.FAULTFACTOR, getPreviousInChangesTime(i));
+		fInChangesFaults[i] = faults;
+		fInChangesStats.add(row, getStroke(i), faults);
+		if (i>=fWindowStart)
+			fWindowInChangesStats.add(row, getStroke(i), faults);
+		if (i<fInChangesSums.getNValid())
+			fInChangesSums.update(i, row, getStroke(i)==TouchStats.HANDSTROKE, 1, faults);
+		updateNextInChangesFaults(i);
+	}
+
+	/**
+	 * The fault count of a row depends on the last strike of the previous row counted, so when row i moves in
+	 * or out of changes, the next row in changes needs its count redone.
+	 *
+	 * @param i
+	 */
+	private void updateNextInChangesFaults(int i)
+	{
+		for (int j=i+1; j<fNRowsAccumulated; j++)
+		{
+			AveragedRow row = getRow(j);
+			if (row.isInChanges())
+			{
+				int faults = TouchStats.countFaults(row, TouchStats.FAULTFACTOR, getPreviousInChangesTime(j));
+				fInChangesStats.addFaults(faults-fInChangesFaults[j]);
+				if (j>=fWindowStart)
+					fWindowInChangesStats.addFaults(faults-fInChangesFaults[j]);
+				if (j<fInChangesSums.getNValid())
+					fInChangesSums.addFaults(j, faults-fInChangesFaults[j]);
+				fInChangesFaults[j] = faults;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the last strike time of the nearest row in changes before row i, or 0 if there isn't one.
+	 */
+	private int getPreviousInChangesTime(int i)
+	{
+		for (int j=i-1; j>=0; j--)
+		{
+			AveragedRow row = getRow(j);
+			if (row.isInChanges())
+				return TouchStats.getLastStrikeTime(row, 0);
+		}
+		return 0;
+	}
+
+	private int getStroke(int i)
+	{
+		return TouchStats.getStroke(i, getRow(0).isHandstroke());
+	}
+
+	/**
+	 * The averaged values of CHUNK_ROWS consecutive rows. Per-strike columns have MAXNBELLS entries per row,
+	 * the first getRowSize() of which are used.
+	 */
+	static class Columns
+	{
+		final int[] fRowEndTime = new int[CHUNK_ROWS];
+		final int[] fRowDuration = new int[CHUNK_ROWS];
+		final double[] fHandstrokeGap = new double[CHUNK_ROWS];
+		final double[] fAverageGap = new double[CHUNK_ROWS];
+		final double[] fMeanInterbellGap = new double[CHUNK_ROWS];
+		final double[] fVariance = new double[CHUNK_ROWS];
+		final double[] fDiscreteVariance = new double[CHUNK_ROWS];
+		final int[] fCorrectTime = new int[CHUNK_ROWS*NBELLS];
+		final int[] fLateness = new int[CHUNK_ROWS*NBELLS];
+
+		void setRow(int r, Row row, int endTime, double handstrokeGap, int duration)
+		{
+			fRowEndTime[r] = endTime;
+			fRowDuration[r] = duration;
+			fHandstrokeGap[r] = handstrokeGap;
+
+			// Calculate average gap
+			int nbells = row.getNBells();
+			double n = nbells;
+			if (row.isHandstroke())
+				n+= handstrokeGap;
+			double averageGap = (double)duration/n;
+			fAverageGap[r] = averageGap;
+
+			// Calculate correct strike times, and from them lateness and row variance.
+			int size = row.getRowSize();
+			int first = r*NBELLS;
+			double d = 0.0;
+			double dd = 0.0;
+			for (int place=1; place<=size; place++)
+			{
+				int correctTime = endTime-(int)(averageGap*(nbells-place));
+				int lateness = row.getStrikeTime(place)-correctTime;
+				fCorrectTime[first+place-1] = correctTime;
+				fLateness[first+place-1] = lateness;
+				double t = lateness;
+				d+= t*t;
+				int x = (int)(Math.abs(t)/AveragedRow.GOOD_CUTOFF);
+				t = x*AveragedRow.GOOD_CUTOFF;
+				dd+= t*t;
+			}
+			if (size>0)
+			{
+				d = d/size;
+				dd = dd/size;
+			}
+			fVariance[r] = d;
+			fDiscreteVariance[r] = dd;
+
+			// Actual inter-bell gap, not including lead
+			double gap = 0.0;
+			if (size>1)
+				gap = (row.getStrikeTime(size)-row.getStrikeTime(1))/(size-1);
+			fMeanInterbellGap[r] = gap;
+		}
+	}
+
+	/**
+	 * A change to the "in changes" flag of a row already added, kept by the row - see AveragedRow.changeInChanges().
+	 */
+	static class FlagChange
+	{
+		final int fVersion;
+		final boolean fWasInChanges;
+		/** The row's previous change, if any */
+		final FlagChange fPrevious;
+
+		FlagChange(int version, boolean wasInChanges, FlagChange previous)
+		{
+			fVersion = version;
+			fWasInChanges = wasInChanges;
+			fPrevious = previous;
+		}
+	}
+
+	/**
+	 * A fixed run of rows, as they were when the snapshot was taken. Rows are numbered from 0. Rows are only
+	 * ever added, so the rows themselves are read from the log; but an "in changes" flag may since have been
+	 * changed, so isInChanges() undoes any changes made to the row after the snapshot's version. Only the last
+	 * few rows ever change, and then only once or twice, so this is effectively constant time. TouchStats uses
+	 * this, rather than the rows' own flags, for its in-changes stats.
+	 */
+	class Snapshot implements AveragedRowSource
+	{
+		private int fFirst;
+		private int fNRows;
+		private int fSnapshotVersion;
+
+		/**
+		 * Must be created holding the AveragedRowData lock.
+		 */
+		Snapshot(int first, int nrows)
+		{
+			this(first, nrows, fVersion);
+		}
+
+		/**
+		 * @param first
+		 * @param nrows
+		 * @param version the flags are read as they were at this version
+		 */
+		Snapshot(int first, int nrows, int version)
+		{
+			fFirst = first;
+			fNRows = nrows;
+			fSnapshotVersion = version;
+		}
+
+		public int getNRows()
+		{
+			return fNRows;
+		}
+
+		public AveragedRow getRow(int i)
+		{
+			return AveragedRowData.this.getRow(fFirst+i);
+		}
+
+		/**
+		 * @param i 0..nrows-1
+		 * @return the row's "in changes" flag as at the snapshot
+		 */
+		boolean isInChanges(int i)
+		{
+			return AveragedRowData.this.getRow(fFirst+i).isInChanges(fSnapshotVersion);
+		}
+
+		int getFirstRow()
+		{
+			return fFirst;
+		}
+
+		AveragedRowData getData()
+		{
+			return AveragedRowData.this;
+		}
+	}
 }
@@ -0,0 +1,205 @@
+package org.pealfactory.strike.data;
+
+/**
+ * A histogram of lateness values in milliseconds, from which percentiles can be read - so a bell
+ * which is always slightly late can be told apart from one which is usually right but sometimes wildly out,
+ * which the mean and SD alone can't do.
+ * <p>
+ * Values are rounded to the nearest millisecond and bucketed by magnitude, early and late separately. Below
+ * LINEAR_LIMIT ms each millisecond has its own bucket; above that, each power of two is split into
+ * SUB_BUCKETS buckets, so the bucket width is never more than about 3% of the value (as in HdrHistogram).
+ * Magnitudes are capped at MAX_MS. Only the buckets from the lowest to the highest value seen are stored,
+ * usually a few hundred, so memory is bounded however many values there are; adding or removing a value is
+ * constant time (apart from occasionally growing the range), and a percentile is found by one scan over the
+ * stored buckets.
+ * Histograms are merged by adding their counts, for example to total a band's touches over a season.
+ * </p>
+ * <p>
+ * Not thread-safe - the owner must synchronize.
+ * </p>
+ * <p>
+ * CAS Copyright 2003-2012 Mark B Davies
+ * </p>
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * </p>
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * </p>
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * </p>
+ *
+ * @author MBD
+ */
+public class LatenessHistogram
+{
+	/** Magnitudes below this have one bucket per millisecond */
+	public static final int LINEAR_LIMIT = 64;
+	/** Buckets per power of two above LINEAR_LIMIT */
+	public static final int SUB_BUCKETS = 32;
+	/** Largest magnitude recorded; larger values are counted as this */
+	public static final int MAX_MS = 65535;
+
+	private static final int LINEAR_BITS = 6;
+	private static final int SUB_BITS = 5;
+	/** Buckets for each sign */
+	private static final int NMAGNITUDES = LINEAR_LIMIT+(16-LINEAR_BITS)*SUB_BUCKETS;
+
+	/** Total number of buckets */
+	private static final int NBUCKETS = 2*NMAGNITUDES;
+	/** Extra buckets allocated either side of a new value when the range grows */
+	private static final int SLACK = 16;
+	private static final int[] EMPTY = new int[0];
+
+	/** Bucket counts from bucket fOffset, in order of value: early values from NMAGNITUDES-1 down to 1, then
+	 *  late values from NMAGNITUDES */
+	private int[] fCounts = EMPTY;
+	private int fOffset = 0;
+	private long fCount = 0;
+
+	public LatenessHistogram()
+	{
+	}
+
+	public LatenessHistogram(LatenessHistogram h)
+	{
+		fCounts = h.fCounts.clone();
+		fOffset = h.fOffset;
+		fCount = h.fCount;
+	}
+
+	public void add(double lateness)
+	{
+		int i = getIndex(lateness);
+		include(i, i);
+		fCounts[i-fOffset]++;
+		fCount++;
+	}
+
+	/**
+	 * Removes a value previously added.
+	 *
+	 * @param lateness
+	 */
+	public void remove(double lateness)
+	{
+		int i = getIndex(lateness)-fOffset;
+		if (i>=0 && i<fCounts.length && fCounts[i]>0)
+		{
+			fCounts[i]--;
+			fCount--;
+		}
+	}
+
+	/**
+	 * Adds all the values of another histogram to this one.
+	 *
+	 * @param h
+	 */
+	public void merge(LatenessHistogram h)
+	{
+		if (h.fCounts.length==0)
+			return;
+		include(h.fOffset, h.fOffset+h.fCounts.length-1);
+		for (int i=0; i<h.fCounts.length; i++)
+			fCounts[h.fOffset+i-fOffset]+= h.fCounts[i];
+		fCount+= h.fCount;
+	}
+
+	public void clear()
+	{
+		fCounts = EMPTY;
+		fOffset = 0;
+		fCount = 0;
+	}
+
+	/**
+	 * Grows the stored range of buckets if necessary to include buckets first..last.
+	 */
+	private void include(int first, int last)
+	{
+		int end = fOffset+fCounts.length;
+		if (fCounts.length>0 && first>=fOffset && last<end)
+			return;
+		int newOffset = Math.max(0, Math.min(first-SLACK, fCounts.length>0? fOffset: first));
+		int newEnd = Math.min(NBUCKETS, Math.max(last+1+SLACK, fCounts.length>0? end: last+1));
+		int[] counts = new int[newEnd-newOffset];
+		if (fCounts.length>0)
+			System.arraycopy(fCounts, 0, counts, fOffset-newOffset, fCounts.length);
+		fCounts = counts;
+		fOffset = newOffset;
+	}
+
+	public long getCount()
+	{
+		return fCount;
+	}
+
+	/**
+	 * @param percentile 0..100, e.g. 50 for the median
+	 * @return the lateness (negative if early) which the given percentage of values are at or below, accurate
+	 * to the bucket width; 0 if the histogram is empty
+	 */
+	public double getPercentile(double percentile)
+	{
+		if (fCount==0)
+			return 0.0;
+		long rank = (long)Math.ceil(Math.max(0.0, Math.min(100.0, percentile))*fCount/100.0);
+		rank = Math.max(1, rank);
+		long total = 0;
+		for (int i=0; i<fCounts.length; i++)
+		{
+			total+= fCounts[i];
+			if (total>=rank)
+				return getValue(fOffset+i);
+		}
+		return getValue(fOffset+fCounts.length-1);
+	}
+
+	private static int getIndex(double lateness)
+	{
+		int ms = (int)Math.min(MAX_MS, Math.round(Math.abs(lateness)));
+		int bucket = getBucket(ms);
+		if (lateness<0 && ms>0)
+			return NMAGNITUDES-bucket;
+		return NMAGNITUDES+bucket;
+	}
+
+	private static int getBucket(int ms)
+	{
+		if (ms<LINEAR_LIMIT)
+			return ms;
+		int exponent = 31-Integer.numberOfLeadingZeros(ms);
+		int shift = exponent-SUB_BITS;
+		return LINEAR_LIMIT+(exponent-LINEAR_BITS)*SUB_BUCKETS+(ms>>shift)-SUB_BUCKETS;
+	}
+
+	/**
+	 * @param i bucket index, 0..NBUCKETS-1
+	 * @return the middle of the bucket's range of values
+	 */
+	private static double getValue(int i)
+	{
+		if (i>=NMAGNITUDES)
+			return getMagnitude(i-NMAGNITUDES);
+		return -getMagnitude(NMAGNITUDES-i);
+	}
+
+	private static double getMagnitude(int bucket)
+	{
+		if (bucket<LINEAR_LIMIT)
+			return bucket;
+		int n = bucket-LINEAR_LIMIT;
+		int shift = n/SUB_BUCKETS+LINEAR_BITS-SUB_BITS;
+		int lowest = (SUB_BUCKETS+n%SUB_BUCKETS)<<shift;
+		return lowest+((1<<shift)-1)/2.0;
+	}
+}
@@ -0,0 +1,193 @@
+package org.pealfactory.strike.data;
+
+import org.pealfactory.strike.Constants;
+
+/**
+ * Utilities for rows packed into a 64-bit signature. With at most MAXNBELLS=16 bells, the bell at each place
+ * fits in a 4-bit nibble: place 1 is held in the lowest nibble, as bell-1. A signature doesn't record how
+ * many places the row has, so every method is also given the row size; nibbles beyond the size are zero.
+ * Rows of more than 16 strikes only have their first 16 places packed.
+ * <p>
+ * Signatures are maintained by RawRow and the rows of a RowStore, so comparing rows, testing for rounds
+ * or hashing a row is a few arithmetic operations rather than a walk over the row.
+ * </p>
+ * <p>
+ * CAS Copyright 2003-2012 Mark B Davies
+ * </p>
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * </p>
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * </p>
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * </p>
+ *
+ * @author MBD
+ */
+public class PackedRow implements Constants
+{
+	/** A 1 in every nibble */
+	private static final long ONES = 0x1111111111111111L;
+	/** The high bit of every nibble */
+	private static final long HIGHS = 0x8888888888888888L;
+	/** Rounds on 16 bells */
+	private static final long ROUNDS = 0xFEDCBA9876543210L;
+
+	private PackedRow()
+	{
+	}
+
+	/**
+	 * @param row
+	 * @return signature of the given row
+	 */
+	public static long pack(Row row)
+	{
+		long sig = 0;
+		int n = Math.min(row.getRowSize(), MAXNBELLS);
+		for (int place=1; place<=n; place++)
+			sig = setBellAt(sig, place, row.getBellAt(place));
+		return sig;
+	}
+
+	/**
+	 * @param sig
+	 * @param place 1..16
+	 * @param bell 1..16
+	 * @return the signature with the given bell at the given place
+	 */
+	public static long setBellAt(long sig, int place, int bell)
+	{
+		int shift = 4*(place-1);
+		return (sig&~(0xFL<<shift)) | ((long)(bell-1)<<shift);
+	}
+
+	/**
+	 * @param sig
+	 * @param place 1..16
+	 * @return bell 1..16
+	 */
+	public static int getBellAt(long sig, int place)
+	{
+		return (int)((sig>>>(4*(place-1)))&0xF)+1;
+	}
+
+	/**
+	 * Finds the first place of a bell, checking all places at once.
+	 *
+	 * @param sig
+	 * @param size number of places in the row
+	 * @param bell 1..16
+	 * @return place 1..size, or -1 if the bell is not in the row
+	 */
+	public static int findBell(long sig, int size, int bell)
+	{
+		long x = sig^(ONES*(bell-1));
+		// Sets the high bit of any zero nibble. Borrows can also set bits above the first zero nibble,
+		// but never below it, so the lowest bit set is always right.
+		long zeros = (x-ONES)&~x&HIGHS&mask(size);
+		if (zeros==0)
+			return -1;
+		return Long.numberOfTrailingZeros(zeros)/4+1;
+	}
+
+	/**
+	 * @param size number of places
+	 * @return mask covering the nibbles of the given number of places
+	 */
+	public static long mask(int size)
+	{
+		if (size>=MAXNBELLS)
+			return -1L;
+		return (1L<<(4*size))-1;
+	}
+
+	/**
+	 * @param nbells
+	 * @return signature of rounds on the given number of bells
+	 */
+	public static long rounds(int nbells)
+	{
+		return ROUNDS&mask(nbells);
+	}
+
+	/**
+	 * @param sig
+	 * @param size
+	 * @return true if the row is exactly rounds - bells 1 to size in order
+	 */
+	public static boolean isRounds(long sig, int size)
+	{
+		return size<=MAXNBELLS && sig==rounds(size);
+	}
+
+	/**
+	 * Permutes a row: place p of the result holds the bell at place perm(p) of the row. Composing
+	 * rounds with a permutation therefore gives the permutation itself.
+	 *
+	 * @param sig row
+	 * @param perm permutation, as a signature
+	 * @param size number of places in both
+	 * @return
+	 */
+	public static long permute(long sig, long perm, int size)
+	{
+		long result = 0;
+		int n = Math.min(size, MAXNBELLS);
+		for (int place=1; place<=n; place++)
+			result = setBellAt(result, place, getBellAt(sig, getBellAt(perm, place)));
+		return result;
+	}
+
+	/**
+	 * @param sig a row containing each bell 1..size exactly once
+	 * @param size
+	 * @return the permutation which takes the row back to rounds
+	 */
+	public static long inverse(long sig, int size)
+	{
+		long result = 0;
+		int n = Math.min(size, MAXNBELLS);
+		for (int place=1; place<=n; place++)
+			result = setBellAt(result, getBellAt(sig, place), place);
+		return result;
+	}
+
+	/**
+	 * A well-mixed hash of a signature, suitable for open-addressed tables.
+	 *
+	 * @param sig
+	 * @return
+	 */
+	public static int hash(long sig)
+	{
+		long h = sig*0x9E3779B97F4A7C15L;
+		h^= h>>>32;
+		h*= 0xBF58476D1CE4E5B9L;
+		h^= h>>>29;
+		return (int)h;
+	}
+
+	/**
+	 * @param sig
+	 * @param size
+	 * @return the row as bell characters, e.g. "2143"
+	 */
+	public static String toString(long sig, int size)
+	{
+		int n = Math.min(size, MAXNBELLS);
+		StringBuilder s = new StringBuilder(n);
+		for (int place=1; place<=n; place++)
+			s.append(BELL_CHARS.charAt(getBellAt(sig, place)-1));
+		return s.toString();
+	}
+}
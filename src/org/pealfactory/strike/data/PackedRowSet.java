@@ -0,0 +1,132 @@
+package org.pealfactory.strike.data;
+
+import java.util.*;
+
+/**
+ * An open-addressed hash table from row signatures (see PackedRow) to an int, such as the index of the row
+ * where the signature was first seen. Keys and values are held in primitive arrays, so adding a row costs
+ * no allocation beyond the occasional doubling of the table.
+ * <p>
+ * CAS Copyright 2003-2012 Mark B Davies
+ * </p>
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * </p>
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * </p>
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * </p>
+ *
+ * @author MBD
+ */
+public class PackedRowSet
+{
+	private static final int INITIAL_CAPACITY = 1024;
+	/** Slots with this value are empty */
+	private static final int EMPTY = -1;
+
+	private long[] fKeys;
+	private int[] fValues;
+	private int fSize = 0;
+
+	public PackedRowSet()
+	{
+		this(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize number of rows to size the table for
+	 */
+	public PackedRowSet(int expectedSize)
+	{
+		int capacity = Integer.highestOneBit(Math.max(16, expectedSize*2-1))<<1;
+		fKeys = new long[capacity];
+		fValues = new int[capacity];
+		Arrays.fill(fValues, EMPTY);
+	}
+
+	public int size()
+	{
+		return fSize;
+	}
+
+	public void clear()
+	{
+		Arrays.fill(fValues, EMPTY);
+		fSize = 0;
+	}
+
+	/**
+	 * @param sig
+	 * @return the value stored with the signature, or -1 if it is not in the set
+	 */
+	public int get(long sig)
+	{
+		int mask = fKeys.length-1;
+		int i = PackedRow.hash(sig)&mask;
+		while (fValues[i]!=EMPTY)
+		{
+			if (fKeys[i]==sig)
+				return fValues[i];
+			i = (i+1)&mask;
+		}
+		return EMPTY;
+	}
+
+	/**
+	 * Adds a signature to the set, unless it is already there.
+	 *
+	 * @param sig
+	 * @param value non-negative value to store with the signature
+	 * @return the value already stored if the signature was present (in which case it is not changed), otherwise -1
+	 */
+	public int putIfAbsent(long sig, int value)
+	{
+		if (value<0)
+			throw new IllegalArgumentException("Negative value "+value);
+		int mask = fKeys.length-1;
+		int i = PackedRow.hash(sig)&mask;
+		while (fValues[i]!=EMPTY)
+		{
+			if (fKeys[i]==sig)
+				return fValues[i];
+			i = (i+1)&mask;
+		}
+		fKeys[i] = sig;
+		fValues[i] = value;
+		fSize++;
+		// Keep the load factor at or below a half
+		if (fSize*2>fKeys.length)
+			grow();
+		return EMPTY;
+	}
+
+	private void grow()
+	{
+		long[] keys = fKeys;
+		int[] values = fValues;
+		fKeys = new long[keys.length*2];
+		fValues = new int[values.length*2];
+		Arrays.fill(fValues, EMPTY);
+		int mask = fKeys.length-1;
+		for (int j=0; j<keys.length; j++)
+		{
+			if (values[j]==EMPTY)
+				continue;
+			int i = PackedRow.hash(keys[j])&mask;
+			while (fValues[i]!=EMPTY)
+				i = (i+1)&mask;
+			fKeys[i] = keys[j];
+			fValues[i] = values[j];
+		}
+	}
+}
@@ -5,6 +5,10 @@ import org.pealfactory.strike.*;
 import java.util.*;
 
 /**
+ * A row under construction by the error-correction and row-building stages. Strikes are held in
+ * primitive arrays rather than as Bong objects, so that rows can be cleared and reused, and strikes moved
+ * between rows, without allocating. The Bong methods remain for convenience, but getBong() and the
+ * iterator create new Bongs on each call - changing one does not change the row.
  * <p>
  * CAS Copyright 2003-2012 Mark B Davies
  * </p>
@@ -30,27 +34,39 @@ import java.util.*;
 public class RawRow implements Row, Iterable<Bong>
 {
 	private boolean fHandstroke;
-	private List<Bong> fBells;
+	/** Strike columns, place p held at index p-1 */
+	private int[] fBell;
+	private int[] fTime;
+	private int[] fStroke;
+	private int fSize = 0;
 	private int fNBells = 0;
+	/** Bell to place index: fPlaceOf[bell-1] is the first place of the bell, if its bit is set in fBellsPresent */
+	private byte[] fPlaceOf = new byte[Constants.MAXNBELLS];
+	private int fBellsPresent = 0;
+	/** Bell order packed into nibbles - see PackedRow */
+	private long fSignature = 0;
 
   public RawRow(boolean stroke)
 	{
 		fHandstroke = stroke;
-		fBells = new ArrayList();
+		int capacity = Constants.MAXNBELLS+2;
+		fBell = new int[capacity];
+		fTime = new int[capacity];
+		fStroke = new int[capacity];
 	}
 
 	public String toString()
 	{
 		StringBuffer s = new StringBuffer();
-		if (fBells.size()==0)
+		if (fSize==0)
 			s.append("Empty Row");
 		else
 		{
-			s.append(fBells.get(0).toString());
-			for (int i=1; i<fBells.size(); i++)
+			s.append(getBong(1).toString());
+			for (int place=2; place<=fSize; place++)
 			{
 				s.append(", ");
-				s.append(fBells.get(i).toString());
+				s.append(getBong(place).toString());
 			}
 		}
 		return s.toString();
@@ -59,60 +75,128 @@ public class RawRow implements Row, Iterable<Bong>
 	public String rowAsString()
 	{
 		StringBuffer s = new StringBuffer();
-		if (fBells.size()==0)
+		if (fSize==0)
 			s.append("Empty Row");
 		else
 		{
-			for (int i=0; i<fBells.size(); i++)
+			for (int i=0; i<fSize; i++)
 			{
-				Bong bong = fBells.get(i);
-				s.append(Constants.BELL_CHARS.charAt(bong.bell-1));
+				s.append(Constants.BELL_CHARS.charAt(fBell[i]-1));
 				// Add a stroke indicator if this bell has a different stroke to the row!
-				if ((bong.stroke==Bong.HANDSTROKE)!=fHandstroke)
-					s.append(bong.stroke==Bong.HANDSTROKE? "h": "b");
+				if ((fStroke[i]==Bong.HANDSTROKE)!=fHandstroke)
+					s.append(fStroke[i]==Bong.HANDSTROKE? "h": "b");
 			}
 		}
 		return s.toString();
 	}
 
+	/**
+	 * Iterates over copies of the row's strikes.
+	 *
+	 * @return
+	 */
 	@Override
 	public Iterator<Bong> iterator()
 	{
-		return fBells.iterator();
+		return new Iterator<Bong>(){
+			private int fPlace = 1;
+
+			public boolean hasNext()
+			{
+				return fPlace<=fSize;
+			}
+
+			public Bong next()
+			{
+				if (fPlace>fSize)
+					throw new NoSuchElementException();
+				return getBong(fPlace++);
+			}
+
+			public void remove()
+			{
+				removeStrike(--fPlace);
+			}
+		};
 	}
 
 	/**
+	 * Creates a new Bong for the strike at the given place - prefer getBellAt(), getStrikeTime()
+	 * and getStroke().
+	 *
 	 * @param place 1..n
 	 * @return
 	 */
 	public Bong getBong(int place)
 	{
-		return fBells.get(place-1);
+		checkPlace(place);
+		return new Bong(fBell[place-1], fTime[place-1], fStroke[place-1]);
 	}
 
 	public int getBellAt(int place)
 	{
-		return getBong(place).bell;
+		checkPlace(place);
+		return fBell[place-1];
+	}
+
+	public int getStrikeTime(int place)
+	{
+		checkPlace(place);
+		return fTime[place-1];
+	}
+
+	/**
+	 * @param place 1..n
+	 * @return Bong.HANDSTROKE, Bong.BACKSTROKE or Bong.UNKNOWNSTROKE
+	 */
+	public int getStroke(int place)
+	{
+		checkPlace(place);
+		return fStroke[place-1];
+	}
+
+	private void checkPlace(int place)
+	{
+		if (place<1 || place>fSize)
+			throw new IndexOutOfBoundsException("Place: "+place+", Size: "+fSize);
 	}
 
 	public Bong getLastBong()
 	{
-		return fBells.get(getRowSize()-1);
+		return getBong(fSize);
 	}
 
 	public Bong removeBong(int place)
 	{
-		return fBells.remove(place-1);
+		Bong bong = getBong(place);
+		removeStrike(place);
+		return bong;
 	}
 
 	public Bong removeLastBong()
 	{
-		return fBells.remove(getRowSize()-1);
+		return removeBong(fSize);
 	}
 
-	public int getStrikeTime(int place)
+	/**
+	 * As removeBong(), but without creating a Bong for the removed strike.
+	 *
+	 * @param place 1..n
+	 */
+	public void removeStrike(int place)
 	{
-		return getBong(place).time;
+		checkPlace(place);
+		int n = fSize-place;
+		System.arraycopy(fBell, place, fBell, place-1, n);
+		System.arraycopy(fTime, place, fTime, place-1, n);
+		System.arraycopy(fStroke, place, fStroke, place-1, n);
+		fSize--;
+		reindex();
+	}
+
+	public void removeLastStrike()
+	{
+		removeStrike(fSize);
 	}
 
 	public int getFirstStrikeTime()
@@ -127,12 +211,40 @@ public class RawRow implements Row, Iterable<Bong>
 
 	public int findBell(int bell)
 	{
-		for (int place=1; place<=fBells.size(); place++)
+		if (bell<1 || bell>Constants.MAXNBELLS || (fBellsPresent&(1<<(bell-1)))==0)
+			return -1;
+		return fPlaceOf[bell-1];
+	}
+
+	private void indexBell(int bell, int place)
+	{
+		int bit = 1<<(bell-1);
+		if ((fBellsPresent&bit)==0)
 		{
-			if (getBellAt(place)==bell)
-				return place;
+			fBellsPresent|= bit;
+			fPlaceOf[bell-1] = (byte)place;
 		}
-		return -1;
+	}
+
+	/**
+	 * Rebuilds the bell to place index and signature after strikes have moved place. Still linear,
+	 * but only needed when the row is changed other than at the end.
+	 */
+	private void reindex()
+	{
+		fBellsPresent = 0;
+		fSignature = 0;
+		for (int i=0; i<fSize; i++)
+		{
+			indexBell(fBell[i], i+1);
+			if (i<Constants.MAXNBELLS)
+				fSignature = PackedRow.setBellAt(fSignature, i+1, fBell[i]);
+		}
+	}
+
+	public long getSignature()
+	{
+		return fSignature;
 	}
 
 	public boolean isHandstroke()
@@ -141,11 +253,16 @@ public class RawRow implements Row, Iterable<Bong>
 	}
 	
 	public boolean isMatchingStroke(Bong bong)
+	{
+		return isMatchingStroke(bong.stroke);
+	}
+
+	public boolean isMatchingStroke(int stroke)
 	{
 		if (isHandstroke())
-			return bong.stroke==Bong.HANDSTROKE;
+			return stroke==Bong.HANDSTROKE;
 		else
-			return bong.stroke==Bong.BACKSTROKE;
+			return stroke==Bong.BACKSTROKE;
 	}
 
 	public void setHandstroke(boolean handstroke)
@@ -154,31 +271,96 @@ public class RawRow implements Row, Iterable<Bong>
 	}
 
 	/**
-	 * Adds a new bong to the end of the row.
+	 * Adds a new bong to the end of the row. The Bong itself is not retained.
 	 *
 	 * @param bong
 	 */
 	public void addBong(Bong bong)
 	{
-		fBells.add(bong);
-		fNBells = Math.max(fNBells, bong.bell);
+		addStrike(bong.bell, bong.time, bong.stroke);
 	}
 
 	/**
-	 * Adds a new bong to the start of the row.
+	 * Adds a new bong to the start of the row. The Bong itself is not retained.
 	 *
 	 * @param bong
 	 */
 	public void addBongAtLead(Bong bong)
 	{
-		fBells.add(0, bong);
-		fNBells = Math.max(fNBells, bong.bell);
+		addStrikeAtLead(bong.bell, bong.time, bong.stroke);
+	}
+
+	/**
+	 * Adds a new strike to the end of the row.
+	 *
+	 * @param bell 1..n
+	 * @param time
+	 * @param stroke
+	 */
+	public void addStrike(int bell, int time, int stroke)
+	{
+		ensureCapacity(fSize+1);
+		fBell[fSize] = bell;
+		fTime[fSize] = time;
+		fStroke[fSize] = stroke;
+		fSize++;
+		fNBells = Math.max(fNBells, bell);
+		indexBell(bell, fSize);
+		if (fSize<=Constants.MAXNBELLS)
+			fSignature = PackedRow.setBellAt(fSignature, fSize, bell);
+	}
+
+	/**
+	 * Adds a new strike to the start of the row.
+	 *
+	 * @param bell 1..n
+	 * @param time
+	 * @param stroke
+	 */
+	public void addStrikeAtLead(int bell, int time, int stroke)
+	{
+		ensureCapacity(fSize+1);
+		System.arraycopy(fBell, 0, fBell, 1, fSize);
+		System.arraycopy(fTime, 0, fTime, 1, fSize);
+		System.arraycopy(fStroke, 0, fStroke, 1, fSize);
+		fBell[0] = bell;
+		fTime[0] = time;
+		fStroke[0] = stroke;
+		fSize++;
+		fNBells = Math.max(fNBells, bell);
+		reindex();
+	}
+
+	private void ensureCapacity(int size)
+	{
+		if (size>fBell.length)
+		{
+			int newSize = Math.max(size, fBell.length*2);
+			fBell = Arrays.copyOf(fBell, newSize);
+			fTime = Arrays.copyOf(fTime, newSize);
+			fStroke = Arrays.copyOf(fStroke, newSize);
+		}
+	}
+
+	/**
+	 * Empties the row so that it can be reused, for example by a row-building stage which has copied
+	 * its contents elsewhere.
+	 *
+	 * @param handstroke new stroke for the row
+	 */
+	public void clear(boolean handstroke)
+	{
+		fSize = 0;
+		fNBells = 0;
+		fBellsPresent = 0;
+		fSignature = 0;
+		fHandstroke = handstroke;
 	}
 
 	public void setBells(Bong[] bells, int first, int last)
 	{
 		for (int i=first; i<=last; i++)
-			fBells.add(bells[i]);
+			addBong(bells[i]);
 	}
 
 	public int getNBells()
@@ -188,7 +370,7 @@ public class RawRow implements Row, Iterable<Bong>
 
 	public int getRowSize()
 	{
-		return fBells.size();
+		return fSize;
 	}
 
 	/**
@@ -200,6 +382,8 @@ public class RawRow implements Row, Iterable<Bong>
 	 */
 	public boolean isCloseToRounds()
 	{
+		if (PackedRow.isRounds(fSignature, fSize))
+			return true;
 		int b1 = getBellAt(1);
 		for (int i=2; i<=getRowSize(); i++)
 		{
@@ -208,7 +392,7 @@ public class RawRow implements Row, Iterable<Bong>
 			{
 				// Allow two bells to be swapped if they are close to each other - adjacent bell numbers,
 				// and say up to 90ms apart.
-				if (b1-b2>1 || getBong(i).time-getBong(i-1).time > 90)
+				if (b1-b2>1 || getStrikeTime(i)-getStrikeTime(i-1) > 90)
 						return false;
 			}
 			b1 = b2;
@@ -223,7 +407,7 @@ public class RawRow implements Row, Iterable<Bong>
 	 */
 	public int getRowDuration()
 	{
-		return getBong(getRowSize()).time-getBong(1).time;
+		return getStrikeTime(getRowSize())-getStrikeTime(1);
 	}
 
 }
@@ -64,6 +64,11 @@ public interface Row
 	 */
 	public int getRowSize();
 
+	/**
+	 * @return bell order of the row packed into a long - see PackedRow
+	 */
+	public long getSignature();
+
 	/**
 	 * Return true if it looks like the band was trying to strike rounds in this change.
 	 *
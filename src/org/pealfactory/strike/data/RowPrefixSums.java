@@ -0,0 +1,289 @@
+package org.pealfactory.strike.data;
+
+import org.pealfactory.strike.Constants;
+
+import java.util.*;
+
+/**
+ * Prefix sums of the per-row and per-bell quantities behind the standard TouchStats, so that the stats for
+ * any range of rows - a lead, a course, a block chosen on the display - can be found in logarithmic time,
+ * rather than by walking the rows again.
+ * <p>
+ * Since handstroke and backstroke rows alternate, the sums are kept separately for odd and even rows, each
+ * in a Fenwick (binary indexed) tree: row i is at position i/2+1 of the tree for its parity, and each node
+ * holds the totals over a power-of-two run of positions ending at its own. The total for one stroke over a
+ * range is then the difference of two prefix totals, each a walk of O(log n) nodes, and the whole pull total
+ * the sum of both strokes. For each row are kept its count, faults, interbell gap, duration, striking and
+ * discrete variances and handstroke gap (with squares where a standard deviation is needed), and for each
+ * bell the count, sum and sum of squares of lateness.
+ * </p>
+ * <p>
+ * Only rows which are "counted" contribute, which lets AveragedRowData keep one set of sums for all rows
+ * and another for rows in changes. Rows are added in order, up to getNValid(); when an earlier row moves
+ * in or out of changes, or its fault count changes, update() or addFaults() adjust just the O(log n) nodes
+ * covering it, so nothing needs rebuilding. Minimum and maximum durations, and handstroke gaps by leading
+ * bell, can't be found this way, so are left to TouchStats to work out from the rows if asked for.
+ * </p>
+ * <p>
+ * CAS Copyright 2003-2012 Mark B Davies
+ * </p>
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * </p>
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * </p>
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * </p>
+ *
+ * @author MBD
+ */
+class RowPrefixSums
+{
+	private static final int WHOLEPULL = TouchStats.WHOLEPULL;
+	private static final int HANDSTROKE = TouchStats.HANDSTROKE;
+	private static final int BACKSTROKE = TouchStats.BACKSTROKE;
+	private static final int NBELLS = Constants.MAXNBELLS;
+
+	/** Row columns */
+	private static final int COUNT = 0;
+	private static final int FAULTS = 1;
+	private static final int GAP = 2;
+	private static final int DURATION = 3;
+	private static final int DURATION_SQ = 4;
+	private static final int VARIANCE = 5;
+	private static final int DISCRETE = 6;
+	private static final int HGAP = 7;
+	private static final int HGAP_SQ = 8;
+	private static final int NCOLUMNS = 9;
+	/** Bell columns follow the row columns: count, sum and sum of squares of lateness for each bell */
+	private static final int STRIDE = NCOLUMNS+3*NBELLS;
+
+	/** Fenwick trees for even and odd rows; node k (from 1) takes STRIDE entries from k*STRIDE */
+	private double[][] fTrees = {new double[129*STRIDE], new double[129*STRIDE]};
+	private int fNValid = 0;
+
+	int getNValid()
+	{
+		return fNValid;
+	}
+
+	/**
+	 * Adds the next row, which must be row getNValid().
+	 *
+	 * @param row
+	 * @param handstroke true if TouchStats treats the row as a handstroke
+	 * @param counted false if the row shouldn't contribute to the sums
+	 * @param faults the row's fault count, at TouchStats.FAULTFACTOR
+	 */
+	void add(AveragedRow row, boolean handstroke, boolean counted, int faults)
+	{
+		int i = fNValid;
+		int parity = i&1;
+		int k = (i>>1)+1;
+		double[] tree = fTrees[parity];
+		if ((k+1)*STRIDE>tree.length)
+		{
+			tree = Arrays.copyOf(tree, Math.max((k+1)*STRIDE, tree.length*2));
+			fTrees[parity] = tree;
+		}
+		int node = k*STRIDE;
+		Arrays.fill(tree, node, node+STRIDE, 0.0);
+		if (counted)
+			addRow(tree, node, row, handstroke, 1, faults);
+		// The node covers lowbit(k) positions; all but its own are already totalled in nodes k-1, k-2, k-4...
+		for (int j=1; j<(k&-k); j<<=1)
+		{
+			int child = (k-j)*STRIDE;
+			for (int c=0; c<STRIDE; c++)
+				tree[node+c]+= tree[child+c];
+		}
+		fNValid++;
+	}
+
+	/**
+	 * Adds a row already in the sums (sign 1), or takes it out again (sign -1), for example when it moves in or
+	 * out of changes. The row must not be counted twice, or taken out unless counted, with the same fault count.
+	 *
+	 * @param i row, less than getNValid()
+	 * @param row
+	 * @param handstroke
+	 * @param sign 1 or -1
+	 * @param faults
+	 */
+	void update(int i, AveragedRow row, boolean handstroke, int sign, int faults)
+	{
+		double[] tree = fTrees[i&1];
+		int n = getNPositions(i&1);
+		for (int k=(i>>1)+1; k<=n; k+= k&-k)
+			addRow(tree, k*STRIDE, row, handstroke, sign, faults);
+	}
+
+	/**
+	 * Changes the fault count of a counted row already in the sums.
+	 *
+	 * @param i row, less than getNValid()
+	 * @param delta
+	 */
+	void addFaults(int i, int delta)
+	{
+		double[] tree = fTrees[i&1];
+		int n = getNPositions(i&1);
+		for (int k=(i>>1)+1; k<=n; k+= k&-k)
+			tree[k*STRIDE+FAULTS]+= delta;
+	}
+
+	private void addRow(double[] tree, int node, AveragedRow row, boolean handstroke, int sign, int faults)
+	{
+		tree[node+COUNT]+= sign;
+		tree[node+FAULTS]+= sign*faults;
+		tree[node+GAP]+= sign*row.getMeanInterbellGap();
+		int duration = row.getRowDuration();
+		tree[node+DURATION]+= sign*duration;
+		tree[node+DURATION_SQ]+= sign*(double)duration*duration;
+		tree[node+VARIANCE]+= sign*row.getVariance();
+		tree[node+DISCRETE]+= sign*row.getDiscreteVariance();
+		if (handstroke)
+		{
+			double hg = row.getHandstrokeGapMs();
+			tree[node+HGAP]+= sign*hg;
+			tree[node+HGAP_SQ]+= sign*hg*hg;
+		}
+		for (int place=1; place<=row.getRowSize(); place++)
+		{
+			int bell = row.getBellAt(place);
+			if (bell<1 || bell>NBELLS)
+				continue;
+			double lateness = row.getLatenessMilliseconds(place);
+			int b = node+NCOLUMNS+3*(bell-1);
+			tree[b]+= sign;
+			tree[b+1]+= sign*lateness;
+			tree[b+2]+= sign*lateness*lateness;
+		}
+	}
+
+	/**
+	 * @param parity
+	 * @return number of rows of the given parity in the sums, i.e. the size of its tree
+	 */
+	private int getNPositions(int parity)
+	{
+		return getPosition(fNValid, parity);
+	}
+
+	/**
+	 * @param row
+	 * @param parity
+	 * @return number of rows of the given parity before the given row
+	 */
+	private static int getPosition(int row, int parity)
+	{
+		return (row-parity+1)>>1;
+	}
+
+	/**
+	 * @param first
+	 * @param end
+	 * @param parity 0 for even rows, 1 for odd rows
+	 * @param column
+	 * @return total of the column over rows first..end-1 of the given parity
+	 */
+	private double sum(int first, int end, int parity, int column)
+	{
+		if (end<=first)
+			return 0.0;
+		return prefix(parity, getPosition(end, parity), column)-prefix(parity, getPosition(first, parity), column);
+	}
+
+	/**
+	 * @return total of the column over the first k rows of the given parity
+	 */
+	private double prefix(int parity, int k, int column)
+	{
+		double[] tree = fTrees[parity];
+		double total = 0.0;
+		for (; k>0; k-= k&-k)
+			total+= tree[k*STRIDE+column];
+		return total;
+	}
+
+	/**
+	 * Stores the stats for a range of rows into a TouchStats cache, under the same keys StatsAccumulator uses.
+	 * The range must be within getNValid().
+	 *
+	 * @param cache
+	 * @param first first row
+	 * @param end row after the last row
+	 * @param inChanges
+	 * @param evenRowsAreHandstrokes
+	 */
+	void putStats(Map<String,Double> cache, int first, int end, boolean inChanges, boolean evenRowsAreHandstrokes)
+	{
+		int handParity = evenRowsAreHandstrokes? 0: 1;
+		int[] parities = {-1, handParity, 1-handParity};
+		put(cache, "Faults"+TouchStats.FAULTFACTOR, WHOLEPULL, inChanges, total(first, end, -1, FAULTS));
+		put(cache, "NRows", WHOLEPULL, inChanges, total(first, end, -1, COUNT));
+		for (int stroke=0; stroke<3; stroke++)
+		{
+			int parity = parities[stroke];
+			double n = total(first, end, parity, COUNT);
+			put(cache, "MeanInterbellGap", stroke, inChanges, mean(total(first, end, parity, GAP), n));
+			double duration = total(first, end, parity, DURATION);
+			put(cache, "MeanRowLength", stroke, inChanges, mean(duration, n));
+			put(cache, "RowLengthSD", stroke, inChanges, variance(duration, total(first, end, parity, DURATION_SQ), n));
+			put(cache, "StrikingRMSE", stroke, inChanges, mean(total(first, end, parity, VARIANCE), n));
+			put(cache, "DiscreteRMSE", stroke, inChanges, mean(total(first, end, parity, DISCRETE), n));
+			for (int bell=1; bell<=NBELLS; bell++)
+			{
+				int b = NCOLUMNS+3*(bell-1);
+				double nb = total(first, end, parity, b);
+				double sum = total(first, end, parity, b+1);
+				double sumSquares = total(first, end, parity, b+2);
+				put(cache, "BellLateness"+bell, stroke, inChanges, mean(sum, nb));
+				put(cache, "BellSD"+bell, stroke, inChanges, variance(sum, sumSquares, nb));
+				put(cache, "BellRMSE"+bell, stroke, inChanges, mean(sumSquares, nb));
+			}
+		}
+		double nh = total(first, end, handParity, COUNT);
+		double hg = total(first, end, handParity, HGAP);
+		put(cache, "MeanHandstrokeGap", HANDSTROKE, inChanges, mean(hg, nh));
+		put(cache, "HandstrokeGapSD", HANDSTROKE, inChanges, variance(hg, total(first, end, handParity, HGAP_SQ), nh));
+	}
+
+	/**
+	 * @param parity 0 or 1 for one stroke, or -1 for both
+	 */
+	private double total(int first, int end, int parity, int column)
+	{
+		if (parity<0)
+			return sum(first, end, 0, column)+sum(first, end, 1, column);
+		return sum(first, end, parity, column);
+	}
+
+	private static double mean(double sum, double n)
+	{
+		return n>0? sum/n: 0.0;
+	}
+
+	/** Population variance, as StatsAccumulator gives */
+	private static double variance(double sum, double sumSquares, double n)
+	{
+		if (n<=0)
+			return 0.0;
+		double mean = sum/n;
+		return Math.max(0.0, sumSquares/n-mean*mean);
+	}
+
+	private void put(Map<String,Double> cache, String key, int stroke, boolean inChanges, double value)
+	{
+		cache.put(TouchStats.makeCacheKey(key, stroke, inChanges), Double.valueOf(value));
+	}
+}
@@ -0,0 +1,340 @@
+package org.pealfactory.strike.data;
+
+import org.pealfactory.strike.Constants;
+
+import java.util.*;
+
+/**
+ * Running totals for all the standard TouchStats over some set of rows, split by whole pull, handstroke
+ * and backstroke, and by bell. Rows can be added and removed in any order, so the same accumulator serves
+ * both the single-pass calculation in TouchStats, and the incremental stats kept by AveragedRowData as rows
+ * arrive (where rows can drop in or out of the "in changes" set after they have been added).
+ * <p>
+ * Fault counts depend on the previous row in the set, so are worked out by the caller and passed in.
+ * Minimum and maximum durations can't be recovered when a row holding the current extreme is removed; in
+ * that case isExtremesValid() returns false and the owner must rebuild them with resetExtremes() and
+ * addExtremes().
+ * </p>
+ * <p>
+ * The lateness histograms are lent to TouchStats snapshots without copying them, but only when a snapshot is
+ * asked for percentiles - see shareHistograms(). A histogram which has been shared is copied the next time a
+ * row changes it, so a snapshot's histograms never change, and snapshots which never read percentiles cost
+ * no copying at all.
+ * </p>
+ * <p>
+ * CAS Copyright 2003-2012 Mark B Davies
+ * </p>
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * </p>
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * </p>
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * </p>
+ *
+ * @author MBD
+ */
+class StatsAccumulator
+{
+	private static final int WHOLEPULL = TouchStats.WHOLEPULL;
+	private static final int HANDSTROKE = TouchStats.HANDSTROKE;
+	private static final int BACKSTROKE = TouchStats.BACKSTROKE;
+	private static final int NBELLS = Constants.MAXNBELLS+1;
+
+	private Moments[] fInterbellGap = Moments.create(3);
+	private Moments[] fRowLength = Moments.create(3);
+	private Moments[] fStrikingVariance = Moments.create(3);
+	private Moments[] fDiscreteVariance = Moments.create(3);
+	private Moments[][] fBellLateness = new Moments[3][];
+	/** Created for each bell as it is first seen */
+	private LatenessHistogram[][] fLatenessHistograms = new LatenessHistogram[3][NBELLS];
+	/** Set for histograms handed out by shareHistograms(), which must be copied before they are changed */
+	private boolean[][] fHistogramShared = new boolean[3][NBELLS];
+	private Moments fHandstrokeGap = new Moments();
+	private Moments[] fBellHandstrokeGap = Moments.create(NBELLS);
+	private int[] fMinDuration = new int[3];
+	private int[] fMaxDuration = new int[3];
+	private int fMinWholePull;
+	private int fMaxWholePull;
+	private boolean fExtremesValid;
+	private int fFaults = 0;
+	private int fNRows = 0;
+
+	StatsAccumulator()
+	{
+		for (int stroke=0; stroke<3; stroke++)
+			fBellLateness[stroke] = Moments.create(NBELLS);
+		resetExtremes();
+	}
+
+	/**
+	 * @param row
+	 * @param stroke HANDSTROKE or BACKSTROKE - the stroke TouchStats assigns this row to
+	 * @param faults fault count for this row, at TouchStats.FAULTFACTOR
+	 */
+	void add(AveragedRow row, int stroke, int faults)
+	{
+		fFaults+= faults;
+		fNRows++;
+		double gap = row.getMeanInterbellGap();
+		fInterbellGap[WHOLEPULL].add(gap);
+		fInterbellGap[stroke].add(gap);
+		int duration = row.getRowDuration();
+		fRowLength[WHOLEPULL].add(duration);
+		fRowLength[stroke].add(duration);
+		fStrikingVariance[WHOLEPULL].add(row.getVariance());
+		fStrikingVariance[stroke].add(row.getVariance());
+		fDiscreteVariance[WHOLEPULL].add(row.getDiscreteVariance());
+		fDiscreteVariance[stroke].add(row.getDiscreteVariance());
+		for (int place=1; place<=row.getRowSize(); place++)
+		{
+			int bell = row.getBellAt(place);
+			double lateness = row.getLatenessMilliseconds(place);
+			fBellLateness[WHOLEPULL][bell].add(lateness);
+			fBellLateness[stroke][bell].add(lateness);
+			if (fLatenessHistograms[WHOLEPULL][bell]==null)
+			{
+				for (int s=0; s<3; s++)
+				{
+					fLatenessHistograms[s][bell] = new LatenessHistogram();
+					fHistogramShared[s][bell] = false;
+				}
+			}
+			getWritableHistogram(WHOLEPULL, bell).add(lateness);
+			getWritableHistogram(stroke, bell).add(lateness);
+		}
+		if (stroke==HANDSTROKE)
+		{
+			double hg = row.getHandstrokeGapMs();
+			fHandstrokeGap.add(hg);
+			if (row.getRowSize()>0)
+				fBellHandstrokeGap[row.getBellAt(1)].add(hg);
+		}
+		addExtremes(row, stroke);
+	}
+
+	/**
+	 * Removes a row previously added with the same stroke and fault count.
+	 */
+	void remove(AveragedRow row, int stroke, int faults)
+	{
+		fFaults-= faults;
+		fNRows--;
+		double gap = row.getMeanInterbellGap();
+		fInterbellGap[WHOLEPULL].remove(gap);
+		fInterbellGap[stroke].remove(gap);
+		int duration = row.getRowDuration();
+		fRowLength[WHOLEPULL].remove(duration);
+		fRowLength[stroke].remove(duration);
+		fStrikingVariance[WHOLEPULL].remove(row.getVariance());
+		fStrikingVariance[stroke].remove(row.getVariance());
+		fDiscreteVariance[WHOLEPULL].remove(row.getDiscreteVariance());
+		fDiscreteVariance[stroke].remove(row.getDiscreteVariance());
+		for (int place=1; place<=row.getRowSize(); place++)
+		{
+			int bell = row.getBellAt(place);
+			double lateness = row.getLatenessMilliseconds(place);
+			fBellLateness[WHOLEPULL][bell].remove(lateness);
+			fBellLateness[stroke][bell].remove(lateness);
+			if (fLatenessHistograms[WHOLEPULL][bell]!=null)
+			{
+				getWritableHistogram(WHOLEPULL, bell).remove(lateness);
+				getWritableHistogram(stroke, bell).remove(lateness);
+			}
+		}
+		if (stroke==HANDSTROKE)
+		{
+			double hg = row.getHandstrokeGapMs();
+			fHandstrokeGap.remove(hg);
+			if (row.getRowSize()>0)
+				fBellHandstrokeGap[row.getBellAt(1)].remove(hg);
+		}
+		if (duration<=fMinDuration[stroke] || duration>=fMaxDuration[stroke])
+			fExtremesValid = false;
+		if (stroke==BACKSTROKE && (row.getWholePullDuration()<=fMinWholePull || row.getWholePullDuration()>=fMaxWholePull))
+			fExtremesValid = false;
+	}
+
+	/**
+	 * Returns the current lateness histograms, indexed by stroke and bell (null for bells not seen). They won't
+	 * change after this call: each is copied before the accumulator next changes it.
+	 *
+	 * @return
+	 */
+	LatenessHistogram[][] shareHistograms()
+	{
+		LatenessHistogram[][] histograms = new LatenessHistogram[3][];
+		for (int stroke=0; stroke<3; stroke++)
+		{
+			histograms[stroke] = fLatenessHistograms[stroke].clone();
+			Arrays.fill(fHistogramShared[stroke], true);
+		}
+		return histograms;
+	}
+
+	private LatenessHistogram getWritableHistogram(int stroke, int bell)
+	{
+		if (fHistogramShared[stroke][bell])
+		{
+			fLatenessHistograms[stroke][bell] = new LatenessHistogram(fLatenessHistograms[stroke][bell]);
+			fHistogramShared[stroke][bell] = false;
+		}
+		return fLatenessHistograms[stroke][bell];
+	}
+
+	void addFaults(int delta)
+	{
+		fFaults+= delta;
+	}
+
+	boolean isExtremesValid()
+	{
+		return fExtremesValid;
+	}
+
+	void resetExtremes()
+	{
+		Arrays.fill(fMinDuration, Integer.MAX_VALUE);
+		Arrays.fill(fMaxDuration, 0);
+		fMinWholePull = Integer.MAX_VALUE;
+		fMaxWholePull = 0;
+		fExtremesValid = true;
+	}
+
+	void addExtremes(AveragedRow row, int stroke)
+	{
+		int duration = row.getRowDuration();
+		fMinDuration[stroke] = Math.min(fMinDuration[stroke], duration);
+		fMaxDuration[stroke] = Math.max(fMaxDuration[stroke], duration);
+		if (stroke==BACKSTROKE)
+		{
+			int wholePull = row.getWholePullDuration();
+			fMinWholePull = Math.min(fMinWholePull, wholePull);
+			fMaxWholePull = Math.max(fMaxWholePull, wholePull);
+		}
+	}
+
+	/**
+	 * Stores every stat into a TouchStats cache, using the same keys as the TouchStats getters.
+	 *
+	 * @param cache
+	 * @param inChanges
+	 */
+	void putStats(Map<String,Double> cache, boolean inChanges)
+	{
+		put(cache, "Faults"+TouchStats.FAULTFACTOR, WHOLEPULL, inChanges, fFaults);
+		put(cache, "NRows", WHOLEPULL, inChanges, fNRows);
+		for (int stroke=0; stroke<3; stroke++)
+		{
+			put(cache, "MeanInterbellGap", stroke, inChanges, fInterbellGap[stroke].getMean());
+			put(cache, "MeanRowLength", stroke, inChanges, fRowLength[stroke].getMean());
+			put(cache, "RowLengthSD", stroke, inChanges, fRowLength[stroke].getVariance());
+			put(cache, "StrikingRMSE", stroke, inChanges, fStrikingVariance[stroke].getMean());
+			put(cache, "DiscreteRMSE", stroke, inChanges, fDiscreteVariance[stroke].getMean());
+			if (stroke!=WHOLEPULL)
+			{
+				put(cache, "MinDuration", stroke, inChanges, fMinDuration[stroke]);
+				put(cache, "MaxDuration", stroke, inChanges, fMaxDuration[stroke]);
+			}
+			for (int bell=1; bell<NBELLS; bell++)
+			{
+				Moments m = fBellLateness[stroke][bell];
+				put(cache, "BellLateness"+bell, stroke, inChanges, m.getMean());
+				put(cache, "BellSD"+bell, stroke, inChanges, m.getVariance());
+				put(cache, "BellRMSE"+bell, stroke, inChanges, m.getMeanSquare());
+			}
+		}
+		put(cache, "MinDurationWhole", BACKSTROKE, inChanges, fMinWholePull);
+		put(cache, "MaxDurationWhole", BACKSTROKE, inChanges, fMaxWholePull);
+		put(cache, "MeanHandstrokeGap", HANDSTROKE, inChanges, fHandstrokeGap.getMean());
+		put(cache, "HandstrokeGapSD", HANDSTROKE, inChanges, fHandstrokeGap.getVariance());
+		for (int bell=1; bell<NBELLS; bell++)
+		{
+			put(cache, "MeanBellHandstrokeGap"+bell, HANDSTROKE, inChanges, fBellHandstrokeGap[bell].getMean());
+			put(cache, "BellHandstrokeGapSD"+bell, HANDSTROKE, inChanges, fBellHandstrokeGap[bell].getVariance());
+		}
+	}
+
+	private void put(Map<String,Double> cache, String key, int stroke, boolean inChanges, double value)
+	{
+		cache.put(TouchStats.makeCacheKey(key, stroke, inChanges), Double.valueOf(value));
+	}
+
+	/**
+	 * Running count, sum, sum of squares and Welford variance of a series of values.
+	 * Values can be removed again, by reversing the Welford update.
+	 */
+	static class Moments
+	{
+		int n = 0;
+		double sum = 0.0;
+		double sumSquares = 0.0;
+		double mean = 0.0;
+		double m2 = 0.0;
+
+		static Moments[] create(int size)
+		{
+			Moments[] moments = new Moments[size];
+			for (int i=0; i<size; i++)
+				moments[i] = new Moments();
+			return moments;
+		}
+
+		void add(double x)
+		{
+			n++;
+			sum+= x;
+			sumSquares+= x*x;
+			double delta = x-mean;
+			mean+= delta/n;
+			m2+= delta*(x-mean);
+		}
+
+		void remove(double x)
+		{
+			if (n<=1)
+			{
+				n = 0;
+				sum = 0.0;
+				sumSquares = 0.0;
+				mean = 0.0;
+				m2 = 0.0;
+				return;
+			}
+			sum-= x;
+			sumSquares-= x*x;
+			double oldMean = (n*mean-x)/(n-1);
+			m2-= (x-oldMean)*(x-mean);
+			if (m2<0.0)
+				m2 = 0.0;
+			mean = oldMean;
+			n--;
+		}
+
+		/** Sum divided by count, so identical to a RowMeanVisitor over the same values */
+		double getMean()
+		{
+			return n>0? sum/n: 0.0;
+		}
+
+		double getMeanSquare()
+		{
+			return n>0? sumSquares/n: 0.0;
+		}
+
+		/** Population variance */
+		double getVariance()
+		{
+			return n>0? m2/n: 0.0;
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package org.pealfactory.strike.data;
 
+import org.pealfactory.strike.Constants;
+
 import java.util.*;
 import java.io.PrintWriter;
 
@@ -48,12 +50,20 @@ public class TouchStats implements AveragedRowSource
 	public static final String TEXT_SD = "Std deviation";
 	public static final String TEXT_RMSE = "RMS Error";
 	public static final String TEXT_AV_MS_LATE = "Av ms late";
+	public static final String TEXT_MEDIAN_MS_LATE = "Median ms late";
+	public static final String TEXT_P90_MS_LATE = "90% ms late";
+	public static final String TEXT_P99_MS_LATE = "99% ms late";
 
 
 	private AveragedRowSource fData;
 	private int fNRows;
 	private int fNBells;
 	private Map<String,Double> fStatsCache = new HashMap();
+	/** Whether calculateAllStats() has been run, indexed by inChanges false/true */
+	private boolean[] fAllStatsCalculated = new boolean[2];
+	/** Lateness histograms by stroke and bell, indexed by inChanges false/true; found when first needed - see
+	 *  getHistograms(). Never changed once set - see StatsAccumulator.shareHistograms(). */
+	private LatenessHistogram[][][] fHistograms = new LatenessHistogram[2][][];
 
   public TouchStats(AveragedRowSource data, int nbells)
 	{
@@ -68,6 +78,54 @@ public class TouchStats implements AveragedRowSource
 		getMaxDuration(false);
 	}
 
+	/**
+	 * Creates a snapshot from stats which have already been accumulated for the first nrows rows, so no
+	 * passes over the rows are needed - see AveragedRowData.getTouchStats(). The caller must hold whatever
+	 * lock protects the accumulators, since their current values are copied into the stats cache. The lateness
+	 * histograms are only taken if percentiles are asked for - see getHistograms().
+	 *
+	 * @param data
+	 * @param nrows
+	 * @param nbells
+	 * @param allRows stats for all rows
+	 * @param inChangesRows stats for rows in changes only
+	 */
+	TouchStats(AveragedRowSource data, int nrows, int nbells, StatsAccumulator allRows, StatsAccumulator inChangesRows)
+	{
+		fData = data;
+		fNRows = nrows;
+		fNBells = nbells;
+		allRows.putStats(fStatsCache, false);
+		inChangesRows.putStats(fStatsCache, true);
+		fAllStatsCalculated[0] = true;
+		fAllStatsCalculated[1] = true;
+	}
+
+	/**
+	 * Creates a snapshot of a range of rows, using prefix sums which cover the range, so again no passes
+	 * over the rows are needed - see AveragedRowData.getRangeStats(). The caller must hold whatever lock
+	 * protects the sums.
+	 *
+	 * @param range the rows of the range, numbered from 0
+	 * @param nrows
+	 * @param nbells
+	 * @param allRows sums for all rows
+	 * @param inChangesRows sums for rows in changes only
+	 * @param first index of the first row of the range in the sums
+	 * @param evenRowsAreHandstrokes stroke of the rows in the sums
+	 */
+	TouchStats(AveragedRowSource range, int nrows, int nbells, RowPrefixSums allRows, RowPrefixSums inChangesRows,
+						 int first, boolean evenRowsAreHandstrokes)
+	{
+		fData = range;
+		fNRows = nrows;
+		fNBells = nbells;
+		allRows.putStats(fStatsCache, first, first+nrows, false, evenRowsAreHandstrokes);
+		inChangesRows.putStats(fStatsCache, first, first+nrows, true, evenRowsAreHandstrokes);
+		fAllStatsCalculated[0] = true;
+		fAllStatsCalculated[1] = true;
+	}
+
 	public static class HandBackWhole
 	{
 		public double hand = 0.0;
@@ -102,6 +160,52 @@ public class TouchStats implements AveragedRowSource
 		return fNBells;
 	}
 
+	/**
+	 * Returns stats over a range of this touch's rows, for example one lead or course, with the rows
+	 * renumbered from 0. If the touch is a snapshot of AveragedRowData, the slice is answered from its prefix
+	 * sums in logarithmic time - see AveragedRowData.getRangeStats() - with the rows' "in changes" flags as they
+	 * were at the snapshot, like the touch's own stats; otherwise the slice is a view onto the same rows, and
+	 * its stats are calculated afresh when first asked for.
+	 *
+	 * @param firstRow first row of the slice
+	 * @param endRow row after the last row of the slice, at most getNRows()
+	 * @return
+	 */
+	public TouchStats getSlice(final int firstRow, int endRow)
+	{
+		if (fData instanceof AveragedRowData.Snapshot && ((AveragedRowData.Snapshot)fData).getFirstRow()==0)
+		{
+			AveragedRowData.Snapshot snapshot = (AveragedRowData.Snapshot)fData;
+			return snapshot.getData().getRangeStats(snapshot, firstRow, Math.min(endRow, fNRows));
+		}
+		final int nrows = Math.max(0, Math.min(endRow, fNRows)-firstRow);
+		return new TouchStats(new AveragedRowSource(){
+			public int getNRows()
+			{
+				return nrows;
+			}
+
+			public AveragedRow getRow(int i)
+			{
+				return fData.getRow(firstRow+i);
+			}
+		}, fNBells);
+	}
+
+	/**
+	 * Returns rolling stats over the most recent rows, if the touch is a snapshot of AveragedRowData - see
+	 * AveragedRowData.getWindowStats(). The window ends at the latest row added, which may be after the last
+	 * row of this snapshot.
+	 *
+	 * @return null if the rows don't come from AveragedRowData
+	 */
+	public TouchStats getWindowStats()
+	{
+		if (fData instanceof AveragedRowData.Snapshot)
+			return ((AveragedRowData.Snapshot)fData).getData().getWindowStats();
+		return null;
+	}
+
 	public void outputStats(PrintWriter out, boolean inChangesOnly)
 	{
     out.println("Touch stats calculated from "+getNRows()+" rows");
@@ -133,6 +237,17 @@ public class TouchStats implements AveragedRowSource
 		out.println(text+", "+stats.whole+", "+stats.hand+", "+stats.back);
 	}
 
+	/**
+	 * Rows from AveragedRowData may have been moved in or out of changes since this snapshot was taken, so
+	 * their flags are read as they were at the snapshot.
+	 */
+	private boolean isInChanges(int i, AveragedRow row)
+	{
+		if (fData instanceof AveragedRowData.Snapshot)
+			return ((AveragedRowData.Snapshot)fData).isInChanges(i);
+		return row.isInChanges();
+	}
+
 	protected void visitRows(AveragedRowVisitor visitor, int stroke, boolean inChanges)
 	{
 		if (fNRows==0)
@@ -154,7 +269,7 @@ public class TouchStats implements AveragedRowSource
 			{
 				boolean rowWorthVisiting = true;
 				// Don't visit row if we're only marking changes, and we're not in changes
-				if (inChanges && !row.isInChanges())
+				if (inChanges && !isInChanges(i, row))
 					rowWorthVisiting = false;
 				// Don't visit row if not all bells struck in it
 				//if (row.getRowSize()<fNBells)
@@ -165,10 +280,25 @@ public class TouchStats implements AveragedRowSource
 		}
 	}
 
+	/**
+	 * The first time any stat is asked for, all the standard stats are calculated in one pass for the given
+	 * inChanges value (see calculateAllStats) - so normally the visitor is only used for non-standard stats,
+	 * such as fault counts with a different fault factor.
+	 */
 	protected synchronized double cachedVisitRows(AveragedRowVisitor visitor, int stroke, boolean inChanges, String cacheKey)
 	{
-		cacheKey = cacheKey+"/"+stroke+"/"+inChanges;
+		cacheKey = makeCacheKey(cacheKey, stroke, inChanges);
     Double cacheValue = fStatsCache.get(cacheKey);
+		if (cacheValue==null)
+		{
+			int i = inChanges? 1:0;
+			if (!fAllStatsCalculated[i])
+			{
+				calculateAllStats(inChanges);
+				fAllStatsCalculated[i] = true;
+				cacheValue = fStatsCache.get(cacheKey);
+			}
+		}
 		if (cacheValue==null)
 		{
 			visitRows(visitor, stroke, inChanges);
@@ -178,6 +308,104 @@ public class TouchStats implements AveragedRowSource
 		return cacheValue.doubleValue();
 	}
 
+	static String makeCacheKey(String cacheKey, int stroke, boolean inChanges)
+	{
+		return cacheKey+"/"+stroke+"/"+inChanges;
+	}
+
+	/**
+	 * Calculates every standard stat, for all three strokes and every bell, in a single pass over the rows,
+	 * and stores the results in the stats cache under the same keys the individual getters use.
+	 * Rows are selected exactly as visitRows() would select them, and means are summed in the same order;
+	 * variances are calculated with Welford's method rather than a second pass.
+	 * Must be called with the TouchStats lock held.
+	 *
+	 * @param inChanges
+	 */
+	private void calculateAllStats(boolean inChanges)
+	{
+		StatsAccumulator stats = accumulateRows(inChanges);
+		fHistograms[inChanges? 1: 0] = stats.shareHistograms();
+		stats.putStats(fStatsCache, inChanges);
+	}
+
+	/**
+	 * Adds every row (or every row in changes) to a new StatsAccumulator.
+	 *
+	 * @param inChanges
+	 * @return
+	 */
+	private StatsAccumulator accumulateRows(boolean inChanges)
+	{
+		StatsAccumulator stats = new StatsAccumulator();
+		if (fNRows>0)
+		{
+			// Rows alternate hand and back from the first row, as in visitRows()
+			boolean evenRowsAreHandstrokes = getRow(0).isHandstroke();
+			int prevTime = 0;
+			for (int i=0; i<fNRows; i++)
+			{
+				AveragedRow row = getRow(i);
+				if (row==null || (inChanges && !isInChanges(i, row)))
+					continue;
+				int stroke = getStroke(i, evenRowsAreHandstrokes);
+				stats.add(row, stroke, countFaults(row, FAULTFACTOR, prevTime));
+				prevTime = getLastStrikeTime(row, prevTime);
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * Which stroke visitRows() treats row i as belonging to - rows simply alternate from the first.
+	 */
+	static int getStroke(int i, boolean evenRowsAreHandstrokes)
+	{
+		return ((i%2==0)==evenRowsAreHandstrokes)? HANDSTROKE: BACKSTROKE;
+	}
+
+	/**
+	 * Counts the faults in a row, where a fault is two consecutive bells closer together than faultFactor times
+	 * the mean inter-bell gap. At backstroke the first bell is compared with prevTime, the last strike of the
+	 * previous row counted; the handstroke gap is never counted.
+	 *
+	 * @param row
+	 * @param faultFactor
+	 * @param prevTime
+	 * @return between 0 and MAXFAULTSPERROW
+	 */
+	static int countFaults(AveragedRow row, double faultFactor, int prevTime)
+	{
+		int nfaults = 0;
+		double maxGoodGap = faultFactor*row.getMeanInterbellGap();
+		int t = prevTime;
+		int i=1;
+		if (row.isHandstroke())
+		{
+			t = row.getStrikeTime(i++);
+		}
+		while (i<=row.getRowSize())
+		{
+			int d = row.getStrikeTime(i++);
+			if (Math.abs(d-t)<maxGoodGap)
+				nfaults++;
+			t = d;
+		}
+		if (nfaults>MAXFAULTSPERROW)
+			nfaults = MAXFAULTSPERROW;
+		return nfaults;
+	}
+
+	/**
+	 * Time of the last strike in the row, which countFaults() needs for the next row; or prevTime if the row is empty.
+	 */
+	static int getLastStrikeTime(AveragedRow row, int prevTime)
+	{
+		if (row.getRowSize()>0)
+			return row.getStrikeTime(row.getRowSize());
+		return prevTime;
+	}
+
 	/** Stats getters */
 
 	public int getFaults(boolean inChanges)
@@ -187,7 +415,7 @@ public class TouchStats implements AveragedRowSource
 
 	public int getFaults(boolean inChanges, double faultFactor)
 	{
-		return (int)cachedVisitRows(new RowTotalVisitor(new RowFaultsRetriever(faultFactor)), WHOLEPULL, inChanges, "Faults");
+		return (int)cachedVisitRows(new RowTotalVisitor(new RowFaultsRetriever(faultFactor)), WHOLEPULL, inChanges, "Faults"+faultFactor);
 	}
 
 	public double getFaultPercentage(boolean inChanges)
@@ -380,6 +608,75 @@ public class TouchStats implements AveragedRowSource
     return Math.sqrt(cachedVisitRows(v, HANDSTROKE, inChanges, "BellHandstrokeGapSD"+bell));
 	}
 
+	/**
+	 * Percentiles of a bell's lateness, read from histograms of every lateness value - see LatenessHistogram.
+	 * Constant time once the histograms exist.
+	 *
+	 * @param bell
+	 * @param percentile 0..100, e.g. 50 for the median
+	 * @param inChanges
+	 * @return lateness in ms, negative if early
+	 */
+	public HandBackWhole getLatenessPercentile(int bell, double percentile, boolean inChanges)
+	{
+		HandBackWhole ret = new HandBackWhole();
+		if (bell<1 || bell>Constants.MAXNBELLS)
+			return ret;
+		// The histograms never change, so can be read without copying.
+		LatenessHistogram[][] histograms = getHistograms(inChanges);
+		ret.hand = getPercentile(histograms[HANDSTROKE][bell], percentile);
+		ret.back = getPercentile(histograms[BACKSTROKE][bell], percentile);
+		ret.whole = getPercentile(histograms[WHOLEPULL][bell], percentile);
+		return ret;
+	}
+
+	private static double getPercentile(LatenessHistogram h, double percentile)
+	{
+		return h==null? 0.0: h.getPercentile(percentile);
+	}
+
+	/**
+	 * Returns a copy of the histogram of a bell's lateness, which can be merged with those of other touches.
+	 *
+	 * @param bell
+	 * @param stroke WHOLEPULL, HANDSTROKE or BACKSTROKE
+	 * @param inChanges
+	 * @return
+	 */
+	public LatenessHistogram getLatenessHistogram(int bell, int stroke, boolean inChanges)
+	{
+		if (bell<1 || bell>Constants.MAXNBELLS)
+			return new LatenessHistogram();
+		return copy(getHistograms(inChanges)[stroke][bell]);
+	}
+
+	private static LatenessHistogram copy(LatenessHistogram h)
+	{
+		if (h==null)
+			return new LatenessHistogram();
+		return new LatenessHistogram(h);
+	}
+
+	/**
+	 * A snapshot of AveragedRowData which is still up to date borrows the running histograms, which are then
+	 * copied by the accumulators before they next change them; otherwise the histograms are built from the rows.
+	 *
+	 * @param inChanges
+	 * @return
+	 */
+	private synchronized LatenessHistogram[][] getHistograms(boolean inChanges)
+	{
+		int i = inChanges? 1: 0;
+		if (fHistograms[i]==null && fData instanceof AveragedRowData.Snapshot)
+		{
+			AveragedRowData.Snapshot snapshot = (AveragedRowData.Snapshot)fData;
+			fHistograms[i] = snapshot.getData().shareHistograms(snapshot, inChanges);
+		}
+		if (fHistograms[i]==null)
+			fHistograms[i] = accumulateRows(inChanges).shareHistograms();
+		return fHistograms[i];
+	}
+
 
 	/**
 	 *
@@ -577,22 +874,8 @@ public class TouchStats implements AveragedRowSource
 
 		public double getValue(AveragedRow row)
 		{
-			int nfaults = 0;
-			double maxGoodGap = faultFactor*row.getMeanInterbellGap();
-			int i=1;
-			if (row.isHandstroke())
-			{
-				t = row.getBong(i++).time;
-			}
-			while (i<=row.getRowSize())
-			{
-				int d = row.getBong(i++).time;
-				if (Math.abs(d-t)<maxGoodGap)
-					nfaults++;
-				t = d;
-			}
-			if (nfaults>MAXFAULTSPERROW)
-				nfaults = MAXFAULTSPERROW;
+			int nfaults = countFaults(row, faultFactor, t);
+			t = getLastStrikeTime(row, t);
 			return nfaults;
 		}
 	}
@@ -716,4 +999,5 @@ public class TouchStats implements AveragedRowSource
 		}
 	}
 
+
 }
@@ -1,7 +1,6 @@
 package org.pealfactory.strike.errorcorrection;
 
-import org.pealfactory.strike.data.Bong;
-import org.pealfactory.strike.input.BongListener;
+import org.pealfactory.strike.input.*;
 
 /**
  * <p>
@@ -26,8 +25,13 @@ import org.pealfactory.strike.input.BongListener;
  *
  * @author MBD
  */
-public interface ErrorCorrecter extends BongListener
+public interface ErrorCorrecter extends StrikeListener
 {
 	public void setNextStage(BongListener nextStage);
 
+	/**
+	 * @return the correcter's parameters, as text - anything besides its input which affects its output
+	 */
+	public String getSettings();
+
 }
@@ -1,8 +1,11 @@
 package org.pealfactory.strike.errorcorrection;
 
-import org.pealfactory.strike.input.BongListener;
+import org.pealfactory.strike.data.Bong;
+import org.pealfactory.strike.input.*;
 
 /**
+ * Base class for error correcters. Subclasses do their work in receiveStrike(), and pass strikes on with
+ * sendStrike(), which only creates a Bong if the next stage can't take primitive strikes.
  * <p>
  * CAS Copyright 2003-2012 Mark B Davies
  * </p>
@@ -28,10 +31,37 @@ import org.pealfactory.strike.input.BongListener;
 public abstract class ErrorCorrectionHelper implements ErrorCorrecter
 {
 	protected BongListener fNextStage;
+	/** Same as fNextStage, if it can take primitive strikes; otherwise null */
+	private StrikeListener fNextStrikeStage;
 
 	public void setNextStage(BongListener nextStage)
 	{
 		fNextStage = nextStage;
+		if (nextStage instanceof StrikeListener)
+			fNextStrikeStage = (StrikeListener)nextStage;
+		else
+			fNextStrikeStage = null;
+	}
+
+	/**
+	 * Correcters without parameters need not override this.
+	 */
+	public String getSettings()
+	{
+		return "";
+	}
+
+	public void receiveBong(Bong bong)
+	{
+		receiveStrike(bong.bell, bong.time, bong.stroke);
+	}
+
+	protected void sendStrike(int bell, int time, int stroke)
+	{
+		if (fNextStrikeStage!=null)
+			fNextStrikeStage.receiveStrike(bell, time, stroke);
+		else
+			fNextStage.receiveBong(new Bong(bell, time, stroke));
 	}
 
 }
@@ -44,20 +44,20 @@ public class ExtraneousStrikeCorrector  extends ErrorCorrectionHelper
 		fNextRow = new RawRow(false);
 	}
 
-	public void receiveBong(Bong bong)
+	public void receiveStrike(int bell, int time, int stroke)
 	{
-		int place1 = fCurrentRow.findBell(bong.bell);
-		int place2 = fNextRow.findBell(bong.bell);
+		int place1 = fCurrentRow.findBell(bell);
+		int place2 = fNextRow.findBell(bell);
 		// Fill first row
 		if (fNextRow.getRowSize()==0 && place1<0)
 		{
-			fCurrentRow.addBong(bong);
+			fCurrentRow.addStrike(bell, time, stroke);
 			return;
 		}
 		// Fill subsequent rows
 		if (place2<0)
 		{
-			fNextRow.addBong(bong);
+			fNextRow.addStrike(bell, time, stroke);
 			return;
 		}
 		fNBells = Math.max(fNBells, fCurrentRow.getRowSize());
@@ -66,20 +66,22 @@ public class ExtraneousStrikeCorrector  extends ErrorCorrectionHelper
 		int totalSep = 0;
 		int mySep1 = 0;
 		int mySep2 = 0;
-		for (Bong b2: fNextRow)
+		for (int p2=1; p2<=fNextRow.getRowSize(); p2++)
 		{
-			int p1 = fCurrentRow.findBell(b2.bell);
+			int bell2 = fNextRow.getBellAt(p2);
+			int p1 = fCurrentRow.findBell(bell2);
 			if (p1>0)
 			{
-				Bong b1 = fCurrentRow.getBong(p1);
-				if (b2.bell==bong.bell)
+				int time1 = fCurrentRow.getStrikeTime(p1);
+				int time2 = fNextRow.getStrikeTime(p2);
+				if (bell2==bell)
 				{
-					mySep1 = b2.time - b1.time;
-					mySep2 = bong.time - b2.time;
+					mySep1 = time2 - time1;
+					mySep2 = time - time2;
 				}
 				else
 				{
-					totalSep+= b2.time - b1.time;
+					totalSep+= time2 - time1;
 					nBellsInBothRows++;
 				}
 			}
@@ -96,8 +98,8 @@ public class ExtraneousStrikeCorrector  extends ErrorCorrectionHelper
 			if (mySep1<mySep2)
 			{
 				// Drop middle strike
-				fNextRow.removeBong(fNextRow.findBell(bong.bell));
-				fNextRow.addBong(bong);
+				fNextRow.removeStrike(fNextRow.findBell(bell));
+				fNextRow.addStrike(bell, time, stroke);
 				return;
 			}
 			else if (mySep2<avSep/2)
@@ -108,15 +110,20 @@ public class ExtraneousStrikeCorrector  extends ErrorCorrectionHelper
 		}
 		// Start new row after all
 		finishRow();
-		fNextRow.addBong(bong);
+		fNextRow.addStrike(bell, time, stroke);
 	}
 
+	/**
+	 * Passes on the current row, then reuses it as the new next row.
+	 */
 	protected void finishRow()
 	{
-		for (Bong bong: fCurrentRow)
-			fNextStage.receiveBong(bong);
+		for (int place=1; place<=fCurrentRow.getRowSize(); place++)
+			sendStrike(fCurrentRow.getBellAt(place), fCurrentRow.getStrikeTime(place), fCurrentRow.getStroke(place));
+		RawRow finishedRow = fCurrentRow;
 		fCurrentRow = fNextRow;
-		fNextRow = new RawRow(!fCurrentRow.isHandstroke());
+		finishedRow.clear(!fCurrentRow.isHandstroke());
+		fNextRow = finishedRow;
 	}
 
 
@@ -3,8 +3,6 @@ package org.pealfactory.strike.errorcorrection;
 import org.pealfactory.strike.*;
 import org.pealfactory.strike.data.*;
 
-import java.util.*;
-
 import static org.pealfactory.strike.Constants.*;
 
 /**
@@ -44,6 +42,8 @@ public class LeadLieCorrector extends ErrorCorrectionHelper
 	private int[] fLastKnownGoodPositions;
 	private RawRow fCurrentRow;
 	private RawRow fNextRow;
+	/** Scratch row for getCyclicSplit() */
+	private RawRow fRotatedRow;
 	private int fRowsProcessed = 0;
 
 	public LeadLieCorrector()
@@ -51,48 +51,49 @@ public class LeadLieCorrector extends ErrorCorrectionHelper
 		fLastKnownGoodPositions = new int[MAXNBELLS];
 	}
 
-	public void receiveBong(Bong bong)
+	public void receiveStrike(int bell, int time, int stroke)
 	{
 		// For the very first row we accept, there should be space in fCurrentRow (but no bells in fNextRow)
 		if (fRowsProcessed==0)
 		{
 			if (fCurrentRow==null)
 			{
-				fCurrentRow = new RawRow(bong.stroke==Bong.HANDSTROKE);
-				fNextRow = new RawRow(bong.stroke!=Bong.HANDSTROKE);
+				fCurrentRow = new RawRow(stroke==Bong.HANDSTROKE);
+				fNextRow = new RawRow(stroke!=Bong.HANDSTROKE);
+				fRotatedRow = new RawRow(true);
 			}
-			int place1 = fCurrentRow.findBell(bong.bell);
-			if (!fCurrentRow.isMatchingStroke(bong))
+			int place1 = fCurrentRow.findBell(bell);
+			if (!fCurrentRow.isMatchingStroke(stroke))
 			{
-				fNextRow.addBong(bong);
+				fNextRow.addStrike(bell, time, stroke);
 				fRowsProcessed++;
 			}
 			else if (place1<0)
 			{
-				fCurrentRow.addBong(bong);
+				fCurrentRow.addStrike(bell, time, stroke);
 			}
 			else
 			{
-				System.out.println("WARNING: bell "+bong.bell+" sounded twice in row "+fRowsProcessed+1+"; ignoring second strike.");
+				System.out.println("WARNING: bell "+bell+" sounded twice in row "+fRowsProcessed+1+"; ignoring second strike.");
 			}
 			return;
 		}
 
 		fNBells = Math.max(fNBells, fCurrentRow.getNBells());
 		// If we are the same stroke as before, continue to fill up fNextRow
-		if (fNextRow.isMatchingStroke(bong))
+		if (fNextRow.isMatchingStroke(stroke))
 		{
-			int place2 = fNextRow.findBell(bong.bell);
+			int place2 = fNextRow.findBell(bell);
 			if (place2<0)
 			{
-				fNextRow.addBong(bong);
+				fNextRow.addStrike(bell, time, stroke);
 			}
 			else
 			{
 				// Hmm, we must have come across a bell which has been shunted up by some earlier lie/lead swaps.
 				// No choice but to swap its stroke and start a new row for it.
 				finishRow();
-				fNextRow.addBong(bong.swapStroke());
+				fNextRow.addStrike(bell, time, -stroke);
 			}
 			return;
 		}
@@ -110,13 +111,12 @@ public class LeadLieCorrector extends ErrorCorrectionHelper
 			// blocking our ability to move it off the end of the first.
 			while (fCurrentRow.getRowSize()>1)
 			{
-				Bong firstRowLie = fCurrentRow.getLastBong();
-				if (fNextRow.findBell(firstRowLie.bell)>=0)
+				int lie = fCurrentRow.getRowSize();
+				if (fNextRow.findBell(fCurrentRow.getBellAt(lie))>=0)
 					// Nope, can't fit bell onto the second row - exit loop
 					break;
 				// Yes! Bell fits on start of next row. Swap stroke and put it there.
-				fCurrentRow.removeLastBong();
-				fNextRow.addBongAtLead(firstRowLie.swapStroke());
+				moveLieToLead(fCurrentRow, fNextRow);
 			}
 			// See if the first row is the end plus the start of rounds - would be a clue that we have started halfway
 			// through a rounds row.
@@ -130,11 +130,11 @@ public class LeadLieCorrector extends ErrorCorrectionHelper
 					// second row match the new incoming bong - can't add them both to the third row!
 					for (int i=split; i<fNextRow.getRowSize(); i++)
 					{
-						if (fNextRow.getBellAt(i+1)==bong.bell)
+						if (fNextRow.getBellAt(i+1)==bell)
 						{
 							// Bad - abandon efforts
 							finishRow();
-							fNextRow.addBong(bong);
+							fNextRow.addStrike(bell, time, stroke);
 							return;
 						}
 					}
@@ -142,13 +142,13 @@ public class LeadLieCorrector extends ErrorCorrectionHelper
 					RawRow extra = new RawRow(!fNextRow.isHandstroke());
 					for (int i=split; i<fNextRow.getRowSize(); i++)
 					{
-						extra.addBongAtLead(fNextRow.removeLastBong().swapStroke());
-						fNextRow.addBongAtLead(fCurrentRow.removeLastBong().swapStroke());
+						moveLieToLead(fNextRow, extra);
+						moveLieToLead(fCurrentRow, fNextRow);
 					}
 					finishRow();
 					fNextRow = extra;
 					// Still have to deal with the latest incoming bong!
-					fNextRow.addBong(bong);
+					fNextRow.addStrike(bell, time, stroke);
 					return;
 				}
 			}
@@ -160,28 +160,28 @@ public class LeadLieCorrector extends ErrorCorrectionHelper
 			// it was at the start, this is a clue that it needs shunting to the start of the next change.
 			if (fCurrentRow.getRowSize()==fCurrentRow.getNBells())
 			{
-				Bong firstRowLie = fCurrentRow.getLastBong();
-				if (bong.bell!=firstRowLie.bell && fLastKnownGoodPositions[firstRowLie.bell-1]<fNBells/3)
+				int lieBell = fCurrentRow.getBellAt(fCurrentRow.getRowSize());
+				if (bell!=lieBell && fLastKnownGoodPositions[lieBell-1]<fNBells/3)
 				{
-					int placeInNext = fNextRow.findBell(firstRowLie.bell);
+					int placeInNext = fNextRow.findBell(lieBell);
 					if (placeInNext==fNextRow.getRowSize())
 					{
 						// Bong can be moved, but we have to shunt the same bell off the end of the next row, too.
-						fCurrentRow.removeLastBong();
-						Bong nextRowLie = fNextRow.removeLastBong();
-						fNextRow.addBongAtLead(firstRowLie.swapStroke());
+						int nextRowLieTime = fNextRow.getStrikeTime(placeInNext);
+						int nextRowLieStroke = fNextRow.getStroke(placeInNext);
+						fNextRow.removeLastStrike();
+						moveLieToLead(fCurrentRow, fNextRow);
 						finishRow();
-						fNextRow.addBong(nextRowLie.swapStroke());
-						fNextRow.addBong(bong);
+						fNextRow.addStrike(lieBell, nextRowLieTime, -nextRowLieStroke);
+						fNextRow.addStrike(bell, time, stroke);
 						return;
 					}
 					if (placeInNext<0)
 					{
 						// Bong can be moved, and it's easy since it doesn't exist in the next row.
-						fCurrentRow.removeLastBong();
-						fNextRow.addBongAtLead(firstRowLie.swapStroke());
+						moveLieToLead(fCurrentRow, fNextRow);
 						finishRow();
-						fNextRow.addBong(bong);
+						fNextRow.addStrike(bell, time, stroke);
 						return;
 					}
 				}
@@ -190,46 +190,62 @@ public class LeadLieCorrector extends ErrorCorrectionHelper
 		}
 
 		finishRow();
-		fNextRow.addBong(bong);
+		fNextRow.addStrike(bell, time, stroke);
+	}
+
+	/**
+	 * Takes the last strike off one row, swaps its stroke, and adds it at lead of another.
+	 */
+	private static void moveLieToLead(RawRow from, RawRow to)
+	{
+		int lie = from.getRowSize();
+		int bell = from.getBellAt(lie);
+		int time = from.getStrikeTime(lie);
+		int stroke = from.getStroke(lie);
+		from.removeLastStrike();
+		to.addStrikeAtLead(bell, time, -stroke);
 	}
 	
 	private int getCyclicSplit(RawRow row)
 	{
-		RawRow rotatedRow = new RawRow(row.isHandstroke());
-		Iterator<Bong> it = row.iterator();
-		Bong b1 = it.next();
 		int split = 1;
-		while (it.hasNext())
+		while (split<row.getRowSize())
 		{
-			Bong b2 = it.next();
-			if (b1.bell-b2.bell>=fNBells-2)
+			if (row.getBellAt(split)-row.getBellAt(split+1)>=fNBells-2)
 				break;
-			b1 = b2;
 			split++;
 		}
 		if (split<row.getRowSize())
 		{
+			RawRow rotatedRow = fRotatedRow;
+			rotatedRow.clear(row.isHandstroke());
 			for (int i=split; i<row.getRowSize(); i++)
-				rotatedRow.addBong(row.getBong(i+1));
+				rotatedRow.addStrike(row.getBellAt(i+1), row.getStrikeTime(i+1), row.getStroke(i+1));
 			for (int i=0; i<split; i++)
-				rotatedRow.addBong(row.getBong(i+1));
+				rotatedRow.addStrike(row.getBellAt(i+1), row.getStrikeTime(i+1), row.getStroke(i+1));
 			if (rotatedRow.isCloseToRounds())
 				return split;
 		}
 		return -1;
 	}
 
+	/**
+	 * Passes on the current row, then reuses it as the new next row.
+	 */
 	protected void finishRow()
 	{
 		if (LOG_OUTPUT)
 			System.out.println("LeadLieCorrector: "+fCurrentRow.rowAsString());
-		for (Bong bong: fCurrentRow)
+		for (int place=1; place<=fCurrentRow.getRowSize(); place++)
 		{
-			fNextStage.receiveBong(bong);
-			fLastKnownGoodPositions[bong.bell-1] = fCurrentRow.findBell(bong.bell);
+			int bell = fCurrentRow.getBellAt(place);
+			sendStrike(bell, fCurrentRow.getStrikeTime(place), fCurrentRow.getStroke(place));
+			fLastKnownGoodPositions[bell-1] = fCurrentRow.findBell(bell);
 		}
+		RawRow finishedRow = fCurrentRow;
 		fCurrentRow = fNextRow;
-		fNextRow = new RawRow(!fCurrentRow.isHandstroke());
+		finishedRow.clear(!fCurrentRow.isHandstroke());
+		fNextRow = finishedRow;
 		fRowsProcessed++;
 	}
 
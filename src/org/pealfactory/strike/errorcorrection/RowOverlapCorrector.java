@@ -62,10 +62,10 @@ public class RowOverlapCorrector extends ErrorCorrectionHelper
 		fNextRow = new RawRow(false);
 	}
 
-	public void receiveBong(Bong bong)
+	public void receiveStrike(int bell, int time, int stroke)
 	{
-		int place1 = fCurrentRow.findBell(bong.bell);
-		int place2 = fNextRow.findBell(bong.bell);
+		int place1 = fCurrentRow.findBell(bell);
+		int place2 = fNextRow.findBell(bell);
 		fNBells = Math.max(fNBells, fCurrentRow.getNBells());
 
 		// The first thing we do is check for the apparently nonsensical case that the bell has already been put into the
@@ -75,15 +75,16 @@ public class RowOverlapCorrector extends ErrorCorrectionHelper
 		// the current row.
 		if (place1<0 && place2>0)
 		{
-			Bong bongInNextRow = fNextRow.getBong(place2);
+			int timeInNextRow = fNextRow.getStrikeTime(place2);
 			// Does the bong we put into the next row really belong in the current?
 			// Check its timestamp to see whether it was the leading bell in the next row - if so, move it to the last
 			// bell of the current row instead.
-			if (bongInNextRow.time==fNextRow.getFirstStrikeTime())
+			if (timeInNextRow==fNextRow.getFirstStrikeTime())
 			{
-				fNextRow.removeBong(place2);
-				fCurrentRow.addBong(bongInNextRow);
-				fNextRow.addBong(bong);
+				int strokeInNextRow = fNextRow.getStroke(place2);
+				fNextRow.removeStrike(place2);
+				fCurrentRow.addStrike(bell, timeInNextRow, strokeInNextRow);
+				fNextRow.addStrike(bell, time, stroke);
 				return;
 			}
 			// If we decide not to swap the bongs, we have no choice but to start a new row; we absolutely can't
@@ -105,7 +106,7 @@ public class RowOverlapCorrector extends ErrorCorrectionHelper
 			// there are two bells, bc, at the start of the next row which have actually rung earlier.
 			if (fNextRow.getRowSize()<=MAX_OVERLAP)
 			{
-				fCurrentRow.addBong(bong);
+				fCurrentRow.addStrike(bell, time, stroke);
 				return;
 			}
 		}
@@ -113,23 +114,25 @@ public class RowOverlapCorrector extends ErrorCorrectionHelper
 		// If we haven't been able to add this bell to the current row, try adding it to the next row instead.
 		if (place2<0)
 		{
-			fNextRow.addBong(bong);
+			fNextRow.addStrike(bell, time, stroke);
 			return;
 		}
 
 		// If both current and next are full, start a new row.
 		finishRow();
-		fNextRow.addBong(bong);
+		fNextRow.addStrike(bell, time, stroke);
 	}
 
 	protected void finishRow()
 	{
 		if (LOG_OUTPUT)
 			System.out.println("RowOverlapCorrector: "+fCurrentRow);
-		for (Bong bong: fCurrentRow)
-			fNextStage.receiveBong(bong);
+		for (int place=1; place<=fCurrentRow.getRowSize(); place++)
+			sendStrike(fCurrentRow.getBellAt(place), fCurrentRow.getStrikeTime(place), fCurrentRow.getStroke(place));
+		RawRow finishedRow = fCurrentRow;
 		fCurrentRow = fNextRow;
-		fNextRow = new RawRow(!fCurrentRow.isHandstroke());
+		finishedRow.clear(!fCurrentRow.isHandstroke());
+		fNextRow = finishedRow;
 	}
 
 	public void notifyInputComplete()
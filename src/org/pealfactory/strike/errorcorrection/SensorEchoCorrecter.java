@@ -1,6 +1,5 @@
 package org.pealfactory.strike.errorcorrection;
 
-import org.pealfactory.strike.data.Bong;
 import org.pealfactory.strike.Constants;
 
 /**
@@ -31,7 +30,9 @@ import org.pealfactory.strike.Constants;
  */
 public class SensorEchoCorrecter extends ErrorCorrectionHelper
 {
-	private Bong[] fBongs = new Bong[Constants.MAXNBELLS];
+	/** Time of the last strike passed on for each bell, if fHeard */
+	private int[] fLastTime = new int[Constants.MAXNBELLS];
+	private boolean[] fHeard = new boolean[Constants.MAXNBELLS];
 
 	private int fQuickestStrikeTime;
 
@@ -45,13 +46,19 @@ public class SensorEchoCorrecter extends ErrorCorrectionHelper
 		fQuickestStrikeTime = quickestStrikeTime;
 	}
 
-	public void receiveBong(Bong bong)
+	@Override
+	public String getSettings()
 	{
-		Bong prevBong = fBongs[bong.bell-1];
-		if (prevBong==null || bong.time-prevBong.time>=fQuickestStrikeTime)
+		return Integer.toString(fQuickestStrikeTime);
+	}
+
+	public void receiveStrike(int bell, int time, int stroke)
+	{
+		if (!fHeard[bell-1] || time-fLastTime[bell-1]>=fQuickestStrikeTime)
 		{
-      fBongs[bong.bell-1] = bong;
-			fNextStage.receiveBong(bong);
+			fHeard[bell-1] = true;
+			fLastTime[bell-1] = time;
+			sendStrike(bell, time, stroke);
 		}
 	}
 
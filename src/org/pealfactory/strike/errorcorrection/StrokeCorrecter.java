@@ -3,6 +3,8 @@ package org.pealfactory.strike.errorcorrection;
 import org.pealfactory.strike.data.Bong;
 import org.pealfactory.strike.Constants;
 
+import java.util.*;
+
 /**
  * An error corrector which attempts to assign correct handstroke/backstroke flags to each incoming row;
  * it is necessary for Lowndes-format input files, which do not guarantee correct stroke information.
@@ -48,7 +50,8 @@ import org.pealfactory.strike.Constants;
  */
 public class StrokeCorrecter extends ErrorCorrectionHelper
 {
-	private Bong[] fBongs = new Bong[Constants.MAXNBELLS];
+	/** Bells heard so far in the current row */
+	private boolean[] fHeard = new boolean[Constants.MAXNBELLS];
 
 	private boolean fHandstrokeStart = true;
 
@@ -65,18 +68,21 @@ public class StrokeCorrecter extends ErrorCorrectionHelper
 		fStroke = fHandstrokeStart? Bong.HANDSTROKE : Bong.BACKSTROKE;
 	}
 
-	public void receiveBong(Bong bong)
+	@Override
+	public String getSettings()
+	{
+		return Boolean.toString(fHandstrokeStart);
+	}
+
+	public void receiveStrike(int bell, int time, int stroke)
 	{
-		Bong prevBong = fBongs[bong.bell-1];
-		if (prevBong!=null)
+		if (fHeard[bell-1])
 		{
 			fStroke = -fStroke;
-			for (int i=0; i<fBongs.length; i++)
-				fBongs[i] = null;
+			Arrays.fill(fHeard, false);
 		}
-		fBongs[bong.bell-1] = bong;
-		bong.stroke = fStroke;
-		fNextStage.receiveBong(bong);
+		fHeard[bell-1] = true;
+		sendStrike(bell, time, fStroke);
 	}
 
 	public void notifyInputComplete()
@@ -2,15 +2,19 @@ package org.pealfactory.strike.errorcorrection;
 
 import java.util.*;
 
-import org.pealfactory.strike.input.InputStageListener;
-import org.pealfactory.strike.data.Bong;
-
 /**
  * Sorts incoming Bongs in time order; necessary for Bagley input files.
  * Note that later error correctors, in particular the RowOverlapCorrector, may re-order
  * bongs so they are once more out of strict time order, if that is necessary to de-interleave
  * whole rows.
- *
+ * <p>
+ * Strikes are held back in a heap until a strike has arrived which is later by more than the hold-back
+ * window. The window starts at the maximum time error given to the constructor, but once the first
+ * LEARNING_STRIKES strikes have been seen it shrinks to a multiple of the worst disorder actually observed -
+ * how far a strike's time has been behind the latest time already received. Well-ordered input such as
+ * a CAS file or a live feed is therefore passed on with only a few milliseconds' delay. If a strike does
+ * arrive too late to be put back in order it is passed on straight away, and the window grows again.
+ * </p>
  * <p>
  * CAS Copyright 2003-2012 Mark B Davies
  * </p>
@@ -35,54 +39,178 @@ import org.pealfactory.strike.data.Bong;
  */
 public class TimeOrderCorrecter extends ErrorCorrectionHelper
 {
-  private LinkedList fQueue = new LinkedList();
+	/** Strikes are held back for the full maximum time error until this many have been seen */
+	public static final int LEARNING_STRIKES = 64;
+	/** Once learning is done, the window is this multiple of the worst disorder seen, plus DISORDER_MARGIN_MS */
+	public static final int DISORDER_FACTOR = 2;
+	public static final int DISORDER_MARGIN_MS = 20;
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	/** Held-back strikes, as a binary min-heap ordered by time and then by order of arrival */
+	private int[] fBell = new int[INITIAL_CAPACITY];
+	private int[] fTime = new int[INITIAL_CAPACITY];
+	private int[] fStroke = new int[INITIAL_CAPACITY];
+	private long[] fArrival = new long[INITIAL_CAPACITY];
+	private int fSize = 0;
 
 	private int fMaxTimeErrorMs;
+	private int fWindowMs;
+
+	private long fNStrikes = 0;
+	private int fLatestTime;
+	private boolean fAnySent = false;
+	private int fLastSentTime;
+	private int fMaxDisorderMs = 0;
+	private int fNOutOfOrder = 0;
 
 	public TimeOrderCorrecter(int maxTimeErrorMs)
 	{
 		fMaxTimeErrorMs = maxTimeErrorMs;
+		fWindowMs = maxTimeErrorMs;
+	}
+
+	@Override
+	public String getSettings()
+	{
+		return Integer.toString(fMaxTimeErrorMs);
 	}
 
-	public void receiveBong(Bong bong)
+	public void receiveStrike(int bell, int time, int stroke)
 	{
-		while (!fQueue.isEmpty())
+		if (fNStrikes==0 || time>fLatestTime)
 		{
-			Bong firstBong = (Bong)fQueue.getFirst();
-			if (bong.time-firstBong.time > fMaxTimeErrorMs)
-			{
-				fQueue.removeFirst();
-				fNextStage.receiveBong(firstBong);
-			}
-			else
-			{
+			fLatestTime = time;
+		}
+		else if (fLatestTime-time>fMaxDisorderMs)
+		{
+			fMaxDisorderMs = fLatestTime-time;
+			adaptWindow();
+		}
+		if (fAnySent && time<fLastSentTime)
+			fNOutOfOrder++;
+		push(bell, time, stroke, fNStrikes++);
+		if (fNStrikes==LEARNING_STRIKES)
+			adaptWindow();
+		while (fSize>0 && fLatestTime-fTime[0] > fWindowMs)
+			sendFirst();
+	}
+
+	private void adaptWindow()
+	{
+		if (fNStrikes>=LEARNING_STRIKES)
+			fWindowMs = Math.min(fMaxTimeErrorMs, fMaxDisorderMs*DISORDER_FACTOR+DISORDER_MARGIN_MS);
+	}
+
+	/**
+	 * @return the current hold-back window, in ms
+	 */
+	public int getWindowMs()
+	{
+		return fWindowMs;
+	}
+
+	/**
+	 * @return the furthest any strike has arrived behind the latest strike time already received, in ms
+	 */
+	public int getMaxDisorderMs()
+	{
+		return fMaxDisorderMs;
+	}
+
+	/**
+	 * @return number of strikes which arrived too late to be passed on in time order
+	 */
+	public int getNOutOfOrder()
+	{
+		return fNOutOfOrder;
+	}
+
+	private boolean isBefore(int i, int j)
+	{
+		if (fTime[i]!=fTime[j])
+			return fTime[i]<fTime[j];
+		return fArrival[i]<fArrival[j];
+	}
+
+	private void swap(int i, int j)
+	{
+		int bell = fBell[i];
+		fBell[i] = fBell[j];
+		fBell[j] = bell;
+		int time = fTime[i];
+		fTime[i] = fTime[j];
+		fTime[j] = time;
+		int stroke = fStroke[i];
+		fStroke[i] = fStroke[j];
+		fStroke[j] = stroke;
+		long arrival = fArrival[i];
+		fArrival[i] = fArrival[j];
+		fArrival[j] = arrival;
+	}
+
+	private void push(int bell, int time, int stroke, long arrival)
+	{
+		if (fSize==fTime.length)
+		{
+			int newSize = fSize*2;
+			fBell = Arrays.copyOf(fBell, newSize);
+			fTime = Arrays.copyOf(fTime, newSize);
+			fStroke = Arrays.copyOf(fStroke, newSize);
+			fArrival = Arrays.copyOf(fArrival, newSize);
+		}
+		int i = fSize++;
+		fBell[i] = bell;
+		fTime[i] = time;
+		fStroke[i] = stroke;
+		fArrival[i] = arrival;
+		while (i>0)
+		{
+			int parent = (i-1)/2;
+			if (!isBefore(i, parent))
 				break;
-			}
+			swap(i, parent);
+			i = parent;
 		}
-		ListIterator i = fQueue.listIterator();
-		while (i.hasNext())
+	}
+
+	/**
+	 * Removes the earliest strike from the heap and passes it on.
+	 */
+	private void sendFirst()
+	{
+		int bell = fBell[0];
+		int time = fTime[0];
+		int stroke = fStroke[0];
+		fSize--;
+		if (fSize>0)
 		{
-      Bong oldBong = (Bong)i.next();
-			if (bong.time<oldBong.time)
+			swap(0, fSize);
+			int i = 0;
+			while (true)
 			{
-				i.previous();
-				i.add(bong);
-				bong = null;
-				break;
+				int child = 2*i+1;
+				if (child>=fSize)
+					break;
+				if (child+1<fSize && isBefore(child+1, child))
+					child++;
+				if (!isBefore(child, i))
+					break;
+				swap(i, child);
+				i = child;
 			}
 		}
-		if (bong!=null)
-			fQueue.add(bong);
+		fAnySent = true;
+		fLastSentTime = time;
+		sendStrike(bell, time, stroke);
 	}
 
 	public void notifyInputComplete()
 	{
-		ListIterator i = fQueue.listIterator();
-		while (i.hasNext())
-		{
-      Bong bong = (Bong)i.next();
-      fNextStage.receiveBong(bong);
-		}
+		while (fSize>0)
+			sendFirst();
+		if (fNOutOfOrder>0)
+			System.out.println("WARNING: "+fNOutOfOrder+" strikes arrived too late to be put in time order; worst disorder "+fMaxDisorderMs+"ms");
 		fNextStage.notifyInputComplete();
 	}
 
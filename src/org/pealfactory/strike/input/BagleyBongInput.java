@@ -6,6 +6,7 @@ import org.pealfactory.strike.errorcorrection.*;
 import org.pealfactory.strike.pipeline.*;
 
 import java.io.*;
+import java.nio.*;
 import java.util.*;
 
 /**
@@ -48,7 +49,10 @@ public class BagleyBongInput extends BongInputHelper
 	private Reader fOddstrucknessData;
 	int[] fHandOddstruck = new int[MAXNBELLS];
 	int[] fBackOddstruck = new int[MAXNBELLS];
-	Bong[] fPreviousBongs = new Bong[MAXNBELLS];
+	/** Time and stroke of the previous strike of each bell, if fHeard */
+	int[] fPreviousTime = new int[MAXNBELLS];
+	int[] fPreviousStroke = new int[MAXNBELLS];
+	boolean[] fHeard = new boolean[MAXNBELLS];
 	int fCount6th = 0;
 
 	public BagleyBongInput(String filename, Reader bdcFile, Reader oddstruckFile)
@@ -57,6 +61,12 @@ public class BagleyBongInput extends BongInputHelper
 		fOddstrucknessData = oddstruckFile;
 	}
 
+	public BagleyBongInput(String filename, ByteBuffer bdcFile, Reader oddstruckFile)
+	{
+		super(filename, bdcFile);
+		fOddstrucknessData = oddstruckFile;
+	}
+
 	public String getInputFormat()
 	{
 		return "Bagley";
@@ -176,28 +186,72 @@ public class BagleyBongInput extends BongInputHelper
 			return;
 		if (b>fNBells)
 			fNBells = b;
+		if (isSensorGhost(b))
+			return;
 
-		// Only take every 1st and 4th occurrences of the 6th - drop the 2nd and 3rd, which are sensor ghosts.
-		if (DROP6DOUBLE && b==6)
+		int t = 0;
+		try
 		{
-			fCount6th++;
-			if (fCount6th>3)
-				fCount6th = 0;
-			else if (fCount6th>1)
-				return;
+			t = Integer.parseInt(line.substring(1,9));
+		}
+		catch (NumberFormatException e)
+		{
+			fInputListener.notifyInputError("Format error in Bagley file - bad time character: "+line);
+			return;
 		}
+		processBong(b, t);
+	}
+
+	/**
+	 * Parses a Bagley line straight from the mapped input file.
+	 */
+	@Override
+	protected void processLine(ByteBuffer buf, int start, int end)
+	{
+		if (end-start!=9)
+		{
+			fInputListener.notifyInputError("Format error in Bagley file - line unexpected length: "+decodeLine(buf, start, end));
+			return;
+		}
+		int b = readBellCharacter(charAt(buf, start));
+		if (b<=0)
+			return;
+		if (b>fNBells)
+			fNBells = b;
+		if (isSensorGhost(b))
+			return;
 
 		int t = 0;
 		try
 		{
-			t = Integer.parseInt(line.substring(1,9));
+			t = parseInt(buf, start+1, end, 10);
 		}
 		catch (NumberFormatException e)
 		{
-			fInputListener.notifyInputError("Format error in Bagley file - bad time character: "+line);
+			fInputListener.notifyInputError("Format error in Bagley file - bad time character: "+decodeLine(buf, start, end));
 			return;
 		}
+		processBong(b, t);
+	}
 
+	/**
+	 * Only take every 1st and 4th occurrences of the 6th - drop the 2nd and 3rd, which are sensor ghosts.
+	 */
+	private boolean isSensorGhost(int b)
+	{
+		if (DROP6DOUBLE && b==6)
+		{
+			fCount6th++;
+			if (fCount6th>3)
+				fCount6th = 0;
+			else if (fCount6th>1)
+				return true;
+		}
+		return false;
+	}
+
+	private void processBong(int b, int t)
+	{
 		// Problem with Bagley files! The input doesn't have hand/back data, but we can't use an error corrector
 		// to infer this, since we need to know which stroke before applying "oddstruck correction" to the strike time.
 		// So, make a best guess at strokes here.
@@ -206,20 +260,20 @@ public class BagleyBongInput extends BongInputHelper
 		// to apply any extra backstroke oddstruckness after the other error correctors have run. The fact that backstroke
 		// timings are slightly out throughout the main error-correcting phase hopefully wouldn't matter too much.
 		int stroke = Bong.HANDSTROKE;
-		Bong prevBong = fPreviousBongs[b-1];
-		if (prevBong!=null)
+		if (fHeard[b-1])
 		{
-			if (t-prevBong.time<QUICKEST_STRIKE_TIME)
+			if (t-fPreviousTime[b-1]<QUICKEST_STRIKE_TIME)
 				return;
-			stroke = -prevBong.stroke;
+			stroke = -fPreviousStroke[b-1];
 		}
 		if (stroke==Bong.HANDSTROKE)
 			t+= fHandOddstruck[b-1];
 		else
 			t+= fBackOddstruck[b-1];
-		Bong bong = new Bong(b, t, stroke);
-		fInputListener.receiveBong(bong);
-		fPreviousBongs[b-1] = bong;
+		fInputListener.receiveStrike(b, t, stroke);
+		fHeard[b-1] = true;
+		fPreviousTime[b-1] = t;
+		fPreviousStroke[b-1] = stroke;
 	}
 
 }
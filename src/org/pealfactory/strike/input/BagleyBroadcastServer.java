@@ -2,11 +2,29 @@ package org.pealfactory.strike.input;
 
 import org.pealfactory.strike.data.Bong;
 
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 /**
+ * Broadcasts a stream of strikes to any number of BagleyClient subscribers. The input is parsed once, on its own
+ * thread, and each Bong is encoded just once into a shared strike log, in the text form "bell time [H|B]".
+ * All sockets are handled by a single selector thread. Each subscriber has a cursor into the shared log and is
+ * sent whatever lies between its cursor and the end of the log, as fast as its socket will accept it; a slow
+ * subscriber simply falls behind without holding up the others, and catches up from the log later.
+ * <p>
+ * A subscriber must send one request line after connecting: START to receive the whole stream, or
+ * RESUME count time to carry on after a dropped connection, where count is the number of strikes already
+ * received and time is the timestamp of the last of them. Older clients, which just connect and read, are
+ * treated as if they had sent START: so is any subscriber which sends nothing within REQUEST_TIMEOUT_MS, or
+ * whose first bytes can't be the start of a request. Once the input is complete, the line END is added to
+ * the log, and each subscriber's connection is closed after it has been sent; a connection which closes without
+ * END has been dropped.
+ * </p>
  * <p>
  * CAS Copyright 2003-2012 Mark B Davies
  * </p>
@@ -32,14 +50,48 @@ import java.io.*;
 public class BagleyBroadcastServer
 {
 	public final static int PORT = 11001;
+	public final static String REQUEST_START = "START";
+	public final static String REQUEST_RESUME = "RESUME";
+	public final static String REPLY_END = "END";
+
+	private final static int MAX_REQUEST_LENGTH = 64;
+	/** How long to wait for a new subscriber's request before sending it the whole stream anyway */
+	public final static int REQUEST_TIMEOUT_MS = 1000;
 
-	private ServerSocket fServerSocket;
+	private Selector fSelector;
+	private ServerSocketChannel fServerChannel;
+	private StrikeLog fLog = new StrikeLog();
+	private List<Subscriber> fSubscribers = new ArrayList<Subscriber>();
 
+	/** Bongs from the input thread, waiting to be added to the log by the selector thread */
+	private final Queue<Bong> fIncoming = new ConcurrentLinkedQueue<Bong>();
+	private final AtomicBoolean fWakeupPending = new AtomicBoolean();
+	private volatile boolean fInputComplete;
+	private volatile boolean fStopped;
+
+	/**
+	 * Broadcasts a striking file, by default peal.txt.
+	 *
+	 * @param args [file]
+	 */
 	public static void main(String[] args)
 	{
+		String filename = args.length>0? args[0]: "peal.txt";
 		try
 		{
-    	BagleyBroadcastServer server = new BagleyBroadcastServer(PORT);
+			BagleyBroadcastServer server = new BagleyBroadcastServer(PORT);
+			FileInputSource source = new FileInputSource(){
+				public Reader getReader(String name) throws FileNotFoundException
+				{
+					return new FileReader(getFile(name));
+				}
+
+				public File getFile(String name)
+				{
+					return new File(name);
+				}
+			};
+			server.startInput(new InputFactory().createInputter(filename, source));
 			server.listenAndProcess();
 		}
 		catch (IOException e)
@@ -50,79 +102,496 @@ public class BagleyBroadcastServer
 
 	public BagleyBroadcastServer(int port) throws IOException
 	{
-		fServerSocket = new ServerSocket(port);
+		fSelector = Selector.open();
+		fServerChannel = ServerSocketChannel.open();
+		fServerChannel.socket().setReuseAddress(true);
+		fServerChannel.socket().bind(new InetSocketAddress(port));
+		fServerChannel.configureBlocking(false);
+		fServerChannel.register(fSelector, SelectionKey.OP_ACCEPT);
 	}
 
+	/**
+	 * Starts reading the input on a new thread. Strikes are broadcast to subscribers as they arrive.
+	 *
+	 * @param inputter
+	 */
+	public void startInput(final StrikingDataInput inputter)
+	{
+		final InputStageListener inputListener = new InputStageListener(){
+			public void receiveBong(Bong bong)
+			{
+				fIncoming.offer(bong);
+				wakeup();
+			}
+
+			public void receiveStrike(int bell, int time, int stroke)
+			{
+				// Strikes are handed across to the selector thread, so do need their own objects here.
+				receiveBong(new Bong(bell, time, stroke));
+			}
+
+			public void receiveStrikes(int[] bells, int[] times, int[] strokes, int count)
+			{
+				for (int i=0; i<count; i++)
+					fIncoming.offer(new Bong(bells[i], times[i], strokes[i]));
+				wakeup();
+			}
+
+			public void notifyInputComplete()
+			{
+				fInputComplete = true;
+				wakeup();
+			}
+
+			public void notifyInputError(String msg)
+			{
+				System.out.println("Input Error: "+msg);
+			}
+		};
+		Thread thread = new Thread(new Runnable(){
+			public void run()
+			{
+				System.out.println("Data load begins from "+inputter.getInputName());
+				inputter.startLoad(inputListener);
+				System.out.println("Data load complete from "+inputter.getInputName());
+			}
+		}, "Broadcast Input Thread");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** Only wake the selector once per batch of strikes */
+	private void wakeup()
+	{
+		if (fWakeupPending.compareAndSet(false, true))
+			fSelector.wakeup();
+	}
+
+	public void stop()
+	{
+		fStopped = true;
+		fSelector.wakeup();
+	}
+
+	/**
+	 * Runs the selector loop on the calling thread, until stop() is called.
+	 */
 	public void listenAndProcess()
 	{
-		while (true)
+		try
 		{
-			try
+			while (!fStopped)
 			{
-				Socket socket = fServerSocket.accept();
-				Thread thread = new Thread(new OutputThread(socket));
-				thread.start();
+				long timeout = getRequestTimeout();
+				if (timeout>0)
+					fSelector.select(timeout);
+				else
+					fSelector.selectNow();
+				fWakeupPending.set(false);
+				startWaitingSubscribers();
+				boolean newData = addIncomingStrikes();
+				if (fInputComplete && fIncoming.isEmpty() && !fLog.isEnded())
+				{
+					fLog.end();
+					newData = true;
+				}
+				if (newData)
+					sendToAll();
+				Iterator<SelectionKey> i = fSelector.selectedKeys().iterator();
+				while (i.hasNext())
+				{
+					SelectionKey key = i.next();
+					i.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable())
+						accept();
+					else
+						processKey(key);
+				}
 			}
-			catch (IOException e)
+		}
+		catch (IOException e)
+		{
+			System.out.println("Broadcast server failed: "+e);
+		}
+		finally
+		{
+			close();
+		}
+	}
+
+	/**
+	 * @return ms until the first subscriber still waiting for a request times out; 0 to wait indefinitely, or
+	 * -1 if one has already timed out
+	 */
+	private long getRequestTimeout()
+	{
+		long first = Long.MAX_VALUE;
+		for (Subscriber s: fSubscribers)
+			if (!s.isStarted())
+				first = Math.min(first, s.fConnectTime+REQUEST_TIMEOUT_MS);
+		if (first==Long.MAX_VALUE)
+			return 0;
+		return Math.max(first-System.currentTimeMillis(), -1);
+	}
+
+	/**
+	 * Subscribers which haven't sent a request in time are assumed to be older clients, and sent the whole stream.
+	 */
+	private void startWaitingSubscribers()
+	{
+		long now = System.currentTimeMillis();
+		for (Subscriber s: new ArrayList<Subscriber>(fSubscribers))
+			if (!s.isStarted() && now>=s.fConnectTime+REQUEST_TIMEOUT_MS)
+				s.startWithoutRequest();
+	}
+
+	private boolean addIncomingStrikes()
+	{
+		boolean added = false;
+		Bong bong;
+		while ((bong = fIncoming.poll())!=null)
+		{
+			fLog.add(bong);
+			added = true;
+		}
+		return added;
+	}
+
+	private void sendToAll()
+	{
+		// Copy, since subscribers may be removed as we go
+		for (Subscriber s: new ArrayList<Subscriber>(fSubscribers))
+			if (s.isStarted())
+				s.send();
+	}
+
+	private void accept()
+	{
+		try
+		{
+			SocketChannel channel = fServerChannel.accept();
+			if (channel==null)
+				return;
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			Subscriber s = new Subscriber(channel);
+			s.fKey = channel.register(fSelector, SelectionKey.OP_READ, s);
+			fSubscribers.add(s);
+			System.out.println("Subscriber connected: "+channel.socket().getRemoteSocketAddress());
+		}
+		catch (IOException e)
+		{
+			System.out.println("Failed to accept connection: "+e);
+		}
+	}
+
+	private void processKey(SelectionKey key)
+	{
+		Subscriber s = (Subscriber)key.attachment();
+		if (key.isReadable())
+			s.read();
+		if (key.isValid() && key.isWritable())
+			s.send();
+	}
+
+	private void close()
+	{
+		for (Subscriber s: new ArrayList<Subscriber>(fSubscribers))
+			s.close();
+		try
+		{
+			fServerChannel.close();
+			fSelector.close();
+		}
+		catch (IOException e)
+		{
+			// Ignore
+		}
+	}
+
+	/**
+	 * The encoded strikes, in arrival order, plus the end offset and time of each so that subscribers can resume.
+	 * Only touched by the selector thread.
+	 */
+	static class StrikeLog
+	{
+		private byte[] fData = new byte[16384];
+		private int fLength;
+		private int[] fStrikeEnd = new int[1024];
+		private int[] fStrikeTime = new int[1024];
+		private int fNStrikes;
+		private boolean fEnded;
+
+		void add(Bong bong)
+		{
+			if (fLength+32>fData.length)
+				fData = Arrays.copyOf(fData, fData.length*2);
+			if (fNStrikes==fStrikeEnd.length)
+			{
+				fStrikeEnd = Arrays.copyOf(fStrikeEnd, fNStrikes*2);
+				fStrikeTime = Arrays.copyOf(fStrikeTime, fNStrikes*2);
+			}
+			// Same text as Bong.toString(), without creating Strings
+			appendInt(bong.bell);
+			fData[fLength++] = ' ';
+			appendInt(bong.time);
+			fData[fLength++] = ' ';
+			if (bong.stroke==Bong.HANDSTROKE)
+				fData[fLength++] = 'H';
+			else if (bong.stroke==Bong.BACKSTROKE)
+				fData[fLength++] = 'B';
+			fData[fLength++] = '\n';
+			fStrikeEnd[fNStrikes] = fLength;
+			fStrikeTime[fNStrikes] = bong.time;
+			fNStrikes++;
+		}
+
+		void end()
+		{
+			byte[] end = (REPLY_END+"\n").getBytes();
+			if (fLength+end.length>fData.length)
+				fData = Arrays.copyOf(fData, fLength+end.length);
+			System.arraycopy(end, 0, fData, fLength, end.length);
+			fLength+= end.length;
+			fEnded = true;
+		}
+
+		boolean isEnded()
+		{
+			return fEnded;
+		}
+
+		private void appendInt(int value)
+		{
+			if (value<0)
+			{
+				fData[fLength++] = '-';
+				value = -value;
+			}
+			int start = fLength;
+			do
+			{
+				fData[fLength++] = (byte)('0'+value%10);
+				value/= 10;
+			}
+			while (value>0);
+			// Digits were written least significant first
+			for (int i=start, j=fLength-1; i<j; i++, j--)
+			{
+				byte b = fData[i];
+				fData[i] = fData[j];
+				fData[j] = b;
+			}
+		}
+
+		int getLength()
+		{
+			return fLength;
+		}
+
+		ByteBuffer getData(int from)
+		{
+			return ByteBuffer.wrap(fData, from, fLength-from);
+		}
+
+		/**
+		 * Finds where a subscriber that has already received count strikes, the last at the given time, should
+		 * carry on from. Normally this is just strike number count, but if the log doesn't match (say the server
+		 * has been restarted) we look for the strike at that time, or failing that the first strike after it.
+		 *
+		 * @return byte offset in the log
+		 */
+		int findResumeOffset(int count, int time)
+		{
+			int strike;
+			if (count>0 && count<=fNStrikes && fStrikeTime[count-1]==time)
 			{
-				System.out.println("Failed to accept connection: "+e);
+				strike = count;
 			}
+			else
+			{
+				strike = fNStrikes;
+				for (int i=fNStrikes-1; i>=0; i--)
+				{
+					if (fStrikeTime[i]==time)
+					{
+						strike = i+1;
+						break;
+					}
+				}
+				if (strike==fNStrikes)
+				{
+					for (int i=0; i<fNStrikes; i++)
+					{
+						if (fStrikeTime[i]>time)
+						{
+							strike = i;
+							break;
+						}
+					}
+				}
+			}
+			return strike==0? 0: fStrikeEnd[strike-1];
 		}
 	}
 
-	class OutputThread implements Runnable
+	class Subscriber
 	{
-		private Socket fSocket;
-		private PrintWriter fOut;
+		private SocketChannel fChannel;
+		private SelectionKey fKey;
+		private ByteBuffer fRequest = ByteBuffer.allocate(MAX_REQUEST_LENGTH);
+		/** Offset in the strike log of the next byte to send, or -1 until a request has been received */
+		private int fPosition = -1;
+		private long fConnectTime;
+
+		Subscriber(SocketChannel channel)
+		{
+			fChannel = channel;
+			fConnectTime = System.currentTimeMillis();
+		}
 
-		public OutputThread(Socket s) throws IOException
+		boolean isStarted()
 		{
-			fSocket = s;
-			fOut = new PrintWriter(new OutputStreamWriter(fSocket.getOutputStream()));
+			return fPosition>=0;
 		}
 
-		public void run()
+		void read()
 		{
-			System.out.println("Data load begins on socket "+fSocket);
-			File bf = new File("peal.txt");
-			BagleyBongInput inputter = null;
 			try
 			{
-				inputter = new BagleyBongInput(bf.getName(), new FileReader(bf), new FileReader("oddstruck.txt"));
+				if (isStarted())
+				{
+					// Nothing more expected from the subscriber, except end of stream.
+					fRequest.clear();
+					if (fChannel.read(fRequest)<0)
+						close();
+					return;
+				}
+				if (fChannel.read(fRequest)<0)
+				{
+					close();
+					return;
+				}
+				if (!isRequestPrefix(REQUEST_START) && !isRequestPrefix(REQUEST_RESUME))
+				{
+					startWithoutRequest();
+					return;
+				}
+				for (int i=0; i<fRequest.position(); i++)
+				{
+					if (fRequest.get(i)=='\n')
+					{
+						processRequest(new String(fRequest.array(), 0, i, "US-ASCII").trim());
+						return;
+					}
+				}
+				if (!fRequest.hasRemaining())
+				{
+					System.out.println("Request too long from subscriber "+fChannel.socket().getRemoteSocketAddress());
+					close();
+				}
 			}
 			catch (IOException e)
 			{
-				System.out.println("Failed to load input data: "+e);
-				return;
+				close();
 			}
-			InputStageListener inputListener = new InputStageListener(){
-				public void receiveBong(Bong bong)
+		}
+
+		/**
+		 * @return true if what has been read so far could be the start of the given request
+		 */
+		private boolean isRequestPrefix(String command)
+		{
+			int n = Math.min(fRequest.position(), command.length());
+			for (int i=0; i<n; i++)
+			{
+				if (fRequest.get(i)!=command.charAt(i))
+					return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Sends the whole stream, to a subscriber which hasn't made a request.
+		 */
+		void startWithoutRequest()
+		{
+			System.out.println("No request from subscriber "+fChannel.socket().getRemoteSocketAddress()+"; sending from the start");
+			fPosition = 0;
+			send();
+		}
+
+		private void processRequest(String request)
+		{
+			StringTokenizer tok = new StringTokenizer(request, " ");
+			String command = tok.hasMoreTokens()? tok.nextToken(): "";
+			try
+			{
+				if (command.equals(REQUEST_START))
 				{
-					fOut.println(bong.toString());
+					fPosition = 0;
 				}
-
-				public void notifyInputComplete()
+				else if (command.equals(REQUEST_RESUME) && tok.countTokens()==2)
 				{
-					fOut.close();
+					int count = Integer.parseInt(tok.nextToken());
+					int time = Integer.parseInt(tok.nextToken());
+					fPosition = fLog.findResumeOffset(count, time);
 				}
+			}
+			catch (NumberFormatException e)
+			{
+				// Treated as a bad request below
+			}
+			if (!isStarted())
+			{
+				System.out.println("Bad request from subscriber: "+request);
+				close();
+				return;
+			}
+			send();
+		}
 
-				public void notifyInputError(String msg)
+		/**
+		 * Sends as much of the log as the socket will take without blocking. If some is left over, we wait for
+		 * the socket to become writable again; meanwhile other subscribers carry on as normal.
+		 */
+		void send()
+		{
+			try
+			{
+				if (fPosition<fLog.getLength())
+					fPosition+= fChannel.write(fLog.getData(fPosition));
+				if (fPosition<fLog.getLength())
 				{
-					System.out.println("Input Error: "+msg);
+					fKey.interestOps(SelectionKey.OP_READ|SelectionKey.OP_WRITE);
 				}
+				else
+				{
+					fKey.interestOps(SelectionKey.OP_READ);
+					if (fLog.isEnded())
+						close();
+				}
+			}
+			catch (IOException e)
+			{
+				close();
+			}
+		}
 
-			};
-			inputter.startLoad(inputListener);
-			System.out.println("Data load complete on socket "+fSocket);
+		void close()
+		{
+			fSubscribers.remove(this);
+			fKey.cancel();
 			try
 			{
-				fSocket.close();
+				fChannel.close();
 			}
 			catch (IOException e)
 			{
-				System.out.println("Failed to close socket: "+e);
+				// Ignore
 			}
 		}
 	}
-
 }
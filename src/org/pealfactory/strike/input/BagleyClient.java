@@ -2,14 +2,22 @@ package org.pealfactory.strike.input;
 
 import org.pealfactory.strike.data.Bong;
 import org.pealfactory.strike.errorcorrection.*;
-import org.pealfactory.strike.Constants;
 
-import java.net.Socket;
+import java.net.*;
 import java.io.*;
 import java.util.List;
 import java.util.ArrayList;
 
 /**
+ * Receives a live strike stream from a BagleyBroadcastServer. Socket data is read into a reusable buffer and
+ * each complete line is parsed straight from the bytes; the strikes from each read are delivered to the
+ * pipeline in one batch, and any partial line is kept for the next read.
+ * <p>
+ * If the connection drops before the server has sent END, the client reconnects, backing off between attempts,
+ * and asks the server to resume after the last strike it received. A capture can therefore survive network
+ * glitches, or a server restart, without losing the analysis so far. The load stops if the input thread is
+ * interrupted, or if the very first connection attempt fails.
+ * </p>
  * <p>
  * CAS Copyright 2003-2012 Mark B Davies
  * </p>
@@ -34,12 +42,36 @@ import java.util.ArrayList;
  */
 public class BagleyClient implements StrikingDataInput
 {
+	private static final int BUFFER_SIZE = 8192;
+	private static final int MIN_RECONNECT_DELAY = 500;
+	private static final int MAX_RECONNECT_DELAY = 10000;
+
+	private String fHost;
+	private int fPort;
 	private Socket fSocket;
 	private InputStageListener fInputListener;
 	private boolean fClosed;
 
+	private byte[] fBuffer = new byte[BUFFER_SIZE];
+	/** Strikes parsed from the current read; the shortest line, "1 0", takes 4 bytes of the buffer */
+	private int[] fBatchBells = new int[BUFFER_SIZE/4];
+	private int[] fBatchTimes = new int[BUFFER_SIZE/4];
+	private int[] fBatchStrokes = new int[BUFFER_SIZE/4];
+	private int fBatchSize;
+	/** Number of strikes received so far, and the time of the last one - needed to resume */
+	private int fNStrikes;
+	private int fLastTime;
+	private boolean fEndReceived;
+
 	public BagleyClient()
 	{
+		this("localhost", BagleyBroadcastServer.PORT);
+	}
+
+	public BagleyClient(String host, int port)
+	{
+		fHost = host;
+		fPort = port;
 	}
 
 	public String getInputFormat()
@@ -71,40 +103,205 @@ public class BagleyClient implements StrikingDataInput
 	public void startLoad(InputStageListener pipeline)
 	{
 		fInputListener = pipeline;
-		LineNumberReader reader = null;
-		try
+		boolean connected = false;
+		int delay = MIN_RECONNECT_DELAY;
+		while (!fEndReceived)
 		{
-			fSocket = new Socket("localhost", BagleyBroadcastServer.PORT);
-			reader = new LineNumberReader(new InputStreamReader(fSocket.getInputStream()));
+			try
+			{
+				connect();
+				connected = true;
+				int strikes = fNStrikes;
+				readStrikes();
+				// Only back off further if the connection isn't delivering anything
+				if (fNStrikes>strikes)
+					delay = MIN_RECONNECT_DELAY;
+			}
+			catch (IOException e)
+			{
+				if (!connected)
+				{
+					fInputListener.notifyInputError("Failed to open socket: "+e);
+					return;
+				}
+				System.out.println("Capture connection failed: "+e);
+			}
+			finally
+			{
+				closeSocket();
+			}
+			if (fEndReceived)
+				break;
+			System.out.println("Lost connection to capture server after "+fNStrikes+" strikes; reconnecting in "+delay+"ms");
+			try
+			{
+				Thread.sleep(delay);
+			}
+			catch (InterruptedException e)
+			{
+				fClosed = true;
+				return;
+			}
+			delay = Math.min(delay*2, MAX_RECONNECT_DELAY);
 		}
-		catch (Exception e)
+		fClosed = true;
+		fInputListener.notifyInputComplete();
+	}
+
+	private void connect() throws IOException
+	{
+		fSocket = new Socket(fHost, fPort);
+		fSocket.setTcpNoDelay(true);
+		String request;
+		if (fNStrikes==0)
+			request = BagleyBroadcastServer.REQUEST_START;
+		else
+			request = BagleyBroadcastServer.REQUEST_RESUME+" "+fNStrikes+" "+fLastTime;
+		OutputStream out = fSocket.getOutputStream();
+		out.write((request+"\n").getBytes("US-ASCII"));
+		out.flush();
+	}
+
+	private void closeSocket()
+	{
+		if (fSocket!=null)
 		{
-      fInputListener.notifyInputError("Failed to open socket: "+e);
-			return;
+			try
+			{
+				fSocket.close();
+			}
+			catch (IOException e)
+			{
+				// Ignore
+			}
 		}
-		try
+	}
+
+	/**
+	 * Reads until the server sends END, or the connection is closed. Each read is parsed as a batch of
+	 * complete lines, whose strikes are delivered together; a trailing partial line is moved to the start of the
+	 * buffer to be completed by the next.
+	 */
+	private void readStrikes() throws IOException
+	{
+		InputStream in = fSocket.getInputStream();
+		int end = 0;
+		int n;
+		while ((n = in.read(fBuffer, end, fBuffer.length-end))>0)
 		{
-	    String line = reader.readLine();
-			while (line!=null)
+			int lineStart = 0;
+			for (int i=end; i<end+n; i++)
 			{
-				Bong bong = Bong.fromString(line);
-				fInputListener.receiveBong(bong);
-				line = reader.readLine();
+				if (fBuffer[i]=='\n')
+				{
+					processLine(lineStart, i);
+					if (fEndReceived)
+					{
+						deliverBatch();
+						return;
+					}
+					lineStart = i+1;
+				}
 			}
-			fClosed = true;
-			fInputListener.notifyInputComplete();
-			reader.close();
-			fSocket.close();
+			deliverBatch();
+			end+= n;
+			System.arraycopy(fBuffer, lineStart, fBuffer, 0, end-lineStart);
+			end-= lineStart;
+			if (end==fBuffer.length)
+				throw new IOException("Line too long from capture server");
+		}
+	}
+
+	/**
+	 * Parses a line in Bong.toString() format - "bell time [H|B]" - or the END marker.
+	 */
+	private void processLine(int start, int end)
+	{
+		while (end>start && fBuffer[end-1]<=' ')
+			end--;
+		int pos = skipSpaces(start, end);
+		if (pos>=end)
+			return;
+		if (fBuffer[pos]=='E' && new String(fBuffer, pos, end-pos).equals(BagleyBroadcastServer.REPLY_END))
+		{
+			fEndReceived = true;
+			return;
+		}
+		int bellEnd = findSpace(pos, end);
+		int timeStart = skipSpaces(bellEnd, end);
+		int timeEnd = findSpace(timeStart, end);
+		int bell = parseInt(pos, bellEnd);
+		int time = parseInt(timeStart, timeEnd);
+		if (bell<=0 || timeStart==timeEnd || time==Integer.MIN_VALUE)
+		{
+			// Keep the error in order with the strikes before it
+			deliverBatch();
+			fInputListener.notifyInputError("Bad bong: "+new String(fBuffer, start, end-start));
+			return;
+		}
+		int stroke = Bong.UNKNOWNSTROKE;
+		int strokeStart = skipSpaces(timeEnd, end);
+		if (end-strokeStart==1)
+		{
+			if (fBuffer[strokeStart]=='H')
+				stroke = Bong.HANDSTROKE;
+			else if (fBuffer[strokeStart]=='B')
+				stroke = Bong.BACKSTROKE;
 		}
-		catch (Exception e)
+		fNStrikes++;
+		fLastTime = time;
+		fBatchBells[fBatchSize] = bell;
+		fBatchTimes[fBatchSize] = time;
+		fBatchStrokes[fBatchSize] = stroke;
+		fBatchSize++;
+	}
+
+	/**
+	 * Passes on the strikes parsed from the current read, in one call.
+	 */
+	private void deliverBatch()
+	{
+		if (fBatchSize>0)
+			fInputListener.receiveStrikes(fBatchBells, fBatchTimes, fBatchStrokes, fBatchSize);
+		fBatchSize = 0;
+	}
+
+	private int skipSpaces(int pos, int end)
+	{
+		while (pos<end && fBuffer[pos]==' ')
+			pos++;
+		return pos;
+	}
+
+	private int findSpace(int pos, int end)
+	{
+		while (pos<end && fBuffer[pos]!=' ')
+			pos++;
+		return pos;
+	}
+
+	/** @return the decimal value, or Integer.MIN_VALUE if it isn't a number */
+	private int parseInt(int start, int end)
+	{
+		boolean negative = start<end && fBuffer[start]=='-';
+		if (negative)
+			start++;
+		if (start>=end || end-start>9)
+			return Integer.MIN_VALUE;
+		int value = 0;
+		for (int i=start; i<end; i++)
 		{
-			fInputListener.notifyInputError("Failed to read from socket: "+e);
+			int digit = fBuffer[i]-'0';
+			if (digit<0 || digit>9)
+				return Integer.MIN_VALUE;
+			value = value*10+digit;
 		}
+		return negative? -value: value;
 	}
 
 	public boolean isOpen()
 	{
-		return fSocket!=null && !isClosed();
+		return fInputListener!=null && !isClosed();
 	}
 
 	public boolean isClosed()
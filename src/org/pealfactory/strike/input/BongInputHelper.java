@@ -4,8 +4,13 @@ import org.pealfactory.strike.Constants;
 import org.pealfactory.strike.data.*;
 
 import java.io.*;
+import java.nio.*;
 
 /**
+ * Base class for the file-based input formats. Input is either read line by line from a Reader, or, for local
+ * files, parsed directly from a memory-mapped ByteBuffer. In the buffer case each line is handed to
+ * processLine(ByteBuffer, int, int) as a byte range, so formats which override it can read bells and times
+ * without creating Strings.
  * <p>
  * CAS Copyright 2003-2012 Mark B Davies
  * </p>
@@ -31,6 +36,7 @@ import java.io.*;
 public abstract class BongInputHelper implements StrikingDataInput, Constants
 {
 	protected Reader fInputReader;
+	protected ByteBuffer fInputBuffer;
 	protected String fFilename;
 	protected int fNBells;
 	protected InputStageListener fInputListener;
@@ -43,6 +49,13 @@ public abstract class BongInputHelper implements StrikingDataInput, Constants
 		fNBells = -1;
 	}
 
+	protected BongInputHelper(String name, ByteBuffer input)
+	{
+		fInputBuffer = input;
+		fFilename = name;
+		fNBells = -1;
+	}
+
 	public static boolean isComment(String line)
 	{
 		return InputFactory.isComment(line);
@@ -81,8 +94,26 @@ public abstract class BongInputHelper implements StrikingDataInput, Constants
 
 	protected abstract void processLine(String line);
 
+	/**
+	 * Parses one trimmed, non-comment line of the input buffer. Formats should override this to parse straight
+	 * from the bytes; the default decodes the line and passes it to processLine(String).
+	 *
+	 * @param buf
+	 * @param start index of first character of line
+	 * @param end index after last character of line
+	 */
+	protected void processLine(ByteBuffer buf, int start, int end)
+	{
+		processLine(decodeLine(buf, start, end));
+	}
+
 	protected void processLines()
 	{
+		if (fInputBuffer!=null)
+		{
+			processBuffer();
+			return;
+		}
 		LineNumberReader reader = null;
 		try
 		{
@@ -119,6 +150,115 @@ public abstract class BongInputHelper implements StrikingDataInput, Constants
 		}
 	}
 
+	private void processBuffer()
+	{
+		ByteBuffer buf = fInputBuffer;
+		int limit = buf.limit();
+		int pos = 0;
+		while (pos<limit)
+		{
+			int end = findLineEnd(buf, pos);
+			int start = trimStart(buf, pos, end);
+			int trimmedEnd = trimEnd(buf, start, end);
+			if (!isComment(buf, start, trimmedEnd))
+				processLine(buf, start, trimmedEnd);
+			pos = end+1;
+		}
+		fClosed = true;
+		// Drop the mapping as soon as we're done with it.
+		fInputBuffer = null;
+		fInputListener.notifyInputComplete();
+	}
+
+	/**
+	 * @return index of the CR or LF which terminates the line starting at pos, or the buffer limit.
+	 */
+	static int findLineEnd(ByteBuffer buf, int pos)
+	{
+		int limit = buf.limit();
+		while (pos<limit)
+		{
+			byte c = buf.get(pos);
+			if (c=='\n' || c=='\r')
+				break;
+			pos++;
+		}
+		return pos;
+	}
+
+	/** Skips leading whitespace and control characters, as String.trim() */
+	static int trimStart(ByteBuffer buf, int start, int end)
+	{
+		while (start<end && (buf.get(start)&0xFF)<=' ')
+			start++;
+		return start;
+	}
+
+	/** Drops trailing whitespace and control characters, as String.trim() */
+	static int trimEnd(ByteBuffer buf, int start, int end)
+	{
+		while (end>start && (buf.get(end-1)&0xFF)<=' ')
+			end--;
+		return end;
+	}
+
+	static boolean isComment(ByteBuffer buf, int start, int end)
+	{
+		return start>=end || InputFactory.COMMENT_CHARS.indexOf(buf.get(start))>=0;
+	}
+
+	static String decodeLine(ByteBuffer buf, int start, int end)
+	{
+		StringBuilder s = new StringBuilder(end-start);
+		for (int i=start; i<end; i++)
+			s.append((char)(buf.get(i)&0xFF));
+		return s.toString();
+	}
+
+	protected static boolean startsWith(ByteBuffer buf, int start, int end, String prefix)
+	{
+		if (end-start<prefix.length())
+			return false;
+		for (int i=0; i<prefix.length(); i++)
+			if (charAt(buf, start+i)!=prefix.charAt(i))
+				return false;
+		return true;
+	}
+
+	protected static char charAt(ByteBuffer buf, int i)
+	{
+		return (char)(buf.get(i)&0xFF);
+	}
+
+	/**
+	 * Equivalent of Integer.parseInt() over a range of the buffer, without creating a String.
+	 *
+	 * @throws NumberFormatException if the range is not a valid number in the given radix
+	 */
+	protected static int parseInt(ByteBuffer buf, int start, int end, int radix) throws NumberFormatException
+	{
+		int i = start;
+		boolean negative = false;
+		if (i<end && (buf.get(i)=='-' || buf.get(i)=='+'))
+		{
+			negative = buf.get(i)=='-';
+			i++;
+		}
+		// Long runs of digits might overflow - leave those to Integer.parseInt().
+		int maxDigits = radix<=10? 9: 7;
+		if (i>=end || end-i>maxDigits)
+			return Integer.parseInt(decodeLine(buf, start, end), radix);
+		int result = 0;
+		for (; i<end; i++)
+		{
+			int digit = Character.digit(charAt(buf, i), radix);
+			if (digit<0)
+				throw new NumberFormatException("For input string: \""+decodeLine(buf, start, end)+"\"");
+			result = result*radix+digit;
+		}
+		return negative? -result: result;
+	}
+
 	protected int readStrokeCharacter(char stroke)
 	{
 		if (stroke=='H')
@@ -0,0 +1,472 @@
+package org.pealfactory.strike.input;
+
+import org.pealfactory.strike.data.*;
+import org.pealfactory.strike.errorcorrection.*;
+import org.pealfactory.strike.pipeline.*;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Compact binary equivalent of the CAS text format, for archiving touches. All multi-byte values are big-endian.
+ * <ul>
+ *  <li>Header: the magic bytes "CASB", a version byte, a byte giving the number of bells, and the name of the
+ *  original input format (as DataOutput.writeUTF).</li>
+ *  <li>Counts: ints giving the number of rows, the row index interval and the length of the row data.</li>
+ *  <li>Row index: for every INDEX_INTERVAL'th row, an int offset into the row data and an int giving the
+ *  strike time preceding that row, so any row can be found without decoding more than INDEX_INTERVAL-1 rows.</li>
+ *  <li>Row data: for each row, a byte holding the row size, plus 0x80 if it is a handstroke. Then for each strike,
+ *  a byte holding the bell number (1-16) in the bottom five bits and the stroke (0=unknown, 1=hand, 2=back) in
+ *  the next two, followed by the interval in milliseconds from the previous strike as a zig-zag varint.</li>
+ * </ul>
+ * Rows are stored as exported, with any oddstruck correction already applied, so no oddstruckness is kept.
+ * Version 1 files had an always-empty oddstruckness block after the header - a count byte, then that many
+ * pairs of shorts - which is skipped when they are read.
+ *
+ * <p>
+ * CAS Copyright 2003-2012 Mark B Davies
+ * </p>
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * </p>
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * </p>
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * </p>
+ *
+ * @author MBD
+ */
+public class CasBinaryBongInput implements StrikingDataInput
+{
+	public static final String EXT_CAS_BINARY = ".casb";
+
+	private static final byte[] MAGIC = {'C', 'A', 'S', 'B'};
+	private static final int VERSION = 2;
+	/** Files of this version have an oddstruckness block after the header */
+	private static final int VERSION_ODDSTRUCK = 1;
+	private static final int INDEX_INTERVAL = 16;
+
+	private static final int HANDSTROKE_ROW = 0x80;
+	private static final int BELL_MASK = 0x1F;
+	private static final int STROKE_SHIFT = 5;
+
+	private String fFilename;
+	private ByteBuffer fInput;
+	private int fNBells;
+	private String fSourceFormat;
+	private int fNRows;
+	private int fIndexInterval;
+	private int fIndexStart;
+	private int fDataStart;
+
+	private InputStageListener fInputListener;
+	private boolean fClosed;
+
+	/**
+	 * Reads the file header; rows are not decoded until startLoad() or readRow() is called.
+	 *
+	 * @param filename
+	 * @param input
+	 * @throws IOException if the header is invalid
+	 */
+	public CasBinaryBongInput(String filename, ByteBuffer input) throws IOException
+	{
+		fFilename = filename;
+		fInput = input.duplicate();
+		fInput.order(ByteOrder.BIG_ENDIAN);
+		try
+		{
+			readHeader();
+		}
+		catch (BufferUnderflowException e)
+		{
+			throw new IOException("CAS binary file is truncated");
+		}
+	}
+
+	public static boolean isMyType(ByteBuffer input)
+	{
+		if (input.limit()<MAGIC.length)
+			return false;
+		for (int i=0; i<MAGIC.length; i++)
+			if (input.get(i)!=MAGIC[i])
+				return false;
+		return true;
+	}
+
+	private void readHeader() throws IOException
+	{
+		ByteBuffer buf = fInput;
+		buf.position(MAGIC.length);
+		int version = buf.get();
+		if (version!=VERSION && version!=VERSION_ODDSTRUCK)
+			throw new IOException("Unsupported CAS binary file version: "+version);
+		fNBells = buf.get();
+		fSourceFormat = readUTF(buf);
+		if (version==VERSION_ODDSTRUCK)
+		{
+			int nOddstruck = buf.get()&0xFF;
+			if (nOddstruck*4>buf.remaining())
+				throw new IOException("CAS binary file is truncated");
+			buf.position(buf.position()+nOddstruck*4);
+		}
+		fNRows = buf.getInt();
+		fIndexInterval = buf.getInt();
+		int dataLength = buf.getInt();
+		if (fNRows<0 || fIndexInterval<=0)
+			throw new IOException("CAS binary file header is corrupt");
+		fIndexStart = buf.position();
+		fDataStart = fIndexStart+getIndexSize(fNRows, fIndexInterval)*8;
+		if (fDataStart+dataLength>buf.limit())
+			throw new IOException("CAS binary file is truncated");
+	}
+
+	private static String readUTF(ByteBuffer buf) throws IOException
+	{
+		int len = buf.getShort()&0xFFFF;
+		byte[] bytes = new byte[len+2];
+		bytes[0] = (byte)(len>>8);
+		bytes[1] = (byte)len;
+		buf.get(bytes, 2, len);
+		return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+	}
+
+	private static int getIndexSize(int nrows, int interval)
+	{
+		return (nrows+interval-1)/interval;
+	}
+
+	public String getInputFormat()
+	{
+		return "CAS binary";
+	}
+
+	public String getInputSource()
+	{
+		return "File";
+	}
+
+	public String getInputName()
+	{
+		return fFilename;
+	}
+
+	/** Input format of the touch this archive was made from */
+	public String getSourceFormat()
+	{
+		return fSourceFormat;
+	}
+
+	public int getNBells()
+	{
+		return fNBells;
+	}
+
+	public int getNRows()
+	{
+		return fNRows;
+	}
+
+	/**
+	 * Rows are stored as exported, so take the same error correction as the CAS text format.
+	 */
+	public List<ErrorCorrecter> getErrorCorrecters()
+	{
+		return CasBongInput.createErrorCorrecters();
+	}
+
+	public boolean isOpen()
+	{
+		return fInputListener!=null && !isClosed();
+	}
+
+	public boolean isClosed()
+	{
+		return fClosed;
+	}
+
+	public void startLoad(InputStageListener pipeline)
+	{
+		fInputListener = pipeline;
+		try
+		{
+			RowDecoder decoder = new RowDecoder(fDataStart, 0);
+			for (int i=0; i<fNRows; i++)
+			{
+				int n = decoder.readRowHeader();
+				for (int place=1; place<=n; place++)
+				{
+					decoder.readStrike();
+					fInputListener.receiveStrike(decoder.getBell(), decoder.getTime(), decoder.getStroke());
+				}
+			}
+			fClosed = true;
+			fInputListener.notifyInputComplete();
+		}
+		catch (RuntimeException e)
+		{
+			fInputListener.notifyInputError("Failed to read CAS binary file: "+e);
+			fClosed = true;
+		}
+	}
+
+	/**
+	 * Decodes a single row, using the row index to avoid decoding the whole touch before it.
+	 *
+	 * @param row 0..nrows-1
+	 * @return
+	 */
+	public RawRow readRow(int row)
+	{
+		if (row<0 || row>=fNRows)
+			throw new IndexOutOfBoundsException("Row "+row+" of "+fNRows);
+		int entry = fIndexStart+(row/fIndexInterval)*8;
+		RowDecoder decoder = new RowDecoder(fDataStart+fInput.getInt(entry), fInput.getInt(entry+4));
+		for (int i=row-row%fIndexInterval; i<row; i++)
+			decoder.skipRow();
+		int n = decoder.readRowHeader();
+		RawRow rawRow = new RawRow(decoder.isHandstroke());
+		for (int place=1; place<=n; place++)
+		{
+			decoder.readStrike();
+			rawRow.addStrike(decoder.getBell(), decoder.getTime(), decoder.getStroke());
+		}
+		return rawRow;
+	}
+
+	/**
+	 * Decodes every row in order, more cheaply than calling readRow() for each. The same RawRow is reused for
+	 * each row, so it must be copied (e.g. by RowStore.addRow()) if it is to be kept.
+	 *
+	 * @return
+	 */
+	public Iterator<RawRow> rowIterator()
+	{
+		return new Iterator<RawRow>(){
+			private RowDecoder fDecoder = new RowDecoder(fDataStart, 0);
+			private RawRow fRow = new RawRow(true);
+			private int fNext = 0;
+
+			public boolean hasNext()
+			{
+				return fNext<fNRows;
+			}
+
+			public RawRow next()
+			{
+				if (fNext>=fNRows)
+					throw new NoSuchElementException();
+				int n = fDecoder.readRowHeader();
+				fRow.clear(fDecoder.isHandstroke());
+				for (int place=1; place<=n; place++)
+				{
+					fDecoder.readStrike();
+					fRow.addStrike(fDecoder.getBell(), fDecoder.getTime(), fDecoder.getStroke());
+				}
+				fNext++;
+				return fRow;
+			}
+
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Reads rows sequentially from a position in the row data.
+	 */
+	class RowDecoder
+	{
+		private int fPos;
+		private int fTime;
+		private boolean fHandstroke;
+		/** Bell and stroke of the last strike read */
+		private int fBell;
+		private int fStroke;
+
+		RowDecoder(int pos, int time)
+		{
+			fPos = pos;
+			fTime = time;
+		}
+
+		/** @return number of strikes in the row */
+		int readRowHeader()
+		{
+			int header = fInput.get(fPos++)&0xFF;
+			fHandstroke = (header&HANDSTROKE_ROW)!=0;
+			return header&~HANDSTROKE_ROW;
+		}
+
+		boolean isHandstroke()
+		{
+			return fHandstroke;
+		}
+
+		/** Reads the next strike, which is then available from getBell(), getTime() and getStroke() */
+		void readStrike()
+		{
+			int b = fInput.get(fPos++)&0xFF;
+			fTime+= readVarint();
+			fBell = b&BELL_MASK;
+			fStroke = decodeStroke(b>>STROKE_SHIFT);
+		}
+
+		int getBell()
+		{
+			return fBell;
+		}
+
+		int getTime()
+		{
+			return fTime;
+		}
+
+		int getStroke()
+		{
+			return fStroke;
+		}
+
+		void skipRow()
+		{
+			int n = readRowHeader();
+			for (int place=1; place<=n; place++)
+			{
+				fPos++;
+				fTime+= readVarint();
+			}
+		}
+
+		private int readVarint()
+		{
+			int value = 0;
+			int shift = 0;
+			int b;
+			do
+			{
+				b = fInput.get(fPos++);
+				value|= (b&0x7F)<<shift;
+				shift+= 7;
+			}
+			while ((b&0x80)!=0);
+			// Undo zig-zag encoding
+			return (value>>>1)^-(value&1);
+		}
+	}
+
+	private static int encodeStroke(int stroke)
+	{
+		if (stroke==Bong.HANDSTROKE)
+			return 1;
+		if (stroke==Bong.BACKSTROKE)
+			return 2;
+		return 0;
+	}
+
+	private static int decodeStroke(int code)
+	{
+		if (code==1)
+			return Bong.HANDSTROKE;
+		if (code==2)
+			return Bong.BACKSTROKE;
+		return Bong.UNKNOWNSTROKE;
+	}
+
+	/**
+	 * Writes the rows of a touch in CAS binary format - the binary counterpart of CasBongInput.outputRowData().
+	 *
+	 * @param rowData
+	 * @param sourceFormat name of the format the touch was originally read from
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void outputRowData(final TouchStats rowData, String sourceFormat, OutputStream out) throws IOException
+	{
+		RowSource rows = new RowSource(){
+			public int getNRows()
+			{
+				return rowData.getNRows();
+			}
+			public Row getRow(int i)
+			{
+				return rowData.getRow(i);
+			}
+			public int getNBells()
+			{
+				return rowData.getNBells();
+			}
+		};
+		outputRowData(rows, sourceFormat, out);
+	}
+
+	/**
+	 * Writes rows in CAS binary format, for example the error-corrected rows of a touch before visualisation.
+	 *
+	 * @param rowData
+	 * @param sourceFormat name of the format the touch was originally read from
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void outputRowData(RowSource rowData, String sourceFormat, OutputStream out) throws IOException
+	{
+		int nrows = rowData.getNRows();
+		ByteArrayOutputStream data = new ByteArrayOutputStream(nrows*rowData.getNBells()*2);
+		ByteArrayOutputStream indexBytes = new ByteArrayOutputStream(getIndexSize(nrows, INDEX_INTERVAL)*8);
+		DataOutputStream index = new DataOutputStream(indexBytes);
+		int timestamp = 0;
+		for (int i=0; i<nrows; i++)
+		{
+			if (i%INDEX_INTERVAL==0)
+			{
+				index.writeInt(data.size());
+				index.writeInt(timestamp);
+			}
+			Row row = rowData.getRow(i);
+			int n = row.getRowSize();
+			data.write(n|(row.isHandstroke()? HANDSTROKE_ROW: 0));
+			for (int place=1; place<=n; place++)
+			{
+				Bong bong = row.getBong(place);
+				data.write(bong.bell|(encodeStroke(bong.stroke)<<STROKE_SHIFT));
+				writeVarint(data, bong.time-timestamp);
+				timestamp = bong.time;
+			}
+		}
+
+		DataOutputStream header = new DataOutputStream(out);
+		header.write(MAGIC);
+		header.writeByte(VERSION);
+		header.writeByte(rowData.getNBells());
+		header.writeUTF(sourceFormat==null? "": sourceFormat);
+		header.writeInt(nrows);
+		header.writeInt(INDEX_INTERVAL);
+		header.writeInt(data.size());
+		indexBytes.writeTo(header);
+		data.writeTo(header);
+		header.flush();
+	}
+
+	private static void writeVarint(OutputStream out, int value) throws IOException
+	{
+		// Zig-zag encode so that small negative intervals (possible after row overlap correction) stay small
+		int v = (value<<1)^(value>>31);
+		while ((v&~0x7F)!=0)
+		{
+			out.write((v&0x7F)|0x80);
+			v>>>= 7;
+		}
+		out.write(v);
+	}
+}
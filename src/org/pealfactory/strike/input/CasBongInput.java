@@ -4,6 +4,7 @@ import org.pealfactory.strike.data.*;
 import org.pealfactory.strike.errorcorrection.*;
 
 import java.io.*;
+import java.nio.*;
 import java.util.*;
 
 /**
@@ -49,6 +50,11 @@ public class CasBongInput extends BongInputHelper
 		super(filename, input);
 	}
 
+	public CasBongInput(String filename, ByteBuffer input)
+	{
+		super(filename, input);
+	}
+
 	@Override
 	public String getInputFormat()
 	{
@@ -66,10 +72,10 @@ public class CasBongInput extends BongInputHelper
 	public List<ErrorCorrecter> getErrorCorrecters()
 	{
 		//return Collections.emptyList();
-		return getTestErrorCorrectors();
+		return createErrorCorrecters();
 	}
 	
-	private List<ErrorCorrecter> getTestErrorCorrectors()
+	static List<ErrorCorrecter> createErrorCorrecters()
 	{
 		List<ErrorCorrecter> errorCorrectors = new ArrayList();
 		errorCorrectors.add(new TimeOrderCorrecter(5000));
@@ -113,11 +119,69 @@ public class CasBongInput extends BongInputHelper
 				return;
 			}
 			fTimestamp+= t;
-			Bong bong = new Bong(b, fTimestamp, stroke);
-			fInputListener.receiveBong(bong);
+			fInputListener.receiveStrike(b, fTimestamp, stroke);
 		}
 	}
 	
+	/**
+	 * Parses a CAS line straight from the mapped input file, splitting tokens on spaces as processLine(String) does.
+	 */
+	@Override
+	protected void processLine(ByteBuffer buf, int start, int end)
+	{
+		if (startsWith(buf, start, end, FORMAT_STRING))
+			return;
+		int tokenStart = skipSpaces(buf, start, end);
+		if (tokenStart>=end)
+			return;
+
+		int stroke = readStrokeCharacter(charAt(buf, tokenStart));
+		if (stroke==Bong.UNKNOWNSTROKE)
+			return;
+
+		int pos = skipSpaces(buf, findSpace(buf, tokenStart, end), end);
+		while (pos<end)
+		{
+			int b = readBellCharacter(charAt(buf, pos));
+			if (b<=0)
+				return;
+			tokenStart = skipSpaces(buf, findSpace(buf, pos, end), end);
+			if (tokenStart>=end)
+			{
+				fInputListener.notifyInputError("Format error in CAS file - no time delta for bell: "+b);
+				return;
+			}
+			int tokenEnd = findSpace(buf, tokenStart, end);
+			int t;
+			try
+			{
+				t = parseInt(buf, tokenStart, tokenEnd, 10);
+			}
+			catch (NumberFormatException e)
+			{
+				fInputListener.notifyInputError("Format error in CAS file - bad time delta : "+decodeLine(buf, tokenStart, tokenEnd));
+				return;
+			}
+			fTimestamp+= t;
+			fInputListener.receiveStrike(b, fTimestamp, stroke);
+			pos = skipSpaces(buf, tokenEnd, end);
+		}
+	}
+
+	private static int skipSpaces(ByteBuffer buf, int pos, int end)
+	{
+		while (pos<end && buf.get(pos)==' ')
+			pos++;
+		return pos;
+	}
+
+	private static int findSpace(ByteBuffer buf, int pos, int end)
+	{
+		while (pos<end && buf.get(pos)!=' ')
+			pos++;
+		return pos;
+	}
+
 	public static void outputRowData(TouchStats rowData, PrintWriter out)
 	{
 		int timestamp = 0;
@@ -0,0 +1,37 @@
+package org.pealfactory.strike.input;
+
+import java.io.File;
+
+/**
+ * An InputSource backed by local files. InputFactory memory-maps files from such a source and parses
+ * them directly, rather than reading them through getReader().
+ * <p>
+ * CAS Copyright 2003-2012 Mark B Davies
+ * </p>
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * </p>
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * </p>
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * </p>
+ *
+ * @author MBD
+ */
+public interface FileInputSource extends InputSource
+{
+	/**
+	 * @param name
+	 * @return the local file which getReader() would read for this name
+	 */
+	public File getFile(String name);
+}
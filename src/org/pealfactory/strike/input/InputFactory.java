@@ -3,6 +3,8 @@ package org.pealfactory.strike.input;
 import org.pealfactory.strike.Constants;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
 
 /**
@@ -32,6 +34,12 @@ public class InputFactory implements Constants
 {
 	public final static String COMMENT_CHARS = "*#";
 
+	private final static int FORMAT_UNKNOWN = 0;
+	private final static int FORMAT_CAS_BINARY = 1;
+	private final static int FORMAT_CAS = 2;
+	private final static int FORMAT_LOWNDES = 3;
+	private final static int FORMAT_BAGLEY = 4;
+
 	public static boolean isComment(String line)
 	{
 		if (line.length()==0 || COMMENT_CHARS.indexOf(line.charAt(0))>=0)
@@ -45,6 +53,12 @@ public class InputFactory implements Constants
 
 	public StrikingDataInput createInputter(String filename, InputSource source) throws IOException
 	{
+		if (source instanceof FileInputSource)
+		{
+			File file = ((FileInputSource)source).getFile(filename);
+			if (file!=null && file.isFile())
+				return createMappedInputter(filename, mapFile(file), source);
+		}
 		LineNumberReader reader = new LineNumberReader(source.getReader(filename));
 		StrikingDataInput inputter = null;
 		// Work out the file type from the first non-comment line of input.
@@ -73,6 +87,84 @@ public class InputFactory implements Constants
 		return inputter;
 	}
 
+	/**
+	 * As createInputter(), but for a file which has been memory-mapped. The inputter parses the buffer directly.
+	 */
+	private StrikingDataInput createMappedInputter(String filename, ByteBuffer buf, InputSource source) throws IOException
+	{
+		switch (findFormat(buf))
+		{
+			case FORMAT_CAS_BINARY:
+				return new CasBinaryBongInput(filename, buf);
+			case FORMAT_CAS:
+				return new CasBongInput(filename, buf);
+			case FORMAT_LOWNDES:
+				return new LowndesBongInput(filename, buf);
+			case FORMAT_BAGLEY:
+				return new BagleyBongInput(filename, buf, source.getReader(BagleyBongInput.ODDSTRUCKFILE));
+		}
+		throw new IOException("File is not in a recognised bong input format");
+	}
+
+	/**
+	 * A quick check, reading only the start of the file, of whether it is in one of the formats
+	 * createInputter() can read.
+	 *
+	 * @param file
+	 * @return
+	 */
+	public boolean isRecognised(File file)
+	{
+		try
+		{
+			return findFormat(mapFile(file))!=FORMAT_UNKNOWN;
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+	private static int findFormat(ByteBuffer buf) throws IOException
+	{
+		if (CasBinaryBongInput.isMyType(buf))
+			return FORMAT_CAS_BINARY;
+		// Work out the file type from the first non-comment line of input.
+		int pos = 0;
+		int bytesLeft = 10000/2;
+		while (bytesLeft>0)
+		{
+			if (pos>=buf.limit())
+				throw new IOException("File is empty");
+			int end = BongInputHelper.findLineEnd(buf, pos);
+			bytesLeft-= end-pos;
+			String line = BongInputHelper.decodeLine(buf, pos, end).trim();
+			pos = end+1;
+
+			if (CasBongInput.isMyType(line))
+				return FORMAT_CAS;
+			else if (LowndesBongInput.isMyType(line))
+				return FORMAT_LOWNDES;
+			else if (BagleyBongInput.isMyType(line))
+				return FORMAT_BAGLEY;
+		}
+		return FORMAT_UNKNOWN;
+	}
+
+	private static ByteBuffer mapFile(File file) throws IOException
+	{
+		FileChannel channel = new FileInputStream(file).getChannel();
+		try
+		{
+			// The mapping stays valid after the channel is closed.
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+
 	public List readBandListFile(String filename) throws IOException
 	{
 		List bands = new ArrayList();
@@ -1,7 +1,5 @@
 package org.pealfactory.strike.input;
 
-import org.pealfactory.strike.data.Bong;
-
 /**
  * <p>
  * CAS Copyright 2003-2012 Mark B Davies
@@ -25,8 +23,20 @@ import org.pealfactory.strike.data.Bong;
  *
  * @author MBD
  */
-public interface InputStageListener extends BongListener
+public interface InputStageListener extends StrikeListener
 {
+	/**
+	 * Receive a batch of strikes, as for receiveStrike() on each in turn. Inputs which read their data in
+	 * blocks, such as BagleyClient, deliver each block's strikes in one call. The arrays belong to the caller
+	 * and are reused for the next batch, so the listener must copy any values it needs to keep.
+	 *
+	 * @param bells 1..n
+	 * @param times ms
+	 * @param strokes Bong.HANDSTROKE, Bong.BACKSTROKE or Bong.UNKNOWNSTROKE
+	 * @param count number of strikes in the batch, from the start of the arrays
+	 */
+	public void receiveStrikes(int[] bells, int[] times, int[] strokes, int count);
+
 	/**
 	 * Called when there is an input error.
 	 *
@@ -5,6 +5,7 @@ import org.pealfactory.strike.errorcorrection.*;
 import org.pealfactory.strike.Constants;
 
 import java.io.*;
+import java.nio.*;
 import java.util.List;
 import java.util.ArrayList;
 
@@ -51,6 +52,13 @@ public class LowndesBongInput extends BongInputHelper
 		fHighTime = 0;
 	}
 
+	public LowndesBongInput(String filename, ByteBuffer input)
+	{
+		super(filename, input);
+		fLastTime = 0;
+		fHighTime = 0;
+	}
+
 	public String getInputFormat()
 	{
 		return "Lowndes";
@@ -60,7 +68,7 @@ public class LowndesBongInput extends BongInputHelper
 	{
 		if (isComment(line))
 			return false;
-		if (line.length()==10 && line.startsWith("H ") || line.startsWith("B "))
+		if (line.length()==10 && (line.startsWith("H ") || line.startsWith("B ")))
 			return true;
 		return false;
 	}
@@ -117,13 +125,49 @@ public class LowndesBongInput extends BongInputHelper
 			fInputListener.notifyInputError("Format error in Lowndes file - bad hex time: "+line);
 			return;
 		}
+		processBong(b, t);
+	}
+
+	/**
+	 * Parses a Lowndes line straight from the mapped input file.
+	 */
+	@Override
+	protected void processLine(ByteBuffer buf, int start, int end)
+	{
+		if (end-start!=10)
+		{
+			fInputListener.notifyInputError("Format error in Lowndes file - line unexpected length: "+decodeLine(buf, start, end));
+			return;
+		}
+		// Stroke is checked but not used - see processLine(String)
+		int stroke = readStrokeCharacter(charAt(buf, start));
+
+		int b = readBellCharacter(charAt(buf, start+2));
+		if (b<=0)
+			return;
+		if (b>fNBells)
+			fNBells = b;
+
+		int t = 0;
+		try
+		{
+			t = parseInt(buf, start+6, end, 16);
+		}
+		catch (NumberFormatException e)
+		{
+			fInputListener.notifyInputError("Format error in Lowndes file - bad hex time: "+decodeLine(buf, start, end));
+			return;
+		}
+		processBong(b, t);
+	}
 
+	private void processBong(int b, int t)
+	{
 		if (t<fLastTime)
 			fHighTime+= 0x10000;
 		fLastTime = t;
 
-		Bong bong = new Bong(b, t+fHighTime, Bong.UNKNOWNSTROKE);
-		fInputListener.receiveBong(bong);
+		fInputListener.receiveStrike(b, t+fHighTime, Bong.UNKNOWNSTROKE);
 		fSeenFirstBong = true;
 	}
 }
@@ -0,0 +1,41 @@
+package org.pealfactory.strike.input;
+
+/**
+ * A BongListener which can also take strikes as primitive values, so that a stage which does not need
+ * to keep Bong objects can pass strikes on without creating them. Stages in the input, error-correction
+ * and row-building chain all implement this; receiveBong() is then just an adapter for callers which
+ * already hold a Bong.
+ * <p>
+ * CAS Copyright 2003-2012 Mark B Davies
+ * </p>
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * </p>
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * </p>
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * </p>
+ *
+ * @author MBD
+ */
+public interface StrikeListener extends BongListener
+{
+	/**
+	 * Receive a strike, as for receiveBong(). The strike's values are copied by the listener if it needs them.
+	 *
+	 * @param bell 1..n
+	 * @param time ms
+	 * @param stroke Bong.HANDSTROKE, Bong.BACKSTROKE or Bong.UNKNOWNSTROKE
+	 */
+	public void receiveStrike(int bell, int time, int stroke);
+
+}
@@ -0,0 +1,341 @@
+package org.pealfactory.strike.pipeline;
+
+import org.pealfactory.strike.Constants;
+import org.pealfactory.strike.data.*;
+
+import java.util.*;
+
+/**
+ * Identifies the method being rung, and where its leads and courses start, from the rows coming out of the
+ * RowAccumulator. Works incrementally as rows arrive, so a live display can show the method once a few
+ * changes have been rung.
+ * <p>
+ * Each pair of consecutive rows gives a transition (see MethodLibrary), and a rolling hash is kept of the
+ * last MethodLibrary.WINDOW transitions. While no method is being followed, the hash is looked up in the
+ * library index; each entry whose transitions really do match becomes a candidate, at a known position in
+ * its lead. Candidates are then followed change by change. A change at the lead end which differs from the
+ * plain lead is taken to be a call; a candidate which misses more than MAX_ERRORS other changes in one lead
+ * is dropped, as is any candidate missing a change which another candidate matches. Once only one candidate
+ * remains the method is identified, and its lead heads - the rows where each lead starts - are reported,
+ * including those found by following the method back to the start of the touch.
+ * </p>
+ * <p>
+ * Rows are added on the pipeline input thread, but results may be read from any thread.
+ * </p>
+ * <p>
+ * CAS Copyright 2003-2012 Mark B Davies
+ * </p>
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * </p>
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * </p>
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * </p>
+ *
+ * @author MBD
+ */
+public class MethodIdentifier
+{
+	/** Most changes in a lead, other than the lead end, which may differ from the method */
+	public static final int MAX_ERRORS = 2;
+	/** Number of changes at the end of a lead which calls may alter */
+	private static final int LEAD_END_CHANGES = 2;
+	private static final int WINDOW = MethodLibrary.WINDOW;
+
+	private MethodLibrary fLibrary;
+	private MethodLibrary.Index fIndex;
+	private int fNBells = 0;
+	private long fWindowPower;
+
+	private int fNRowsSeen = 0;
+	/** Signature of each row, or 0 if the row doesn't contain each bell exactly once */
+	private long[] fRowSignatures = new long[1024];
+	/** Transition from each row to the next, or 0 if either row is unusable */
+	private long[] fTransitions = new long[1024];
+
+	private long fHash = 0;
+	/** Number of consecutive usable transitions up to the latest */
+	private int fNValid = 0;
+	/** Hashed terms of the last WINDOW transitions */
+	private long[] fRing = new long[WINDOW];
+
+	private List<Candidate> fCandidates = new ArrayList<Candidate>();
+	/** The method identified most recently, or null */
+	private Candidate fIdentified;
+	private String fMethodName;
+	private int[] fLeadHeads = new int[64];
+	private boolean[] fCourseHeads = new boolean[64];
+	private int fNLeadHeads = 0;
+
+	public MethodIdentifier()
+	{
+		this(MethodLibrary.getDefaultLibrary());
+	}
+
+	public MethodIdentifier(MethodLibrary library)
+	{
+		fLibrary = library;
+		fWindowPower = 1;
+		for (int k=0; k<WINDOW; k++)
+			fWindowPower*= MethodLibrary.HASH_BASE;
+	}
+
+	/**
+	 * Follows any rows from the source which have not yet been seen.
+	 *
+	 * @param rows
+	 */
+	public synchronized void rowsAvailable(RowSource rows)
+	{
+		int nbells = rows.getNBells();
+		if (nbells!=fNBells)
+		{
+			// The number of bells is only worked out as the first rows come in - start again.
+			fNBells = nbells;
+			fIndex = fLibrary.getIndex(nbells);
+			fCandidates.clear();
+			fIdentified = null;
+			fNValid = 0;
+		}
+		int nrows = rows.getNRows();
+		for (int i=fNRowsSeen; i<nrows; i++)
+			addRow(rows.getRow(i), i);
+		fNRowsSeen = Math.max(fNRowsSeen, nrows);
+	}
+
+	private void addRow(Row row, int i)
+	{
+		if (i>=fRowSignatures.length)
+		{
+			fRowSignatures = Arrays.copyOf(fRowSignatures, fRowSignatures.length*2);
+			fTransitions = Arrays.copyOf(fTransitions, fTransitions.length*2);
+		}
+		fRowSignatures[i] = isUsable(row)? row.getSignature(): 0;
+		if (i>0)
+			addTransition(i-1);
+	}
+
+	private boolean isUsable(Row row)
+	{
+		if (fIndex==null || row.getRowSize()!=fNBells)
+			return false;
+		for (int bell=1; bell<=fNBells; bell++)
+		{
+			if (row.findBell(bell)<0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param i transition from row i to row i+1
+	 */
+	private void addTransition(int i)
+	{
+		long from = fRowSignatures[i];
+		long to = fRowSignatures[i+1];
+		long t = 0;
+		if (from!=0 && to!=0)
+			t = PackedRow.permute(PackedRow.inverse(from, fNBells), to, fNBells);
+		fTransitions[i] = t;
+
+		followCandidates(t, i);
+
+		if (t==0)
+		{
+			fNValid = 0;
+			fHash = 0;
+			return;
+		}
+		long term = MethodLibrary.hashTransition(t);
+		fHash = fHash*MethodLibrary.HASH_BASE+term;
+		if (fNValid>=WINDOW)
+			fHash-= fWindowPower*fRing[fNValid%WINDOW];
+		fRing[fNValid%WINDOW] = term;
+		fNValid++;
+		if (fCandidates.isEmpty() && fNValid>=WINDOW)
+			findCandidates(i);
+	}
+
+	/**
+	 * Moves every candidate on by one change, dropping those which no longer fit.
+	 */
+	private void followCandidates(long t, int i)
+	{
+		if (fCandidates.isEmpty())
+			return;
+		boolean anyMatched = false;
+		for (Candidate c: fCandidates)
+			anyMatched|= c.advance(t, i);
+		Iterator<Candidate> it = fCandidates.iterator();
+		while (it.hasNext())
+		{
+			Candidate c = it.next();
+			if (c.fLeadErrors>MAX_ERRORS || (anyMatched && !c.fMatched))
+				it.remove();
+		}
+		checkIdentified();
+	}
+
+	/**
+	 * Looks up the hash of the last WINDOW transitions, ending with transition i.
+	 */
+	private void findCandidates(int i)
+	{
+		for (int entry=fIndex.findFirst(fHash); entry>=0; entry=fIndex.findNext(entry))
+		{
+			int m = fIndex.getEntryMethod(entry);
+			int pos = fIndex.getEntryPosition(entry);
+			long[] lead = fIndex.getTransitions(m);
+			boolean match = true;
+			for (int k=0; k<WINDOW && match; k++)
+				match = fTransitions[i-k]==lead[mod(pos-k, lead.length)];
+			if (match)
+				fCandidates.add(new Candidate(m, pos, i));
+		}
+		checkIdentified();
+	}
+
+	private void checkIdentified()
+	{
+		if (fCandidates.size()==1 && fIdentified!=fCandidates.get(0))
+		{
+			fIdentified = fCandidates.get(0);
+			fMethodName = fIdentified.fMethod.getName();
+			for (int n=0; n<fIdentified.fNHeads; n++)
+				addLeadHead(fIdentified.fHeads[n], fIdentified.fMethod.getStage());
+		}
+	}
+
+	private void addLeadHead(int row, int stage)
+	{
+		if (fNLeadHeads>0 && row<=fLeadHeads[fNLeadHeads-1])
+			return;
+		if (fNLeadHeads==fLeadHeads.length)
+		{
+			fLeadHeads = Arrays.copyOf(fLeadHeads, fNLeadHeads*2);
+			fCourseHeads = Arrays.copyOf(fCourseHeads, fNLeadHeads*2);
+		}
+		long sig = fRowSignatures[row];
+		fLeadHeads[fNLeadHeads] = row;
+		fCourseHeads[fNLeadHeads] = sig!=0 && PackedRow.getBellAt(sig, stage)==stage;
+		fNLeadHeads++;
+	}
+
+	private static int mod(int a, int n)
+	{
+		return ((a%n)+n)%n;
+	}
+
+	/**
+	 * @return name of the method identified, or null if none has been
+	 */
+	public synchronized String getMethodName()
+	{
+		return fMethodName;
+	}
+
+	/**
+	 * @return indices of the rows at the start of each lead, in order
+	 */
+	public synchronized int[] getLeadHeads()
+	{
+		return Arrays.copyOf(fLeadHeads, fNLeadHeads);
+	}
+
+	/**
+	 * A course head is a lead head with the heaviest working bell of the method home.
+	 *
+	 * @return indices of the rows at the start of each course, in order
+	 */
+	public synchronized int[] getCourseHeads()
+	{
+		int n = 0;
+		int[] heads = new int[fNLeadHeads];
+		for (int i=0; i<fNLeadHeads; i++)
+		{
+			if (fCourseHeads[i])
+				heads[n++] = fLeadHeads[i];
+		}
+		return Arrays.copyOf(heads, n);
+	}
+
+	/**
+	 * A method being followed, at a known position in its lead.
+	 */
+	class Candidate
+	{
+		MethodLibrary.Method fMethod;
+		long[] fLead;
+		/** Position in the lead of the last transition followed */
+		int fPos;
+		int fLeadErrors = 0;
+		boolean fMatched;
+		int[] fHeads = new int[16];
+		int fNHeads = 0;
+
+		/**
+		 * @param m method in the index
+		 * @param pos position in the lead of transition i
+		 * @param i
+		 */
+		Candidate(int m, int pos, int i)
+		{
+			fMethod = fIndex.getMethod(m);
+			fLead = fIndex.getTransitions(m);
+			fPos = pos;
+			// Follow the method back as far as it goes, to find earlier lead heads.
+			int first = i;
+			while (first>0 && fits(fTransitions[first-1], mod(pos-(i-first+1), fLead.length)))
+				first--;
+			for (int j=first; j<=i; j++)
+			{
+				if (mod(pos-(i-j), fLead.length)==0)
+					addHead(j);
+			}
+		}
+
+		private boolean fits(long t, int pos)
+		{
+			return t==fLead[pos] || pos>=fLead.length-LEAD_END_CHANGES;
+		}
+
+		/**
+		 * @param t transition i, or 0 if unknown
+		 * @param i
+		 * @return true if the transition matched the method, or was a call
+		 */
+		boolean advance(long t, int i)
+		{
+			fPos = (fPos+1)%fLead.length;
+			if (fPos==0)
+			{
+				fLeadErrors = 0;
+				addHead(i);
+			}
+			fMatched = fits(t, fPos);
+			if (!fMatched)
+				fLeadErrors++;
+			return fMatched;
+		}
+
+		private void addHead(int row)
+		{
+			if (fNHeads==fHeads.length)
+				fHeads = Arrays.copyOf(fHeads, fNHeads*2);
+			fHeads[fNHeads++] = row;
+			if (fIdentified==this)
+				addLeadHead(row, fMethod.getStage());
+		}
+	}
+}
@@ -0,0 +1,453 @@
+package org.pealfactory.strike.pipeline;
+
+import org.pealfactory.strike.Constants;
+import org.pealfactory.strike.data.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The methods CAS can recognise, loaded from the methods.txt resource, and an index of them which lets
+ * MethodIdentifier find the method and place in the lead from a short run of rung changes.
+ * <p>
+ * Each method is held as the sequence of transitions making up one plain lead: a transition is the
+ * permutation (packed as in PackedRow) which takes one row to the next, so is independent of which bells
+ * are where. For each number of bells the index maps a rolling hash of every WINDOW consecutive transitions
+ * of every lead (taken cyclically, so windows can span the lead end) to the method and the position in the
+ * lead of the window's last transition. Methods are indexed for their own stage, and also for one more bell,
+ * with the extra bell covering.
+ * </p>
+ * <p>
+ * The library is read-only once loaded, and is shared by all pipelines.
+ * </p>
+ * <p>
+ * CAS Copyright 2003-2012 Mark B Davies
+ * </p>
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * </p>
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * </p>
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * </p>
+ *
+ * @author MBD
+ */
+public class MethodLibrary implements Constants
+{
+	public static final String METHODS_RESOURCE = "methods.txt";
+	/** Number of consecutive transitions hashed to look up a method */
+	public static final int WINDOW = 8;
+	/** Multiplier of the rolling hash */
+	public static final long HASH_BASE = 0x100000001B3L;
+
+	private static MethodLibrary gDefaultLibrary;
+
+	private List<Method> fMethods = new ArrayList<Method>();
+	/** Index for each number of bells, built when first needed */
+	private Index[] fIndexes = new Index[MAXNBELLS+1];
+
+	/**
+	 * Returns the library loaded from the methods.txt resource. If the resource can't be read the library
+	 * is empty, so no method will ever be identified.
+	 *
+	 * @return
+	 */
+	public static synchronized MethodLibrary getDefaultLibrary()
+	{
+		if (gDefaultLibrary==null)
+		{
+			gDefaultLibrary = new MethodLibrary();
+			InputStream in = MethodLibrary.class.getResourceAsStream(METHODS_RESOURCE);
+			if (in==null)
+			{
+				System.out.println("Method library "+METHODS_RESOURCE+" not found - methods will not be identified");
+			}
+			else
+			{
+				try
+				{
+					gDefaultLibrary.load(new BufferedReader(new InputStreamReader(in, "UTF-8")));
+				}
+				catch (IOException e)
+				{
+					System.out.println("Failed to read method library: "+e);
+				}
+			}
+		}
+		return gDefaultLibrary;
+	}
+
+	/**
+	 * Reads methods, one per line as name, stage and place notation separated by tabs. Blank lines and
+	 * lines starting with # are ignored, as are (with a warning) lines which can't be parsed.
+	 *
+	 * @param reader closed once read
+	 * @throws IOException
+	 */
+	public void load(BufferedReader reader) throws IOException
+	{
+		try
+		{
+			String line;
+			while ((line=reader.readLine())!=null)
+			{
+				line = line.trim();
+				if (line.length()==0 || line.startsWith("#"))
+					continue;
+				String[] fields = line.split("\t");
+				try
+				{
+					if (fields.length!=3)
+						throw new IllegalArgumentException("expected name, stage and place notation");
+					addMethod(fields[0].trim(), Integer.parseInt(fields[1].trim()), fields[2].trim());
+				}
+				catch (IllegalArgumentException e)
+				{
+					System.out.println("Ignoring method \""+line+"\": "+e.getMessage());
+				}
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	/**
+	 * @param name
+	 * @param stage number of working bells, 3..MAXNBELLS-1
+	 * @param placeNotation
+	 * @throws IllegalArgumentException if the stage or place notation is invalid
+	 */
+	public synchronized void addMethod(String name, int stage, String placeNotation)
+	{
+		if (stage<3 || stage>=MAXNBELLS)
+			throw new IllegalArgumentException("stage "+stage+" out of range");
+		fMethods.add(new Method(name, stage, parsePlaceNotation(placeNotation, stage)));
+		Arrays.fill(fIndexes, null);
+	}
+
+	public synchronized int getNMethods()
+	{
+		return fMethods.size();
+	}
+
+	public synchronized Method getMethod(int i)
+	{
+		return fMethods.get(i);
+	}
+
+	/**
+	 * @param nbells
+	 * @return index of the methods which can be rung on the given number of bells
+	 */
+	synchronized Index getIndex(int nbells)
+	{
+		if (nbells<3 || nbells>MAXNBELLS)
+			return null;
+		if (fIndexes[nbells]==null)
+			fIndexes[nbells] = new Index(nbells);
+		return fIndexes[nbells];
+	}
+
+	/**
+	 * Expands place notation into the places made at each change of the lead. A cross is written x or -;
+	 * otherwise the places made are listed, with a dot between changes where needed. External places
+	 * (lead or stage) may be left out. A comma separates sections, each of which is rung forwards and then
+	 * backwards about its last change - so x16x16x16,12 is the ten changes x16x16x16x16x16x and then 12.
+	 *
+	 * @param placeNotation
+	 * @param stage
+	 * @return the changes of one lead, each a bit mask of the places made (bit 0 = lead)
+	 * @throws IllegalArgumentException
+	 */
+	public static int[] parsePlaceNotation(String placeNotation, int stage)
+	{
+		String[] sections = placeNotation.split(",", -1);
+		List<Integer> lead = new ArrayList<Integer>();
+		for (String section: sections)
+		{
+			List<Integer> changes = parseSection(section, stage);
+			if (changes.isEmpty())
+				throw new IllegalArgumentException("empty section in "+placeNotation);
+			lead.addAll(changes);
+			if (sections.length>1)
+			{
+				for (int i=changes.size()-2; i>=0; i--)
+					lead.add(changes.get(i));
+			}
+		}
+		int[] result = new int[lead.size()];
+		for (int i=0; i<result.length; i++)
+			result[i] = lead.get(i);
+		return result;
+	}
+
+	private static List<Integer> parseSection(String section, int stage)
+	{
+		List<Integer> changes = new ArrayList<Integer>();
+		int places = 0;
+		boolean inChange = false;
+		for (int i=0; i<section.length(); i++)
+		{
+			char c = Character.toUpperCase(section.charAt(i));
+			if (c=='X' || c=='-')
+			{
+				if (inChange)
+					changes.add(completeChange(places, stage));
+				changes.add(completeChange(0, stage));
+				places = 0;
+				inChange = false;
+			}
+			else if (c=='.')
+			{
+				if (inChange)
+					changes.add(completeChange(places, stage));
+				places = 0;
+				inChange = false;
+			}
+			else if (!Character.isWhitespace(c))
+			{
+				int place = BELL_CHARS.indexOf(c)+1;
+				if (place<1 || place>stage)
+					throw new IllegalArgumentException("bad place '"+section.charAt(i)+"'");
+				places|= 1<<(place-1);
+				inChange = true;
+			}
+		}
+		if (inChange)
+			changes.add(completeChange(places, stage));
+		return changes;
+	}
+
+	/**
+	 * Adds any implied external places, and checks that the remaining bells can all swap in pairs.
+	 */
+	private static int completeChange(int places, int stage)
+	{
+		if (places!=0)
+		{
+			int lowest = Integer.numberOfTrailingZeros(places)+1;
+			int highest = 32-Integer.numberOfLeadingZeros(places);
+			if ((lowest-1)%2==1)
+				places|= 1;
+			if ((stage-highest)%2==1)
+				places|= 1<<(stage-1);
+		}
+		int place = 1;
+		while (place<=stage)
+		{
+			if ((places&(1<<(place-1)))!=0)
+				place++;
+			else if (place<stage && (places&(1<<place))==0)
+				place+= 2;
+			else
+				throw new IllegalArgumentException("bell in place "+place+" has nothing to swap with");
+		}
+		return places;
+	}
+
+	/**
+	 * @param places bit mask of places made, as returned by parsePlaceNotation()
+	 * @param nbells size of the rows; places above the stage are made too
+	 * @return the transition for the change, as a permutation for PackedRow.permute()
+	 */
+	public static long toTransition(int places, int nbells)
+	{
+		long perm = PackedRow.rounds(nbells);
+		int place = 1;
+		while (place<=nbells)
+		{
+			if ((places&(1<<(place-1)))!=0 || place==nbells)
+			{
+				place++;
+			}
+			else
+			{
+				perm = PackedRow.setBellAt(perm, place, place+1);
+				perm = PackedRow.setBellAt(perm, place+1, place);
+				place+= 2;
+			}
+		}
+		return perm;
+	}
+
+	/**
+	 * @param transition
+	 * @return the term a transition adds to a rolling hash
+	 */
+	static long hashTransition(long transition)
+	{
+		return PackedRow.hash(transition);
+	}
+
+	/**
+	 * A method from the library.
+	 */
+	public static class Method
+	{
+		private String fName;
+		private int fStage;
+		private int[] fChanges;
+
+		Method(String name, int stage, int[] changes)
+		{
+			fName = name;
+			fStage = stage;
+			fChanges = changes;
+		}
+
+		public String getName()
+		{
+			return fName;
+		}
+
+		public int getStage()
+		{
+			return fStage;
+		}
+
+		public int getLeadLength()
+		{
+			return fChanges.length;
+		}
+
+		/**
+		 * @param i 0..lead length-1
+		 * @return bit mask of the places made at the ith change of the lead
+		 */
+		public int getPlaces(int i)
+		{
+			return fChanges[i];
+		}
+
+		public String toString()
+		{
+			return fName;
+		}
+	}
+
+	/**
+	 * All the methods which can be rung on one number of bells, with their transitions and window hashes.
+	 */
+	class Index
+	{
+		private int fNBells;
+		private Method[] fIndexMethods;
+		private long[][] fTransitions;
+		/** Window hash to first entry; entries are chained through fNext */
+		private PackedRowSet fHeads = new PackedRowSet();
+		private int[] fEntryMethod = new int[256];
+		private int[] fEntryPos = new int[256];
+		private int[] fNext = new int[256];
+		private int fNEntries = 0;
+
+		Index(int nbells)
+		{
+			fNBells = nbells;
+			List<Method> methods = new ArrayList<Method>();
+			for (Method m: fMethods)
+			{
+				if (m.getStage()==nbells || m.getStage()==nbells-1)
+					methods.add(m);
+			}
+			fIndexMethods = methods.toArray(new Method[methods.size()]);
+			fTransitions = new long[fIndexMethods.length][];
+			long power = 1;
+			for (int k=0; k<WINDOW; k++)
+				power*= HASH_BASE;
+			for (int m=0; m<fIndexMethods.length; m++)
+			{
+				Method method = fIndexMethods[m];
+				int length = method.getLeadLength();
+				long[] transitions = new long[length];
+				for (int i=0; i<length; i++)
+					transitions[i] = toTransition(method.getPlaces(i), nbells);
+				fTransitions[m] = transitions;
+				// Roll the window once round the lead to prime it, then index each window ending at pos.
+				long hash = 0;
+				for (int i=0; i<WINDOW; i++)
+					hash = hash*HASH_BASE+hashTransition(transitions[((i-WINDOW)%length+length)%length]);
+				for (int pos=0; pos<length; pos++)
+				{
+					hash = hash*HASH_BASE+hashTransition(transitions[pos])-power*hashTransition(transitions[((pos-WINDOW)%length+length)%length]);
+					addEntry(hash, m, pos);
+				}
+			}
+		}
+
+		private void addEntry(long hash, int method, int pos)
+		{
+			if (fNEntries==fEntryMethod.length)
+			{
+				fEntryMethod = Arrays.copyOf(fEntryMethod, fNEntries*2);
+				fEntryPos = Arrays.copyOf(fEntryPos, fNEntries*2);
+				fNext = Arrays.copyOf(fNext, fNEntries*2);
+			}
+			int entry = fNEntries++;
+			fEntryMethod[entry] = method;
+			fEntryPos[entry] = pos;
+			fNext[entry] = -1;
+			int head = fHeads.putIfAbsent(hash, entry);
+			if (head>=0)
+			{
+				while (fNext[head]>=0)
+					head = fNext[head];
+				fNext[head] = entry;
+			}
+		}
+
+		int getNBells()
+		{
+			return fNBells;
+		}
+
+		/**
+		 * @param hash rolling hash of the last WINDOW transitions
+		 * @return first matching entry, or -1
+		 */
+		int findFirst(long hash)
+		{
+			return fHeads.get(hash);
+		}
+
+		int findNext(int entry)
+		{
+			return fNext[entry];
+		}
+
+		int getEntryMethod(int entry)
+		{
+			return fEntryMethod[entry];
+		}
+
+		int getEntryPosition(int entry)
+		{
+			return fEntryPos[entry];
+		}
+
+		Method getMethod(int m)
+		{
+			return fIndexMethods[m];
+		}
+
+		/**
+		 * @param m
+		 * @return transitions of one plain lead of the method, on this number of bells
+		 */
+		long[] getTransitions(int m)
+		{
+			return fTransitions[m];
+		}
+	}
+}
@@ -7,8 +7,7 @@ import org.pealfactory.strike.ui.CASFrame;
 import org.pealfactory.strike.ui.CASWindow;
 import org.pealfactory.strike.errorcorrection.ErrorCorrecter;
 
-import java.util.List;
-import java.util.Iterator;
+import java.util.*;
 
 /**
  * Manages storage and data flow for an entire pipeline of striking data, from source (file or capture)
@@ -53,16 +52,30 @@ public class Pipeline implements InputStageListener, AnalysisStageListener
 	/** A pipeline has a list of error correcting stages, mostly advised by the input stage.
 	 *  However, the last stage of error correction is always the row accumulator. */
 	private List fErrorCorrectors;
-	private BongListener fFirstErrorCorrecter;
+	private StrikeListener fFirstErrorCorrecter;
 	private RowAccumulator fRowAccumulator;
 	private int fNRowsAvailable = 0;
 	private boolean fAllRowsRung = false;
-
-	/** A pipeline can have multiple visualisers applied to it, but only one at a time. */
-	private Visualiser fCurrentVisualiser;
-
-	/** All visualiser calls are marshaled off to a worker thread */
-	private WorkScheduler fVisualiserWorker = new WorkScheduler("Visualiser Work Thread");
+	/** If set, corrected rows and visualiser results are stored in the cache, and taken from it if there already */
+	private TouchCache fTouchCache;
+	private String fCacheKey;
+	/** Rows taken from the cache, in which case there is no input or error correction stage */
+	private RowSource fCachedRows;
+	/** Checks rows for repeats as they come out of the RowAccumulator */
+	private TruthChecker fTruthChecker = new TruthChecker();
+	/** Identifies the method rung, and its lead heads, from the same rows */
+	private MethodIdentifier fMethodIdentifier = new MethodIdentifier();
+
+	/** A pipeline can have multiple visualisers applied to it, but only one at a time is shown in the UI. */
+	private volatile Visualiser fCurrentVisualiser;
+	/** Visualisers kept up to date alongside the current one, so that switching to them is instant. */
+	private Set<Visualiser> fActiveVisualisers = new HashSet<Visualiser>();
+	/** Visualisers which have been given the whole touch (and so have been stored in or loaded from the cache) */
+	private Set<Visualiser> fFinishedVisualisers = new HashSet<Visualiser>();
+
+	/** Each visualiser being fed rows has its calls marshaled off to its own worker, so they all run in parallel.
+	 *  Also used as the lock for fActiveVisualisers and fCurrentVisualiser changes. */
+	private Map<Visualiser,WorkScheduler> fVisualiserWorkers = new HashMap<Visualiser,WorkScheduler>();
 
 	/** Calls to the UI's loadRows method are marshaled onto another worker thread */
 	private WorkScheduler fUIWorker = new WorkScheduler("UI Work Thread");
@@ -101,9 +114,34 @@ public class Pipeline implements InputStageListener, AnalysisStageListener
 	 */
 	public int getNBells()
 	{
+		if (fCachedRows!=null)
+			return fCachedRows.getNBells();
 		return fRowAccumulator.getNBells();
 	}
 
+	/**
+	 * Lets the pipeline store its results in a cache, and use those stored by an earlier pipeline for the same
+	 * touch instead of loading and analysing it again. Must be called before the pipeline is started.
+	 *
+	 * @param cache
+	 * @param touchKey see TouchCache.makeTouchKey(); if null, the cache is not used
+	 */
+	public void setTouchCache(TouchCache cache, String touchKey)
+	{
+		fTouchCache = touchKey==null? null: cache;
+		fCacheKey = touchKey;
+	}
+
+	public TouchCache getTouchCache()
+	{
+		return fTouchCache;
+	}
+
+	public String getCacheKey()
+	{
+		return fCacheKey;
+	}
+
 	/**
 	 * Start the pipeline running. This is done on a separate thread.
 	 * An input stage will have been plugged in already (via the Pipeline constructor) so this is started,
@@ -116,27 +154,9 @@ public class Pipeline implements InputStageListener, AnalysisStageListener
 		Runnable r = new Runnable(){
 			public void run()
 			{
-				// Set up the error correctors and row accumulator stage.
-				fErrorCorrectors = fInputStage.getErrorCorrecters();
-				fRowAccumulator = new RowAccumulator(Pipeline.this);
-				if (fErrorCorrectors==null || fErrorCorrectors.size()==0)
-				{
-					fFirstErrorCorrecter = fRowAccumulator;
-				}
-				else
-				{
-					// Chain error correctors together
-					Iterator i = fErrorCorrectors.iterator();
-					ErrorCorrecter errorCorrecter = (ErrorCorrecter)i.next();
-					fFirstErrorCorrecter = errorCorrecter;
-					while (i.hasNext())
-					{
-						ErrorCorrecter nextCorrecter = (ErrorCorrecter)i.next();
-						errorCorrecter.setNextStage(nextCorrecter);
-						errorCorrecter = nextCorrecter;
-					}
-					errorCorrecter.setNextStage(fRowAccumulator);
-				}
+				if (loadCachedRows())
+					return;
+				setUpErrorCorrecters();
 
 				if (Thread.currentThread().isInterrupted())
 					return;
@@ -150,6 +170,65 @@ public class Pipeline implements InputStageListener, AnalysisStageListener
 		fInputThread.start();
 	}
 
+	/**
+	 * Runs the whole input and error correction stages on the calling thread, returning only once the last
+	 * row has been rung. Intended for headless use (see CASBatch) where no UI or visualiser is plugged in;
+	 * the raw rows can then be retrieved with getRawTouchData().
+	 */
+	public void load()
+	{
+		if (loadCachedRows())
+			return;
+		setUpErrorCorrecters();
+		fInputStage.startLoad(this);
+	}
+
+	/**
+	 * If the touch's corrected rows are in the cache, they are passed on as if they had all just been
+	 * accumulated, and the last row rung.
+	 *
+	 * @return true if the rows were found
+	 */
+	private boolean loadCachedRows()
+	{
+		if (fTouchCache==null)
+			return false;
+		RowSource rows = fTouchCache.loadRows(fCacheKey);
+		if (rows==null)
+			return false;
+		fCachedRows = rows;
+		rowsAvailable(rows.getNRows());
+		notifyLastRowRung();
+		return true;
+	}
+
+	/**
+	 * Set up the error correctors and row accumulator stage.
+	 */
+	private void setUpErrorCorrecters()
+	{
+		fErrorCorrectors = fInputStage.getErrorCorrecters();
+		fRowAccumulator = new RowAccumulator(this);
+		if (fErrorCorrectors==null || fErrorCorrectors.size()==0)
+		{
+			fFirstErrorCorrecter = fRowAccumulator;
+		}
+		else
+		{
+			// Chain error correctors together
+			Iterator i = fErrorCorrectors.iterator();
+			ErrorCorrecter errorCorrecter = (ErrorCorrecter)i.next();
+			fFirstErrorCorrecter = errorCorrecter;
+			while (i.hasNext())
+			{
+				ErrorCorrecter nextCorrecter = (ErrorCorrecter)i.next();
+				errorCorrecter.setNextStage(nextCorrecter);
+				errorCorrecter = nextCorrecter;
+			}
+			errorCorrecter.setNextStage(fRowAccumulator);
+		}
+	}
+
 	/**
 	 *  First stage: receive Bongs (and possibly errors) from the StrikingDataInput.
 	 *
@@ -157,7 +236,18 @@ public class Pipeline implements InputStageListener, AnalysisStageListener
 	 */
 	public void receiveBong(Bong bong)
 	{
-		fFirstErrorCorrecter.receiveBong(bong);
+		fFirstErrorCorrecter.receiveStrike(bong.bell, bong.time, bong.stroke);
+	}
+
+	public void receiveStrike(int bell, int time, int stroke)
+	{
+		fFirstErrorCorrecter.receiveStrike(bell, time, stroke);
+	}
+
+	public void receiveStrikes(int[] bells, int[] times, int[] strokes, int count)
+	{
+		for (int i=0; i<count; i++)
+			fFirstErrorCorrecter.receiveStrike(bells[i], times[i], strokes[i]);
 	}
 
 	public void notifyInputComplete()
@@ -168,18 +258,21 @@ public class Pipeline implements InputStageListener, AnalysisStageListener
 	public void notifyInputError(String msg)
 	{
     System.out.println("Input failed: "+msg);
-		fUI.notifyInputError(msg);
+		if (fUI!=null)
+			fUI.notifyInputError(msg);
 	}
 
 	/**
-	 * Second stage: receive error-corrected Rows, pass on to the visualiser (if present)
-	 * The work is marshaled onto another thread so that the visualiser can take as long as
+	 * Second stage: receive error-corrected Rows, pass on to the current visualiser (if present) and
+	 * any other active visualisers.
+	 * The work is marshaled onto each visualiser's own worker thread so that the visualiser can take as long as
 	 * it wants over the operation (which could involved long-running stats calculations and
-	 * UI update).
+	 * UI update), without holding up the others.
 	 * <p>
 	 * If another row comes along whilst the first one is still processing, the work is queued.
 	 * If a third row comes along before the queued row can start, the queued row is dropped and
-	 * the third row takes its place.
+	 * the third row takes its place. Since visualisers only process rows they haven't yet seen,
+	 * nothing is lost.
 	 *
 	 * @param nrows
 	 */
@@ -187,14 +280,36 @@ public class Pipeline implements InputStageListener, AnalysisStageListener
 	{
 		fNRowsAvailable = nrows;
 		final RowSource rowSource = getRowSource(nrows);
-		Runnable work = new Runnable(){
-			public void run()
+		fTruthChecker.rowsAvailable(rowSource);
+		fMethodIdentifier.rowsAvailable(rowSource);
+		// Headless pipelines have no visualiser stage - don't bother scheduling work for them.
+		// Cached rows all arrive at once, so visualisers are given them when the last row is rung.
+		if (fUI==null || fCachedRows!=null)
+			return;
+		synchronized (fVisualiserWorkers)
+		{
+			for (Map.Entry<Visualiser,WorkScheduler> entry: fVisualiserWorkers.entrySet())
 			{
-				if (fCurrentVisualiser!=null)
-					fCurrentVisualiser.newRowsAvailable(rowSource);
+				final Visualiser visualiser = entry.getKey();
+				Runnable work = new Runnable(){
+					public void run()
+					{
+						visualiser.newRowsAvailable(rowSource);
+					}
+				};
+				entry.getValue().addWorkItem(work, WorkScheduler.PRIORITY_NORMAL);
 			}
-		};
-    fVisualiserWorker.addWorkItem(work, WorkScheduler.PRIORITY_NORMAL);
+		}
+	}
+
+	public TruthChecker getTruthChecker()
+	{
+		return fTruthChecker;
+	}
+
+	public MethodIdentifier getMethodIdentifier()
+	{
+		return fMethodIdentifier;
 	}
 
 	/**
@@ -218,10 +333,14 @@ public class Pipeline implements InputStageListener, AnalysisStageListener
 			}
 			public Row getRow(int i)
 			{
+				if (fCachedRows!=null)
+					return fCachedRows.getRow(i);
 				return fRowAccumulator.getRow(i);
 			}
 			public int getNBells()
 			{
+				if (fCachedRows!=null)
+					return fCachedRows.getNBells();
 				if (fRowAccumulator!=null)
 					return fRowAccumulator.getNBells();
 				return 0;
@@ -235,46 +354,206 @@ public class Pipeline implements InputStageListener, AnalysisStageListener
 	public void notifyLastRowRung()
 	{
 		fAllRowsRung = true;
-		Runnable work = new Runnable(){
-			public void run()
+		if (fTouchCache!=null && fCachedRows==null)
+			fTouchCache.storeRows(fCacheKey, getRowSource(fNRowsAvailable), fInputFormat);
+		if (fUI==null)
+			return;
+		synchronized (fVisualiserWorkers)
+		{
+			for (Map.Entry<Visualiser,WorkScheduler> entry: fVisualiserWorkers.entrySet())
 			{
-				if (fCurrentVisualiser!=null)
-					fCurrentVisualiser.notifyLastRowRung();
+				final Visualiser visualiser = entry.getKey();
+				Runnable work = new Runnable(){
+					public void run()
+					{
+						finishVisualiser(visualiser);
+					}
+				};
+				entry.getValue().addWorkItem(work, WorkScheduler.PRIORITY_CLEANUP);
 			}
-		};
-		fVisualiserWorker.addWorkItem(work, WorkScheduler.PRIORITY_CLEANUP);
+		}
 	}
 
 	/**
 	 * This call will be run on a UI worker thread, so it has to be responsive to thread interrupts.
 	 * An interrupt probably means that the user has changed their mind and is selecting a different
 	 * visualiser, or the UI is being closed, but in either case we should stop immediately.
+	 * <p>
+	 * If the visualiser is active (see addActiveVisualiser) its data will already be up to date, so
+	 * the UI simply swaps to it. Otherwise the rows it hasn't yet seen are fed to it first; the
+	 * previous visualiser, unless it is active, stops receiving rows.
 	 *
 	 * @param visualiser
 	 */
 	public void setVisualiser(final Visualiser visualiser)
 	{
-		visualiser.setAnalysisListener(this);
+		WorkScheduler worker;
+		synchronized (fVisualiserWorkers)
+		{
+			Visualiser previous = fCurrentVisualiser;
+			fCurrentVisualiser = visualiser;
+			if (previous!=null && previous!=visualiser && !fActiveVisualisers.contains(previous))
+				stopVisualiser(previous);
+			worker = startVisualiser(visualiser);
+		}
 		Runnable work = new Runnable(){
 			public void run()
 			{
-				fCurrentVisualiser = visualiser;
-				TouchStats existingVisualiserData = fCurrentVisualiser.getAveragedTouchData();
+				if (fCurrentVisualiser!=visualiser)
+					return;
+				TouchStats existingVisualiserData = visualiser.getAveragedTouchData();
 				if (Thread.interrupted())
 					return;
 				if (existingVisualiserData.getNRows()>0)
 					fUI.loadRows(existingVisualiserData);
 				if (Thread.interrupted())
 					return;
-				RowSource rowSource = getRowSource(fNRowsAvailable);
-				fCurrentVisualiser.newRowsAvailable(rowSource);
-				if (Thread.interrupted())
-					return;
-				if (fAllRowsRung)
-					fCurrentVisualiser.notifyLastRowRung();
+				catchUp(visualiser);
+			}
+		};
+		worker.addWorkItem(work, WorkScheduler.PRIORITY_HIGH);
+	}
+
+	/**
+	 * Keeps the visualiser up to date with every row, even while another visualiser is being shown,
+	 * so that switching to it is instant. Each active visualiser costs its own worker thread and
+	 * row storage, so the UI lets the user choose which are kept active.
+	 *
+	 * @param visualiser
+	 */
+	public void addActiveVisualiser(final Visualiser visualiser)
+	{
+		WorkScheduler worker;
+		synchronized (fVisualiserWorkers)
+		{
+			if (!fActiveVisualisers.add(visualiser))
+				return;
+			worker = startVisualiser(visualiser);
+		}
+		if (fUI==null)
+			return;
+		Runnable work = new Runnable(){
+			public void run()
+			{
+				catchUp(visualiser);
 			}
 		};
-		fVisualiserWorker.addWorkItem(work, WorkScheduler.PRIORITY_HIGH);
+		worker.addWorkItem(work, WorkScheduler.PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Stops keeping the visualiser up to date, unless it is the current one. Its data so far is kept,
+	 * and brought up to date if it is selected again.
+	 *
+	 * @param visualiser
+	 */
+	public void removeActiveVisualiser(Visualiser visualiser)
+	{
+		synchronized (fVisualiserWorkers)
+		{
+			if (fActiveVisualisers.remove(visualiser) && visualiser!=fCurrentVisualiser)
+				stopVisualiser(visualiser);
+		}
+	}
+
+	public boolean isActiveVisualiser(Visualiser visualiser)
+	{
+		synchronized (fVisualiserWorkers)
+		{
+			return fActiveVisualisers.contains(visualiser);
+		}
+	}
+
+	/**
+	 * Must be called with fVisualiserWorkers locked.
+	 *
+	 * @param visualiser
+	 * @return the visualiser's worker, created if it has none yet
+	 */
+	private WorkScheduler startVisualiser(Visualiser visualiser)
+	{
+		WorkScheduler worker = fVisualiserWorkers.get(visualiser);
+		if (worker==null)
+		{
+			worker = new WorkScheduler("Visualiser Work Thread ("+visualiser.getName()+")");
+			fVisualiserWorkers.put(visualiser, worker);
+			visualiser.setAnalysisListener(new VisualiserListener(visualiser));
+		}
+		return worker;
+	}
+
+	/**
+	 * Must be called with fVisualiserWorkers locked.
+	 *
+	 * @param visualiser
+	 */
+	private void stopVisualiser(Visualiser visualiser)
+	{
+		WorkScheduler worker = fVisualiserWorkers.remove(visualiser);
+		if (worker!=null)
+			worker.interruptWork();
+	}
+
+	/**
+	 * Feeds the visualiser any rows it hasn't yet seen. Run on the visualiser's worker thread.
+	 *
+	 * @param visualiser
+	 */
+	private void catchUp(Visualiser visualiser)
+	{
+		if (fAllRowsRung)
+			finishVisualiser(visualiser);
+		else
+			visualiser.newRowsAvailable(getRowSource(fNRowsAvailable));
+	}
+
+	/**
+	 * Feeds the visualiser the rest of the touch, then tells it the last row has been rung. Run on the
+	 * visualiser's worker thread once all rows have been rung. The first time, if there is a cache, the
+	 * visualiser's results are loaded from it if they are there, and stored in it if not.
+	 *
+	 * @param visualiser
+	 */
+	private void finishVisualiser(Visualiser visualiser)
+	{
+		RowSource rowSource = getRowSource(fNRowsAvailable);
+		boolean first;
+		synchronized (fVisualiserWorkers)
+		{
+			first = fFinishedVisualisers.add(visualiser);
+		}
+		if (first && fTouchCache!=null)
+		{
+			fTouchCache.analyse(fCacheKey, visualiser, rowSource);
+			return;
+		}
+		visualiser.newRowsAvailable(rowSource);
+		if (Thread.interrupted())
+			return;
+		visualiser.notifyLastRowRung();
+	}
+
+	/**
+	 * Runs a visualiser over the whole touch on the calling thread, once input is complete - for headless use,
+	 * where visualisers are not plugged in to the pipeline. If there is a cache, the results are loaded from it
+	 * if this touch has been analysed by the same visualiser before.
+	 *
+	 * @param visualiser
+	 */
+	public void analyse(Visualiser visualiser)
+	{
+		RowSource touch = getRawTouchData();
+		if (touch==null)
+			throw new IllegalStateException("Input not yet complete");
+		if (fTouchCache!=null)
+		{
+			fTouchCache.analyse(fCacheKey, visualiser, touch);
+		}
+		else
+		{
+			visualiser.newRowsAvailable(touch);
+			visualiser.notifyLastRowRung();
+		}
 	}
 
 	public void setUI(CASWindow ui)
@@ -294,7 +573,7 @@ public class Pipeline implements InputStageListener, AnalysisStageListener
 	public void newAveragedRowAvailable()
 	{
 		final Visualiser visualiser = fCurrentVisualiser;
-		if (Thread.currentThread().isInterrupted())
+		if (visualiser==null || Thread.currentThread().isInterrupted())
 			return;
 		Runnable loadRows = new Runnable(){
 			public void run()
@@ -320,13 +599,48 @@ public class Pipeline implements InputStageListener, AnalysisStageListener
 	}
 
 	/**
-	 * Stops load and all other threaded operations
+	 * Stops load and all other threaded operations.
+	 * Visualisers are detached from the pipeline, so they can be fed by another.
 	 */
 	public void stop()
 	{
     if (fInputThread!=null && fInputThread.isAlive())
 			fInputThread.interrupt();
-    fVisualiserWorker.interruptWork();
+		synchronized (fVisualiserWorkers)
+		{
+			for (WorkScheduler worker: fVisualiserWorkers.values())
+				worker.interruptWork();
+			fVisualiserWorkers.clear();
+			fActiveVisualisers.clear();
+			fFinishedVisualisers.clear();
+			fCurrentVisualiser = null;
+		}
 		fUIWorker.interruptWork();
 	}
+
+	/**
+	 * Passes on analysis events from one visualiser, but only while it is the one shown in the UI;
+	 * other active visualisers just keep their data up to date.
+	 */
+	class VisualiserListener implements AnalysisStageListener
+	{
+		private Visualiser fVisualiser;
+
+		VisualiserListener(Visualiser visualiser)
+		{
+			fVisualiser = visualiser;
+		}
+
+		public void newAveragedRowAvailable()
+		{
+			if (fVisualiser==fCurrentVisualiser)
+				Pipeline.this.newAveragedRowAvailable();
+		}
+
+		public void analysisComplete()
+		{
+			if (fVisualiser==fCurrentVisualiser)
+				Pipeline.this.analysisComplete();
+		}
+	}
 }
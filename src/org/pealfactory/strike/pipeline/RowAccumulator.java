@@ -1,12 +1,10 @@
 package org.pealfactory.strike.pipeline;
 
 import org.pealfactory.strike.Constants;
-import org.pealfactory.strike.input.BongListener;
+import org.pealfactory.strike.input.StrikeListener;
 import org.pealfactory.strike.data.*;
 import org.pealfactory.strike.pipeline.Pipeline;
 
-import java.util.ArrayList;
-
 /**
  * <p>
  * CAS Copyright 2003-2012 Mark B Davies
@@ -30,12 +28,13 @@ import java.util.ArrayList;
  *
  * @author MBD
  */
-public class RowAccumulator implements BongListener
+public class RowAccumulator implements StrikeListener
 {
 	private static final boolean LOG_OUTPUT = false;
 
 	private Pipeline fPipeline;
-	private ArrayList fData;
+	/** Completed rows are copied into columnar storage; the two RawRows are reused as row-building buffers. */
+	private RowStore fData;
 	private RawRow fCurrentRow;
 	private RawRow fNextRow;
 	private int fNBells = 0;
@@ -43,7 +42,7 @@ public class RowAccumulator implements BongListener
 	public RowAccumulator(Pipeline pipeline)
 	{
 		fPipeline = pipeline;
-		fData = new ArrayList();
+		fData = new RowStore();
 		fCurrentRow = new RawRow(true);
 		fNextRow = new RawRow(false);
 	}
@@ -57,31 +56,36 @@ public class RowAccumulator implements BongListener
 	 * @param bong
 	 */
   public void receiveBong(Bong bong)
+	{
+		receiveStrike(bong.bell, bong.time, bong.stroke);
+	}
+
+	public void receiveStrike(int bell, int time, int stroke)
 	{
 		// fNextRow will be empty when the very first row is received; fill up fCurrentRow first
 		if (fNextRow.getRowSize()==0)
 		{
-			if (fCurrentRow.isMatchingStroke(bong))
+			if (fCurrentRow.isMatchingStroke(stroke))
 			{
-				if (fCurrentRow.findBell(bong.bell)>0)
-					System.out.println("WARNING: bell "+bong.bell+" sounded twice in row 1; ignoring second strike.");
+				if (fCurrentRow.findBell(bell)>0)
+					System.out.println("WARNING: bell "+bell+" sounded twice in row 1; ignoring second strike.");
 				else
-					fCurrentRow.addBong(bong);
+					fCurrentRow.addStrike(bell, time, stroke);
 				return;
 			}
 		}
 		// See if we fit in fNextRow
-		if (fNextRow.isMatchingStroke(bong))
+		if (fNextRow.isMatchingStroke(stroke))
 		{
-			if (fNextRow.findBell(bong.bell)>0)
-				System.out.println("WARNING: bell "+bong.bell+" sounded twice in row "+fData.size()+2+"; ignoring second strike.");
+			if (fNextRow.findBell(bell)>0)
+				System.out.println("WARNING: bell "+bell+" sounded twice in row "+fData.getNRows()+2+"; ignoring second strike.");
 			else
-				fNextRow.addBong(bong);
+				fNextRow.addStrike(bell, time, stroke);
 			return;
 		}
 		// Nope - finish the row and add to the next
 		finishRow();
-		fNextRow.addBong(bong);
+		fNextRow.addStrike(bell, time, stroke);
 	}
 
 	protected void finishRow()
@@ -89,10 +93,12 @@ public class RowAccumulator implements BongListener
 		fNBells = Math.max(fNBells, fCurrentRow.getNBells());
 		if (LOG_OUTPUT)
 			System.out.println("RowAccumulator: "+fCurrentRow.rowAsString());
-		fData.add(fCurrentRow);
+		fData.addRow(fCurrentRow);
+		RawRow finishedRow = fCurrentRow;
 		fCurrentRow = fNextRow;
-		fNextRow = new RawRow(!fCurrentRow.isHandstroke());
-		fPipeline.rowsAvailable(fData.size());
+		finishedRow.clear(!fCurrentRow.isHandstroke());
+		fNextRow = finishedRow;
+		fPipeline.rowsAvailable(fData.getNRows());
 	}
 
 	protected boolean isSameStroke(Bong b1, Bong b2)
@@ -113,11 +119,11 @@ public class RowAccumulator implements BongListener
 
 	public void notifyInputComplete()
 	{
-		fData.add(fCurrentRow);
+		fData.addRow(fCurrentRow);
 		// Don't add final row if it's a handstroke - stats and rendering can only cope with whole pulls!
 		if (!fNextRow.isHandstroke())
-			fData.add(fNextRow);
-		fPipeline.rowsAvailable(fData.size());
+			fData.addRow(fNextRow);
+		fPipeline.rowsAvailable(fData.getNRows());
 		fPipeline.notifyLastRowRung();
 	}
 
@@ -128,11 +134,11 @@ public class RowAccumulator implements BongListener
 
 	public int size()
 	{
-		return fData.size();
+		return fData.getNRows();
 	}
 
 	public Row getRow(int i)
 	{
-		return (Row)fData.get(i);
+		return fData.getRow(i);
 	}
 }
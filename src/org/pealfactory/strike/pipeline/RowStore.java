@@ -0,0 +1,294 @@
+package org.pealfactory.strike.pipeline;
+
+import org.pealfactory.strike.Constants;
+import org.pealfactory.strike.data.*;
+
+/**
+ * Columnar storage for a touch of completed rows. Rather than holding a list of row objects, each containing
+ * a list of Bongs, the strikes of every row are packed end-to-end into primitive arrays, and each row is
+ * located by its offset into those arrays. Rows handed out by getRow() are lightweight views onto the arrays,
+ * so storing a touch costs a handful of bytes per strike instead of several objects. Each row also has a
+ * bell to place index, so that findBell() - used per bell per row by the touch stats - is constant time.
+ * <p>
+ * The store is append-only and is written by a single thread (the pipeline input thread), but may be read from
+ * any thread without locking. Rows are kept in fixed-size chunks, held in an AppendLog, which are never moved
+ * once allocated; the row count is volatile and is only advanced once a row is complete, so any row below a
+ * count a reader has seen is safe to read. A chunk's strike columns may be reallocated as they fill, but the
+ * old arrays are never written again, so a reader still holding them sees the same committed strikes.
+ * </p>
+ * <p>
+ * CAS Copyright 2003-2012 Mark B Davies
+ * </p>
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * </p>
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * </p>
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * </p>
+ *
+ * @author MBD
+ */
+public class RowStore implements RowSource
+{
+	private static final int CHUNK_BITS = 8;
+	private static final int CHUNK_ROWS = 1<<CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_ROWS-1;
+	private static final int NBELLS = Constants.MAXNBELLS;
+
+	private AppendLog<Chunk> fChunks = new AppendLog<Chunk>();
+	/** Chunk being filled - writer only */
+	private Chunk fLastChunk;
+	private volatile int fNRows;
+	private volatile int fNBells;
+
+	public RowStore()
+	{
+	}
+
+	/**
+	 * Copies the given row onto the end of the store. The row itself is not retained, so may be reused
+	 * by the caller.
+	 *
+	 * @param row
+	 */
+	public void addRow(RawRow row)
+	{
+		int i = fNRows;
+		if ((i&CHUNK_MASK)==0)
+		{
+			fLastChunk = new Chunk();
+			fChunks.add(fLastChunk);
+		}
+		fLastChunk.addRow(i&CHUNK_MASK, row);
+		fNBells = Math.max(fNBells, row.getNBells());
+		fNRows = i+1;
+	}
+
+	public int getNBells()
+	{
+		return fNBells;
+	}
+
+	public int getNRows()
+	{
+		return fNRows;
+	}
+
+	/**
+	 * Returns a view onto row i. The view holds no strike data of its own.
+	 *
+	 * @param i 0..nrows-1
+	 * @return
+	 */
+	public Row getRow(int i)
+	{
+		if (i<0 || i>=fNRows)
+			throw new IndexOutOfBoundsException("Row "+i+" of "+fNRows);
+		return new StoredRow(fChunks.get(i>>CHUNK_BITS), i&CHUNK_MASK);
+	}
+
+	/**
+	 * Columns for CHUNK_ROWS consecutive rows.
+	 */
+	static class Chunk
+	{
+		/** Strike columns - one entry per strike, rows stored consecutively. Volatile since they are reallocated as they fill. */
+		volatile int[] fBell;
+		volatile int[] fTime;
+		volatile byte[] fStroke;
+		int fNStrikes;
+
+		/** Row columns - row r occupies strikes fRowOffsets[r] to fRowOffsets[r+1]-1 */
+		int[] fRowOffsets = new int[CHUNK_ROWS+1];
+		boolean[] fHandstroke = new boolean[CHUNK_ROWS];
+		byte[] fRowNBells = new byte[CHUNK_ROWS];
+		/** Per-row bell to place index: MAXNBELLS entries per row, valid where the bell's bit is set in fBellMask */
+		byte[] fPlaceIndex = new byte[CHUNK_ROWS*NBELLS];
+		int[] fBellMask = new int[CHUNK_ROWS];
+		/** Per-row bell order signature - see PackedRow */
+		long[] fSignature = new long[CHUNK_ROWS];
+
+		Chunk()
+		{
+			int strikes = CHUNK_ROWS*8;
+			fBell = new int[strikes];
+			fTime = new int[strikes];
+			fStroke = new byte[strikes];
+		}
+
+		/**
+		 * @param r row within the chunk, which must be the next one
+		 * @param row
+		 */
+		void addRow(int r, RawRow row)
+		{
+			int n = row.getRowSize();
+			ensureStrikeCapacity(fNStrikes+n);
+			int mask = 0;
+			int indexStart = r*NBELLS;
+			for (int place=1; place<=n; place++)
+			{
+				int bell = row.getBellAt(place);
+				int bit = 1<<(bell-1);
+				if ((mask&bit)==0)
+				{
+					mask|= bit;
+					fPlaceIndex[indexStart+bell-1] = (byte)place;
+				}
+				fBell[fNStrikes] = bell;
+				fTime[fNStrikes] = row.getStrikeTime(place);
+				fStroke[fNStrikes] = (byte)row.getStroke(place);
+				fNStrikes++;
+			}
+			fHandstroke[r] = row.isHandstroke();
+			fRowNBells[r] = (byte)row.getNBells();
+			fBellMask[r] = mask;
+			fSignature[r] = row.getSignature();
+			fRowOffsets[r+1] = fNStrikes;
+		}
+
+		/**
+		 * The new arrays are filled before being swapped in, and the old ones are never written again.
+		 */
+		private void ensureStrikeCapacity(int size)
+		{
+			if (size>fBell.length)
+			{
+				int newSize = Math.max(size, fBell.length*2);
+				int[] bell = new int[newSize];
+				int[] time = new int[newSize];
+				byte[] stroke = new byte[newSize];
+				System.arraycopy(fBell, 0, bell, 0, fNStrikes);
+				System.arraycopy(fTime, 0, time, 0, fNStrikes);
+				System.arraycopy(fStroke, 0, stroke, 0, fNStrikes);
+				fBell = bell;
+				fTime = time;
+				fStroke = stroke;
+			}
+		}
+	}
+
+	/**
+	 * A Row backed by a chunk's columns.
+	 */
+	static class StoredRow implements Row
+	{
+		private Chunk fChunk;
+		private int fRow;
+
+		StoredRow(Chunk chunk, int row)
+		{
+			fChunk = chunk;
+			fRow = row;
+		}
+
+		private int first()
+		{
+			return fChunk.fRowOffsets[fRow];
+		}
+
+		/**
+		 * Bongs are created on demand - prefer getBellAt() and getStrikeTime().
+		 *
+		 * @param place 1..n
+		 * @return
+		 */
+		public Bong getBong(int place)
+		{
+			int i = first()+place-1;
+			return new Bong(fChunk.fBell[i], fChunk.fTime[i], fChunk.fStroke[i]);
+		}
+
+		public int getBellAt(int place)
+		{
+			return fChunk.fBell[first()+place-1];
+		}
+
+		public int getStrikeTime(int place)
+		{
+			return fChunk.fTime[first()+place-1];
+		}
+
+		public int findBell(int bell)
+		{
+			if (bell<1 || bell>NBELLS || (fChunk.fBellMask[fRow]&(1<<(bell-1)))==0)
+				return -1;
+			return fChunk.fPlaceIndex[fRow*NBELLS+bell-1];
+		}
+
+		public boolean isHandstroke()
+		{
+			return fChunk.fHandstroke[fRow];
+		}
+
+		public long getSignature()
+		{
+			return fChunk.fSignature[fRow];
+		}
+
+		public int getNBells()
+		{
+			return fChunk.fRowNBells[fRow];
+		}
+
+		public int getRowSize()
+		{
+			return fChunk.fRowOffsets[fRow+1]-fChunk.fRowOffsets[fRow];
+		}
+
+		/**
+		 * Same algorithm as RawRow.isCloseToRounds(), run directly over the columns.
+		 *
+		 * @return
+		 */
+		public boolean isCloseToRounds()
+		{
+			if (PackedRow.isRounds(getSignature(), getRowSize()))
+				return true;
+			int[] bells = fChunk.fBell;
+			int[] times = fChunk.fTime;
+			int first = first();
+			int last = fChunk.fRowOffsets[fRow+1];
+			// An empty row has no strikes to look at (and is rounds by signature anyway).
+			if (first>=last)
+				return true;
+			int b1 = bells[first];
+			for (int i=first+1; i<last; i++)
+			{
+				int b2 = bells[i];
+				if (b1>b2)
+				{
+					if (b1-b2>1 || times[i]-times[i-1] > 90)
+						return false;
+				}
+				b1 = b2;
+			}
+			return true;
+		}
+
+		public String toString()
+		{
+			int n = getRowSize();
+			if (n==0)
+				return "Empty Row";
+			StringBuffer s = new StringBuffer();
+			for (int place=1; place<=n; place++)
+			{
+				if (place>1)
+					s.append(", ");
+				s.append(getBong(place).toString());
+			}
+			return s.toString();
+		}
+	}
+}
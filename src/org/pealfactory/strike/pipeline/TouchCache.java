@@ -0,0 +1,632 @@
+package org.pealfactory.strike.pipeline;
+
+import org.pealfactory.strike.analyser.*;
+import org.pealfactory.strike.data.*;
+import org.pealfactory.strike.errorcorrection.*;
+import org.pealfactory.strike.input.*;
+
+import java.io.*;
+import java.nio.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * A persistent cache of analysed touches on disk, so that reopening or resummarising a touch which has been
+ * analysed before doesn't need it to be parsed, error-corrected and visualised all over again.
+ * <p>
+ * Entries are content-addressed. A touch key is a SHA-256 hash of the code in use, the input file's bytes,
+ * the oddstruckness file if the input format uses one, the input format, and the chain of error correcters
+ * with their settings; the error-corrected rows are stored under it in CAS binary format. An analysis key
+ * hashes the touch key with the visualiser's class, name, information text and settings, and the visualiser's
+ * averaged rows are stored under that. Since a key changes whenever anything it is made from does, entries
+ * never need to be invalidated. The code is identified by hashing the jar (or class directory) CAS was loaded
+ * from - see getBuildVersion() - so any rebuild which changes the code starts afresh; if that can't be found,
+ * nothing is cached.
+ * </p>
+ * <p>
+ * Averaged row entries hold the magic bytes "CASA", a version byte, ints giving the number of input rows
+ * analysed and the number of averaged rows, then for each row: a byte holding the row size, plus 0x80 if it
+ * is a handstroke and 0x40 if a new handstroke gap follows the row; each strike as a byte holding the bell in
+ * the bottom five bits and the stroke plus one in the next two, followed by the zig-zag varint interval from
+ * the previous strike; then zig-zag varints for the interval from the previous row end time and for the row
+ * duration, and the handstroke gap as a double if it has changed.
+ * </p>
+ * <p>
+ * The total size of the cache is bounded: once it is exceeded, the least recently used entries are deleted.
+ * Use is recorded in each file's modification time, so the order survives between sessions. Entries are
+ * written to a temporary file and then renamed, so a partly-written entry is never read. Any entry which
+ * can't be read is treated as missing, and discarded. Thread-safe.
+ * </p>
+ * <p>
+ * CAS Copyright 2003-2012 Mark B Davies
+ * </p>
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * </p>
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * </p>
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * </p>
+ *
+ * @author MBD
+ */
+public class TouchCache
+{
+	public static final long DEFAULT_MAX_BYTES = 64L*1024*1024;
+	/** Directory of the default cache, relative to the user's home directory */
+	public static final String DEFAULT_DIRECTORY = ".cas"+File.separator+"cache";
+	/** Error-corrected rows, in CAS binary format */
+	public static final String EXT_ROWS = CasBinaryBongInput.EXT_CAS_BINARY;
+	/** Averaged rows from one visualiser */
+	public static final String EXT_ANALYSIS = ".casa";
+
+	/** Version of the averaged row format */
+	private static final int VERSION = 1;
+	private static final byte[] MAGIC = {'C', 'A', 'S', 'A'};
+	private static final String TEMP_PREFIX = "cas";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private static final int HANDSTROKE_ROW = 0x80;
+	private static final int NEW_HANDSTROKE_GAP = 0x40;
+	private static final int SIZE_MASK = 0x3F;
+	private static final int BELL_MASK = 0x1F;
+	private static final int STROKE_SHIFT = 5;
+
+	private static TouchCache gDefaultCache;
+	/** Hash of the code in use, or "" if it couldn't be found - see getBuildVersion() */
+	private static String gBuildVersion;
+
+	private File fDirectory;
+	private long fMaxBytes;
+	/** Entry file names -> sizes, least recently used first */
+	private LinkedHashMap<String,Long> fEntries = new LinkedHashMap<String,Long>(16, 0.75f, true);
+	private long fTotalBytes = 0;
+	private boolean fScanned = false;
+
+	public TouchCache(File directory, long maxBytes)
+	{
+		fDirectory = directory;
+		fMaxBytes = maxBytes;
+	}
+
+	/**
+	 * @return a cache of DEFAULT_MAX_BYTES in DEFAULT_DIRECTORY
+	 */
+	public static synchronized TouchCache getDefaultCache()
+	{
+		if (gDefaultCache==null)
+			gDefaultCache = new TouchCache(new File(System.getProperty("user.home"), DEFAULT_DIRECTORY), DEFAULT_MAX_BYTES);
+		return gDefaultCache;
+	}
+
+	public File getDirectory()
+	{
+		return fDirectory;
+	}
+
+	/**
+	 * @param filename
+	 * @param source the source the inputter was created from
+	 * @param inputter
+	 * @return the key for the touch, or null if the input isn't a local file, or the code in use can't be
+	 * identified, and so can't be cached
+	 * @throws IOException if the file can't be read
+	 */
+	public static String makeTouchKey(String filename, InputSource source, StrikingDataInput inputter) throws IOException
+	{
+		if (!(source instanceof FileInputSource))
+			return null;
+		String build = getBuildVersion();
+		if (build.length()==0)
+			return null;
+		FileInputSource files = (FileInputSource)source;
+		File file = files.getFile(filename);
+		if (file==null || !file.isFile())
+			return null;
+		MessageDigest digest = createDigest();
+		update(digest, "CAS touch "+build);
+		update(digest, inputter.getClass().getName());
+		updateFile(digest, file);
+		if (inputter instanceof BagleyBongInput)
+		{
+			File oddstruck = files.getFile(BagleyBongInput.ODDSTRUCKFILE);
+			if (oddstruck!=null && oddstruck.isFile())
+				updateFile(digest, oddstruck);
+		}
+		for (ErrorCorrecter correcter: inputter.getErrorCorrecters())
+		{
+			update(digest, correcter.getClass().getName());
+			update(digest, correcter.getSettings());
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * @param touchKey
+	 * @param visualiser
+	 * @return the key for the visualiser's analysis of the touch
+	 */
+	public static String makeAnalysisKey(String touchKey, Visualiser visualiser)
+	{
+		MessageDigest digest = createDigest();
+		update(digest, "CAS analysis "+VERSION);
+		update(digest, touchKey);
+		update(digest, visualiser.getClass().getName());
+		update(digest, visualiser.getName());
+		update(digest, visualiser.getInfo());
+		update(digest, visualiser.getSettings());
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Identifies the code in use by hashing the jar, or directory of classes, which this class was loaded
+	 * from. Worked out once, the first time it is needed.
+	 *
+	 * @return a hash of the code, or "" if it can't be found, e.g. when running as an applet
+	 */
+	static synchronized String getBuildVersion()
+	{
+		if (gBuildVersion==null)
+		{
+			gBuildVersion = "";
+			try
+			{
+				CodeSource code = TouchCache.class.getProtectionDomain().getCodeSource();
+				if (code!=null && code.getLocation()!=null && "file".equals(code.getLocation().getProtocol()))
+				{
+					File location = new File(code.getLocation().toURI());
+					if (location.exists())
+					{
+						MessageDigest digest = createDigest();
+						updateCode(digest, location, "");
+						gBuildVersion = toHex(digest.digest());
+					}
+				}
+			}
+			catch (Exception e)
+			{
+				System.out.println("Can't identify the code in use, so not caching: "+e);
+			}
+		}
+		return gBuildVersion;
+	}
+
+	private static void updateCode(MessageDigest digest, File file, String path) throws IOException
+	{
+		if (file.isDirectory())
+		{
+			File[] files = file.listFiles();
+			if (files==null)
+				return;
+			Arrays.sort(files);
+			for (File f: files)
+				if (f.isDirectory() || f.getName().endsWith(".class"))
+					updateCode(digest, f, path+"/"+f.getName());
+		}
+		else
+		{
+			update(digest, path);
+			updateFile(digest, file);
+		}
+	}
+
+	private static MessageDigest createDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			// Every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void update(MessageDigest digest, String s)
+	{
+		try
+		{
+			byte[] bytes = (s==null? "": s).getBytes("UTF-8");
+			digest.update((byte)(bytes.length>>8));
+			digest.update((byte)bytes.length);
+			digest.update(bytes);
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void updateFile(MessageDigest digest, File file) throws IOException
+	{
+		InputStream in = new FileInputStream(file);
+		try
+		{
+			byte[] buf = new byte[65536];
+			int n;
+			while ((n = in.read(buf))>0)
+				digest.update(buf, 0, n);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private static String toHex(byte[] bytes)
+	{
+		StringBuilder s = new StringBuilder(bytes.length*2);
+		for (byte b: bytes)
+		{
+			s.append(Character.forDigit((b>>4)&0xF, 16));
+			s.append(Character.forDigit(b&0xF, 16));
+		}
+		return s.toString();
+	}
+
+	/**
+	 * @param touchKey
+	 * @return the touch's error-corrected rows, or null if they aren't in the cache
+	 */
+	public RowSource loadRows(String touchKey)
+	{
+		String name = touchKey+EXT_ROWS;
+		byte[] data = readEntry(name);
+		if (data==null)
+			return null;
+		try
+		{
+			CasBinaryBongInput input = new CasBinaryBongInput(name, ByteBuffer.wrap(data));
+			RowStore rows = new RowStore();
+			Iterator<RawRow> it = input.rowIterator();
+			while (it.hasNext())
+				rows.addRow(it.next());
+			return rows;
+		}
+		catch (IOException e)
+		{
+			discardEntry(name, e);
+		}
+		catch (RuntimeException e)
+		{
+			discardEntry(name, e);
+		}
+		return null;
+	}
+
+	/**
+	 * @param touchKey
+	 * @param rows the touch's error-corrected rows
+	 * @param sourceFormat name of the touch's input format
+	 */
+	public void storeRows(String touchKey, RowSource rows, String sourceFormat)
+	{
+		try
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			CasBinaryBongInput.outputRowData(rows, sourceFormat, out);
+			writeEntry(touchKey+EXT_ROWS, out.toByteArray());
+		}
+		catch (IOException e)
+		{
+			System.out.println("Failed to cache rows: "+e);
+		}
+	}
+
+	/**
+	 * Runs the visualiser over a complete touch on the calling thread, unless the same visualiser has analysed
+	 * the touch before, in which case its results are loaded from the cache instead - see
+	 * Visualiser.loadAnalysis(). New results are stored. Either way, the visualiser ends up complete, and its
+	 * listener is told so.
+	 * If the thread is interrupted during the analysis, the visualiser is left part-way through.
+	 *
+	 * @param touchKey
+	 * @param visualiser
+	 * @param touch all rows of the touch
+	 * @return true if the results were found in the cache
+	 */
+	public boolean analyse(String touchKey, Visualiser visualiser, RowSource touch)
+	{
+		String name = makeAnalysisKey(touchKey, visualiser)+EXT_ANALYSIS;
+		AveragedRowData rows = loadAnalysis(name, touch);
+		if (rows!=null)
+		{
+			visualiser.loadAnalysis(rows, touch);
+			return true;
+		}
+		visualiser.newRowsAvailable(touch);
+		if (Thread.currentThread().isInterrupted())
+			return false;
+		visualiser.notifyLastRowRung();
+		try
+		{
+			writeEntry(name, encodeAnalysis(visualiser.getAveragedTouchData(), touch.getNRows()));
+		}
+		catch (IOException e)
+		{
+			System.out.println("Failed to cache "+visualiser.getName()+" analysis: "+e);
+		}
+		return false;
+	}
+
+	private AveragedRowData loadAnalysis(String name, RowSource touch)
+	{
+		byte[] data = readEntry(name);
+		if (data==null)
+			return null;
+		try
+		{
+			return decodeAnalysis(data, touch.getNRows());
+		}
+		catch (IOException e)
+		{
+			discardEntry(name, e);
+		}
+		catch (RuntimeException e)
+		{
+			discardEntry(name, e);
+		}
+		return null;
+	}
+
+	private static byte[] encodeAnalysis(TouchStats data, int nInputRows) throws IOException
+	{
+		int nrows = data.getNRows();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(nrows*(data.getNBells()*2+4));
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.write(MAGIC);
+		out.writeByte(VERSION);
+		out.writeInt(nInputRows);
+		out.writeInt(nrows);
+		int timestamp = 0;
+		int endTime = 0;
+		double handstrokeGap = Double.NaN;
+		for (int i=0; i<nrows; i++)
+		{
+			AveragedRow row = data.getRow(i);
+			int n = row.getRowSize();
+			if (n>SIZE_MASK)
+				throw new IOException("Row "+i+" is too long to cache");
+			boolean newGap = Double.compare(row.getHandstrokeGap(), handstrokeGap)!=0;
+			out.writeByte(n|(row.isHandstroke()? HANDSTROKE_ROW: 0)|(newGap? NEW_HANDSTROKE_GAP: 0));
+			for (int place=1; place<=n; place++)
+			{
+				Bong bong = row.getBong(place);
+				out.writeByte(bong.bell|((bong.stroke+1)<<STROKE_SHIFT));
+				writeVarint(out, bong.time-timestamp);
+				timestamp = bong.time;
+			}
+			writeVarint(out, row.getRowEndTime()-endTime);
+			endTime = row.getRowEndTime();
+			writeVarint(out, row.getRowDuration());
+			if (newGap)
+			{
+				handstrokeGap = row.getHandstrokeGap();
+				out.writeDouble(handstrokeGap);
+			}
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static AveragedRowData decodeAnalysis(byte[] data, int nInputRows) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		for (int i=0; i<MAGIC.length; i++)
+			if (in.readByte()!=MAGIC[i])
+				throw new IOException("Not a CAS analysis");
+		int version = in.readByte();
+		if (version!=VERSION)
+			throw new IOException("Unsupported CAS analysis version: "+version);
+		if (in.readInt()!=nInputRows)
+			throw new IOException("Analysis is of a different number of rows");
+		int nrows = in.readInt();
+		RowStore store = new RowStore();
+		RawRow row = new RawRow(true);
+		AveragedRowData rows = new AveragedRowData();
+		int timestamp = 0;
+		int endTime = 0;
+		double handstrokeGap = 0.0;
+		for (int i=0; i<nrows; i++)
+		{
+			int header = in.readUnsignedByte();
+			row.clear((header&HANDSTROKE_ROW)!=0);
+			int n = header&SIZE_MASK;
+			for (int place=1; place<=n; place++)
+			{
+				int b = in.readUnsignedByte();
+				timestamp+= readVarint(in);
+				row.addStrike(b&BELL_MASK, timestamp, (b>>STROKE_SHIFT)-1);
+			}
+			store.addRow(row);
+			endTime+= readVarint(in);
+			int duration = readVarint(in);
+			if ((header&NEW_HANDSTROKE_GAP)!=0)
+				handstrokeGap = in.readDouble();
+			rows.addRow(store.getRow(i), endTime, handstrokeGap, duration);
+		}
+		return rows;
+	}
+
+	private static void writeVarint(DataOutput out, int value) throws IOException
+	{
+		// Zig-zag encode so that small negative values stay small
+		int v = (value<<1)^(value>>31);
+		while ((v&~0x7F)!=0)
+		{
+			out.writeByte((v&0x7F)|0x80);
+			v>>>= 7;
+		}
+		out.writeByte(v);
+	}
+
+	private static int readVarint(DataInput in) throws IOException
+	{
+		int value = 0;
+		int shift = 0;
+		int b;
+		do
+		{
+			b = in.readUnsignedByte();
+			value|= (b&0x7F)<<shift;
+			shift+= 7;
+		}
+		while ((b&0x80)!=0);
+		return (value>>>1)^-(value&1);
+	}
+
+	/**
+	 * @param name
+	 * @return contents of the entry, or null if it isn't in the cache
+	 */
+	private byte[] readEntry(String name)
+	{
+		File file = new File(fDirectory, name);
+		synchronized (this)
+		{
+			scan();
+			if (fEntries.get(name)==null)
+				return null;
+		}
+		try
+		{
+			RandomAccessFile in = new RandomAccessFile(file, "r");
+			try
+			{
+				byte[] data = new byte[(int)in.length()];
+				in.readFully(data);
+				file.setLastModified(System.currentTimeMillis());
+				return data;
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (IOException e)
+		{
+			// Probably evicted by another thread, or deleted by hand.
+			synchronized (this)
+			{
+				removeEntry(name);
+			}
+			return null;
+		}
+	}
+
+	private void writeEntry(String name, byte[] data) throws IOException
+	{
+		synchronized (this)
+		{
+			scan();
+			// Entries are content-addressed, so an existing entry doesn't need rewriting.
+			if (fEntries.get(name)!=null)
+				return;
+		}
+		if (!fDirectory.isDirectory() && !fDirectory.mkdirs())
+			throw new IOException("Can't create cache directory "+fDirectory);
+		File temp = File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, fDirectory);
+		try
+		{
+			OutputStream out = new FileOutputStream(temp);
+			try
+			{
+				out.write(data);
+			}
+			finally
+			{
+				out.close();
+			}
+			File file = new File(fDirectory, name);
+			synchronized (this)
+			{
+				if (!file.exists() && !temp.renameTo(file))
+					throw new IOException("Can't rename cache entry to "+file);
+				Long old = fEntries.put(name, Long.valueOf(data.length));
+				if (old!=null)
+					fTotalBytes-= old.longValue();
+				fTotalBytes+= data.length;
+				evict();
+			}
+		}
+		finally
+		{
+			if (temp.exists())
+				temp.delete();
+		}
+	}
+
+	/**
+	 * Must be called with this locked. Deletes the least recently used entries until the cache is within
+	 * size, but never the most recent entry.
+	 */
+	private void evict()
+	{
+		Iterator<Map.Entry<String,Long>> it = fEntries.entrySet().iterator();
+		while (fTotalBytes>fMaxBytes && fEntries.size()>1)
+		{
+			Map.Entry<String,Long> eldest = it.next();
+			new File(fDirectory, eldest.getKey()).delete();
+			fTotalBytes-= eldest.getValue().longValue();
+			it.remove();
+		}
+	}
+
+	private synchronized void discardEntry(String name, Exception e)
+	{
+		System.out.println("Discarding unreadable cache entry "+name+": "+e);
+		removeEntry(name);
+		new File(fDirectory, name).delete();
+	}
+
+	/**
+	 * Must be called with this locked.
+	 */
+	private void removeEntry(String name)
+	{
+		Long size = fEntries.remove(name);
+		if (size!=null)
+			fTotalBytes-= size.longValue();
+	}
+
+	/**
+	 * Must be called with this locked. Finds the entries already on disk, the first time the cache is used.
+	 */
+	private void scan()
+	{
+		if (fScanned)
+			return;
+		fScanned = true;
+		File[] files = fDirectory.listFiles();
+		if (files==null)
+			return;
+		Arrays.sort(files, new Comparator<File>(){
+			public int compare(File f1, File f2)
+			{
+				long t1 = f1.lastModified();
+				long t2 = f2.lastModified();
+				return t1<t2? -1: (t1>t2? 1: 0);
+			}
+		});
+		for (File f: files)
+		{
+			String name = f.getName();
+			if (f.isFile() && (name.endsWith(EXT_ROWS) || name.endsWith(EXT_ANALYSIS)))
+			{
+				fEntries.put(name, Long.valueOf(f.length()));
+				fTotalBytes+= f.length();
+			}
+		}
+		evict();
+	}
+}
@@ -0,0 +1,265 @@
+package org.pealfactory.strike.pipeline;
+
+import org.pealfactory.strike.Constants;
+import org.pealfactory.strike.data.*;
+
+import java.util.*;
+
+/**
+ * Checks the truth of the rows coming out of the RowAccumulator: counts the changes rung, flags any row which
+ * repeats an earlier row of the same touch, and notes the rows where the band came round. Rows are looked up
+ * by their packed signature in a PackedRowSet, so checking is linear in the number of rows, and is done
+ * incrementally as rows arrive - a live display can show falseness as soon as it is rung.
+ * <p>
+ * A touch starts at the first of START_RUN consecutive rows which each differ from the row before and are
+ * not close to rounds, so that a band ringing rounds with a bell consistently out of place is not taken for
+ * changes. It ends when the band rings rounds again, or comes back to the row they were ringing before the
+ * touch started; the next touch, if any, is checked separately. Rows with missing or duplicated bells are
+ * counted as changes but can't be checked.
+ * </p>
+ * <p>
+ * Rows are added on the pipeline input thread, but results may be read from any thread.
+ * </p>
+ * <p>
+ * CAS Copyright 2003-2012 Mark B Davies
+ * </p>
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * </p>
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * </p>
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * </p>
+ *
+ * @author MBD
+ */
+public class TruthChecker
+{
+	/** Number of consecutive changing rows needed to start a touch */
+	public static final int START_RUN = 4;
+
+	private PackedRowSet fRowsInTouch = new PackedRowSet();
+	private int fNRowsChecked = 0;
+	private boolean fInChanges = false;
+	/** Previous checkable row, or -1 */
+	private long fPrevSignature;
+	private int fPrevRow = -1;
+	/** The row the band was ringing before the current touch started */
+	private long fStartSignature;
+	/** Changing rows seen while not in changes, which may turn out to be the start of a touch */
+	private long[] fPendingSignatures = new long[START_RUN];
+	private int[] fPendingRows = new int[START_RUN];
+	private int fNPending = 0;
+	/** The row before the first pending row */
+	private long fRunBaseSignature;
+
+	private int fNChanges = 0;
+	private int fNUnchecked = 0;
+	/** Indices of repeated rows, and of the row each one repeats */
+	private int[] fRepeatedRows = new int[16];
+	private int[] fOriginalRows = new int[16];
+	private int fNRepeats = 0;
+	/** Indices of rows where the band came round */
+	private int[] fRoundsRows = new int[4];
+	private int fNRoundsRows = 0;
+
+	/**
+	 * Checks any rows from the source which have not yet been checked.
+	 *
+	 * @param rows
+	 */
+	public synchronized void rowsAvailable(RowSource rows)
+	{
+		int nbells = rows.getNBells();
+		int nrows = rows.getNRows();
+		for (int i=fNRowsChecked; i<nrows; i++)
+			checkRow(rows.getRow(i), i, nbells);
+		fNRowsChecked = Math.max(fNRowsChecked, nrows);
+	}
+
+	private void checkRow(Row row, int i, int nbells)
+	{
+		if (row.getRowSize()==0)
+			return;
+		boolean checkable = isCheckable(row, nbells);
+		long sig = row.getSignature();
+		if (fInChanges)
+		{
+			if (row.isCloseToRounds() || (checkable && sig==fStartSignature))
+			{
+				// Came round - the rounds row is the last change of the touch.
+				fNChanges++;
+				fRoundsRows = append(fRoundsRows, fNRoundsRows++, i);
+				fRowsInTouch.clear();
+				fInChanges = false;
+			}
+			else if (checkable)
+			{
+				addChange(sig, i);
+			}
+			else
+			{
+				fNChanges++;
+				fNUnchecked++;
+			}
+		}
+		else if (checkable && fPrevRow>=0 && sig!=fPrevSignature && !row.isCloseToRounds())
+		{
+			if (fNPending==0)
+				fRunBaseSignature = fPrevSignature;
+			fPendingSignatures[fNPending] = sig;
+			fPendingRows[fNPending] = i;
+			fNPending++;
+			if (fNPending==START_RUN)
+			{
+				fInChanges = true;
+				fStartSignature = fRunBaseSignature;
+				for (int n=0; n<fNPending; n++)
+					addChange(fPendingSignatures[n], fPendingRows[n]);
+				fNPending = 0;
+			}
+		}
+		else
+		{
+			fNPending = 0;
+		}
+		if (checkable)
+		{
+			fPrevSignature = sig;
+			fPrevRow = i;
+		}
+	}
+
+	private void addChange(long sig, int i)
+	{
+		fNChanges++;
+		int original = fRowsInTouch.putIfAbsent(sig, i);
+		if (original>=0)
+		{
+			fRepeatedRows = append(fRepeatedRows, fNRepeats, i);
+			fOriginalRows = append(fOriginalRows, fNRepeats, original);
+			fNRepeats++;
+		}
+	}
+
+	/**
+	 * A row can only be checked if every bell strikes exactly once.
+	 */
+	private boolean isCheckable(Row row, int nbells)
+	{
+		if (row.getRowSize()!=nbells || nbells>Constants.MAXNBELLS)
+			return false;
+		for (int bell=1; bell<=nbells; bell++)
+		{
+			if (row.findBell(bell)<0)
+				return false;
+		}
+		return true;
+	}
+
+	private static int[] append(int[] a, int n, int value)
+	{
+		if (n==a.length)
+			a = Arrays.copyOf(a, n*2);
+		a[n] = value;
+		return a;
+	}
+
+	/**
+	 * @return number of changes rung, including the rounds rows where touches came round
+	 */
+	public synchronized int getNChanges()
+	{
+		return fNChanges;
+	}
+
+	/**
+	 * @return number of changes which have not repeated an earlier row of their touch
+	 */
+	public synchronized int getNTrueChanges()
+	{
+		return fNChanges-fNRepeats;
+	}
+
+	/**
+	 * @return number of changes with missing or extra bells, which could not be checked
+	 */
+	public synchronized int getNUnchecked()
+	{
+		return fNUnchecked;
+	}
+
+	public synchronized int getNRepeats()
+	{
+		return fNRepeats;
+	}
+
+	/**
+	 * @param n 0..getNRepeats()-1
+	 * @return index of the nth repeated row
+	 */
+	public synchronized int getRepeatedRow(int n)
+	{
+		return fRepeatedRows[n];
+	}
+
+	/**
+	 * @param n 0..getNRepeats()-1
+	 * @return index of the earlier row which the nth repeated row repeats
+	 */
+	public synchronized int getOriginalRow(int n)
+	{
+		return fOriginalRows[n];
+	}
+
+	/**
+	 * @return indices of the rows where the band came round
+	 */
+	public synchronized int[] getRoundsRows()
+	{
+		return Arrays.copyOf(fRoundsRows, fNRoundsRows);
+	}
+
+	public synchronized boolean isTrue()
+	{
+		return fNRepeats==0;
+	}
+
+	/**
+	 * @return one-line summary, e.g. "5040 changes, true"
+	 */
+	public synchronized String getSummary()
+	{
+		StringBuilder s = new StringBuilder();
+		s.append(fNChanges);
+		s.append(" changes, ");
+		if (fNRepeats==0)
+		{
+			s.append("true");
+		}
+		else
+		{
+			s.append(fNRepeats);
+			s.append(fNRepeats==1? " repeated row": " repeated rows");
+			s.append(" (first at row ");
+			s.append(fRepeatedRows[0]+1);
+			s.append(")");
+		}
+		if (fNUnchecked>0)
+		{
+			s.append(", ");
+			s.append(fNUnchecked);
+			s.append(" unchecked");
+		}
+		return s.toString();
+	}
+}
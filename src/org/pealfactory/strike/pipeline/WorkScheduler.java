@@ -1,11 +1,12 @@
 package org.pealfactory.strike.pipeline;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Provides a simple prioritised worker-thread scheduling mechanism.
- * A WorkScheduler instance manages a single worker thread; only one job can
- * run at a time. If a job is scheduled whilst another job is running, the new
+ * A WorkScheduler instance runs its jobs one at a time on a worker thread
+ * borrowed from a pool shared by all schedulers, so no thread is created per job. If a job is scheduled whilst another job is running, the new
  * job is put into a pending queue. At any given priority level, only one pending
  * job is queued at any one time; if a third job comes in at the same priority
  * level, the other pending job is removed.
@@ -43,10 +44,25 @@ public class WorkScheduler
 	/** Intended for cleanup jobs which must only run after all pending higher-priority jobs are complete. */
 	public final static int PRIORITY_CLEANUP = 0;
 
+	/** Worker threads shared by all schedulers. Idle threads are kept for a while for reuse, then die. */
+	private static final ExecutorService gWorkerPool = Executors.newCachedThreadPool(new ThreadFactory(){
+		public Thread newThread(Runnable r)
+		{
+			Thread t = new Thread(r, "CAS Worker");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
 	private String fThreadName;
+	/** True from when work is handed to the pool until the last pending job has finished */
+	private boolean fWorking;
+	/** The pool thread currently running one of our jobs, if any */
 	private Thread fWorkThread;
-	private SortedMap fPendingWork = new TreeMap();
-	private Object fWorkLock = new Object();
+	/** Set if interruptWork() is called whilst work has been handed to the pool but no job is running */
+	private boolean fInterruptPending;
+	private SortedMap<Integer,Runnable> fPendingWork = new TreeMap<Integer,Runnable>();
+	private final Object fWorkLock = new Object();
 
 	public WorkScheduler(String workName)
 	{
@@ -63,64 +79,109 @@ public class WorkScheduler
 	{
     synchronized (fWorkLock)
 		{
-      if (fWorkThread==null)
+      if (!fWorking)
 				startWork(work);
 			else
-      	fPendingWork.put(new Integer(priority), work);
+      	fPendingWork.put(priority, work);
 		}
 	}
 
 	/**
-	 * Need to implement this!!!!
+	 * Interrupts the running job, if any, and discards all pending work.
+	 * The scheduler can still be given new work afterwards.
 	 */
 	public void interruptWork()
 	{
     synchronized (fWorkLock)
 		{
+			fPendingWork.clear();
 			if (fWorkThread!=null)
 				fWorkThread.interrupt();
+			else if (fWorking)
+				fInterruptPending = true;
 		}
 	}
 
 	/**
-	 * Must be called with fWorkLock locked, no pending work, and fWorkThread null.
+	 * Must be called with fWorkLock locked, no pending work, and no work running.
+	 * The pool thread keeps running pending jobs until there are none left, rather than going back to the pool
+	 * between jobs.
 	 */
-	private void startWork(final Runnable work)
+	private void startWork(final Runnable firstWork)
 	{
-		// Create new Runnable to do waiting work.
+		fWorking = true;
+		fInterruptPending = false;
 		Runnable r = new Runnable(){
 			public void run()
 			{
+				Thread thread = Thread.currentThread();
+				String poolName = thread.getName();
+				thread.setName(fThreadName);
 				try
 				{
-					work.run();
+					Runnable work = firstWork;
+					while (work!=null)
+						work = runWork(thread, work);
 				}
 				finally
 				{
-					if (Thread.currentThread().isInterrupted())
-					{
-						// If we are interrupted, stop everything, and clear pending work.
-						fPendingWork.clear();
-						return;
-					}
-					// See if any more work is pending after we've finished the first lot -
-					// if so, start another work thread.
-					synchronized (fWorkLock)
-					{
-						fWorkThread = null;
-            if (!fPendingWork.isEmpty())
-            {
-	            // Get the highest-priority pending work item.
-	            Runnable pendingWork = (Runnable)fPendingWork.remove(fPendingWork.lastKey());
-							startWork(pendingWork);
-						}
-					}
+					thread.setName(poolName);
 				}
 			}
 		};
-		fWorkThread = new Thread(r, fThreadName);
-    fWorkThread.start();
+		gWorkerPool.execute(r);
 	}
 
-
+	/**
+	 * Runs one job, then returns the next pending job to run, or null if there is none. The job is skipped
+	 * if it was interrupted before it started. If the job throws an Error, the scheduler is left idle, with
+	 * no pending work, before the Error is passed on.
+	 */
+	private Runnable runWork(Thread thread, Runnable work)
+	{
+		boolean skip;
+		synchronized (fWorkLock)
+		{
+			fWorkThread = thread;
+			skip = fInterruptPending;
+			fInterruptPending = false;
+		}
+		boolean completed = false;
+		Runnable next = null;
+		try
+		{
+			if (!skip)
+				work.run();
+			completed = true;
+		}
+		catch (RuntimeException e)
+		{
+			// Don't let one failed job stop the scheduler running the next.
+			System.out.println("Work item failed on "+fThreadName+": "+e);
+			e.printStackTrace();
+			completed = true;
+		}
+		finally
+		{
+			synchronized (fWorkLock)
+			{
+				fWorkThread = null;
+				// Interrupts only happen whilst we hold the lock and fWorkThread is set, so clearing the flag here
+				// guarantees a pooled thread never carries an interrupt on to another job. Work pending now was
+				// added since any interrupt, which cleared the work pending then, so still needs running.
+				Thread.interrupted();
+				if (!completed || fPendingWork.isEmpty())
+				{
+					fPendingWork.clear();
+					fWorking = false;
+				}
+				else
+				{
+					// Get the highest-priority pending work item.
+					next = fPendingWork.remove(fPendingWork.lastKey());
+				}
+			}
+		}
+		return next;
+	}
 }
@@ -6,6 +6,8 @@ import org.pealfactory.strike.data.*;
 import java.text.*;
 
 /**
+ * Fault count at a given fault factor. Faults are counted from the raw strike times only, so the result
+ * is the same whichever visualiser the metric is evaluated against.
  * <p>
  * CAS Copyright 2003-2012 Mark B Davies
  * </p>
@@ -26,32 +28,24 @@ import java.text.*;
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  * </p>
  */
-public class FaultSummariserWorkItem extends SummariserWorkItem
+public class FaultSummaryMetric implements SummaryMetric
 {
 	private String fAnalysisName;
 	private double fFaultFactor;
-	NumberFormat fNumberFormat = NumberFormat.getNumberInstance();
 
-
-	public FaultSummariserWorkItem(char bandNumber, Visualiser visualiser, double faultFactor)
+	public FaultSummaryMetric(double faultFactor)
 	{
-		super(bandNumber, visualiser);
 		fFaultFactor = faultFactor;
-		fAnalysisName = "Fault count f="+fNumberFormat.format(faultFactor);
+		fAnalysisName = "Fault count f="+NumberFormat.getNumberInstance().format(faultFactor);
 	}
 
-	@Override
-	public void summarize(Summariser summariser)
+	public String getAnalysisName(Visualiser visualiser)
 	{
-		reloadVisualiserData(summariser);
-		TouchStats touchData = getVisualiser().getAveragedTouchData();
-		double result = touchData.getFaults(summariser.isInChangesOnly(), fFaultFactor);
-		setResult(result);
+		return fAnalysisName;
 	}
 
-	@Override
-	public String getAnalysisName()
+	public double evaluate(TouchStats touchData, boolean inChangesOnly)
 	{
-		return fAnalysisName;
+		return touchData.getFaults(inChangesOnly, fFaultFactor);
 	}
 }
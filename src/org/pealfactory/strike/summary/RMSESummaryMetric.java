@@ -0,0 +1,40 @@
+package org.pealfactory.strike.summary;
+
+import org.pealfactory.strike.analyser.*;
+import org.pealfactory.strike.data.*;
+
+/**
+ * Whole-pull striking RMSE - the standard summary result for each visualiser, collated under the
+ * visualiser's own name.
+ * <p>
+ * CAS Copyright 2003-2012 Mark B Davies
+ * </p>
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * </p>
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * </p>
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * </p>
+ */
+public class RMSESummaryMetric implements SummaryMetric
+{
+	public String getAnalysisName(Visualiser visualiser)
+	{
+		return visualiser.getName();
+	}
+
+	public double evaluate(TouchStats touchData, boolean inChangesOnly)
+	{
+		return touchData.getStrikingRMSE(inChangesOnly).whole;
+	}
+}
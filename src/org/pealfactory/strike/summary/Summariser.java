@@ -1,12 +1,21 @@
 package org.pealfactory.strike.summary;
 
+import org.pealfactory.strike.*;
 import org.pealfactory.strike.analyser.*;
 import org.pealfactory.strike.data.*;
 import org.pealfactory.strike.pipeline.*;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
+ * Runs every visualiser over every open touch, and collates the results into band orders.
+ * <p>
+ * Work items run in parallel on a shared pool sized to the number of processors. Visualisers are not
+ * thread-safe, so each work item is given its own visualiser instance; the raw touch data is read-only
+ * once the touch has been loaded, so is shared between items. Results are merged into the band orders
+ * under fBandOrderLock as each item completes.
+ * </p>
  * <p>
  * CAS Copyright 2003-2012 Mark B Davies
  * </p>
@@ -29,15 +38,19 @@ import java.util.*;
  */
 public class Summariser
 {
+	/** Fault counts are summarised at each of these multiples of TouchStats.FAULTFACTOR */
+	private static final double[] FAULT_FACTORS = {0.9, 1.0, 1.1};
+
+	private static ExecutorService gWorkPool;
+
 	private SummaryWindow fSummaryWindow;
 
-	private List<Visualiser> fVisualisers;
 	/** Pipeline filename -> band number */
 	private Map<String, Character> fBandNumbers = Collections.synchronizedMap(new HashMap<String, Character>());
 	/** Band number -> Pipeline filename  */
 	private Map<Character, String> fBands = Collections.synchronizedMap(new HashMap<Character, String>());
-	/** Band number -> raw touch data */
-	private Map<Character, RowSource> fTouches = Collections.synchronizedMap(new HashMap<Character, RowSource>());
+	/** Band number -> Pipeline, which holds the raw touch data and may have a TouchCache for the analyses */
+	private Map<Character, Pipeline> fPipelines = Collections.synchronizedMap(new HashMap<Character, Pipeline>());
 	/** Band order creators by analysis name */
 	private Map<String, BandOrderCreator> fBandOrderCreators = Collections.synchronizedMap(new HashMap<String, BandOrderCreator>());
 	/** Band order strings -> band order counts*/
@@ -55,7 +68,8 @@ public class Summariser
 
 	private char fNextBandNumber = 'A';
 	private boolean fInChangesOnly;
-	private WorkScheduler fAnalysisScheduler = new WorkScheduler("Summary Work Thread");
+	/** Incremented by clearBands(), so that results from work items already running can be discarded */
+	private int fGeneration = 0;
 	private WorkScheduler fUIScheduler = new WorkScheduler("Summary UI Thread");
 
 	public Summariser(SummaryWindow summaryTable)
@@ -79,11 +93,12 @@ public class Summariser
 					fNextBandNumber = 'A';
 					fBandNumbers.clear();
 					fBands.clear();
-					fTouches.clear();
+					fPipelines.clear();
 					fBandOrderCreators.clear();
 					fBandOrderCounts.clear();
 					fAverageOrder = null;
 					fWorkItemQueue.clear();
+					fGeneration++;
 				}
 			}
 		}
@@ -105,7 +120,7 @@ public class Summariser
 					{
 						fBands.put(fNextBandNumber, name);
 						fBandNumbers.put(name, fNextBandNumber);
-						fTouches.put(fNextBandNumber, touch);
+						fPipelines.put(fNextBandNumber, pipeline);
 						fNextBandNumber++;
 					}
 				}
@@ -113,23 +128,30 @@ public class Summariser
 		}
 		synchronized (fWorkItemLock)
 		{
-			for (Visualiser v: fVisualisers)
-				for (Character band: newBands)
-					fWorkItemQueue.offer(new SummariserWorkItem(band, v));
-			addFaultsAnalyser(newBands, TouchStats.FAULTFACTOR*0.9);
-			addFaultsAnalyser(newBands, TouchStats.FAULTFACTOR);
-			addFaultsAnalyser(newBands, TouchStats.FAULTFACTOR*1.1);
+			for (Character band: newBands)
+			{
+				SummariserWorkItem faultsItem = null;
+				for (Visualiser v: createVisualisers())
+				{
+					SummariserWorkItem workItem = new SummariserWorkItem(band, v);
+					workItem.addMetric(new RMSESummaryMetric());
+					if (faultsItem==null)
+						faultsItem = workItem;
+					fWorkItemQueue.offer(workItem);
+				}
+				// Fault counts - doesn't matter what visualiser we use, since only raw row data is actually acted on,
+				// so piggy-back on the first visualiser's run, or if there are none pick a simple one with minimal running time.
+				if (faultsItem==null)
+				{
+					faultsItem = new SummariserWorkItem(band, new LastBellPerfectVisualiser(1.0));
+					fWorkItemQueue.offer(faultsItem);
+				}
+				for (double factor: FAULT_FACTORS)
+					faultsItem.addMetric(new FaultSummaryMetric(TouchStats.FAULTFACTOR*factor));
+			}
 		}
 	}
 
-	private void addFaultsAnalyser(List<Character> newBands, double faultFactor)
-	{
-		// Add faults analyser - doesn't matter what visualiser we use, since only raw row data is actually acted on,
-		// so pick a simple one with minimal running time.
-		for (Character band: newBands)
-			fWorkItemQueue.offer(new FaultSummariserWorkItem(band, new LastBellPerfectVisualiser(1.0), faultFactor));
-	}
-
 	public String getBandFilename(Character bandNumber)
 	{
 		return fBands.get(bandNumber);
@@ -165,45 +187,88 @@ public class Summariser
 		}
 	}
 
+	/**
+	 * Hands all queued work items to the worker pool.
+	 */
 	public void startWork()
 	{
-		Runnable r = new Runnable(){
-			public void run()
+		ExecutorService pool = getWorkPool();
+		synchronized (fWorkItemLock)
+		{
+			final int generation = fGeneration;
+			SummariserWorkItem workItem;
+			while ((workItem = fWorkItemQueue.poll())!=null)
 			{
-				SummariserWorkItem workItem = getNextWorkItem();
-				while (workItem!=null)
-				{
-					workItem.summarize(Summariser.this);
-					addNewResult(workItem);
-					workItem = getNextWorkItem();
-				}
+				final SummariserWorkItem item = workItem;
+				pool.execute(new Runnable(){
+					public void run()
+					{
+						runWorkItem(item, generation);
+					}
+				});
 			}
-		};
-		fAnalysisScheduler.addWorkItem(r, WorkScheduler.PRIORITY_NORMAL);
+		}
 	}
 
+	private void runWorkItem(SummariserWorkItem workItem, int generation)
+	{
+		try
+		{
+			workItem.summarize(this);
+			addNewResult(workItem, generation);
+		}
+		catch (RuntimeException e)
+		{
+			System.out.println("Summary of band "+workItem.getBandNumber()+" with "+workItem.getVisualiser().getName()+" failed: "+e);
+		}
+	}
 
-	private SummariserWorkItem getNextWorkItem()
+	private static synchronized ExecutorService getWorkPool()
 	{
-		synchronized (fWorkItemLock)
+		if (gWorkPool==null)
 		{
-			return fWorkItemQueue.poll();
+			int nThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+			gWorkPool = Executors.newFixedThreadPool(nThreads, new ThreadFactory(){
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "Summary Work Thread");
+					t.setDaemon(true);
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			});
 		}
+		return gWorkPool;
+	}
+
+	/**
+	 * Each work item needs its own visualiser instances, since they may run concurrently.
+	 *
+	 * @return
+	 */
+	protected List<Visualiser> createVisualisers()
+	{
+		return CAS.getAvailableVisualisers();
 	}
 
-	private void addNewResult(SummariserWorkItem workItem)
+	private void addNewResult(SummariserWorkItem workItem, int generation)
 	{
-		String analysisName = workItem.getAnalysisName();
-		BandResult result = new BandResult(workItem.getBandNumber(), workItem.getResult());
 		synchronized (fBandOrderLock)
 		{
-			BandOrderCreator order = fBandOrderCreators.get(analysisName);
-			if (order==null)
+			// Bands have been cleared since this item was queued
+			if (generation!=fGeneration)
+				return;
+			for (int i=0; i<workItem.getNResults(); i++)
 			{
-				order = new BandOrderCreator(analysisName);
-				fBandOrderCreators.put(analysisName, order);
+				String analysisName = workItem.getAnalysisName(i);
+				BandOrderCreator order = fBandOrderCreators.get(analysisName);
+				if (order==null)
+				{
+					order = new BandOrderCreator(analysisName);
+					fBandOrderCreators.put(analysisName, order);
+				}
+				order.addResult(new BandResult(workItem.getBandNumber(), workItem.getResult(i)));
 			}
-			order.addResult(result);
 		}
 		notifyUI();
 	}
@@ -283,14 +348,15 @@ public class Summariser
 		cbo.addOrder(order);
 	}
 
-	public void setVisualiserList(List<Visualiser> visualisers)
+	protected Pipeline getPipeline(char bandNumber)
 	{
-	  fVisualisers = visualisers;
+		return fPipelines.get(bandNumber);
 	}
 
 	protected RowSource getTouchData(char bandNumber)
 	{
-		return fTouches.get(bandNumber);
+		Pipeline pipeline = fPipelines.get(bandNumber);
+		return pipeline==null? null: pipeline.getRawTouchData();
 	}
 	
 	public boolean isInChangesOnly()
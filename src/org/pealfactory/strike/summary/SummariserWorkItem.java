@@ -4,6 +4,8 @@ import org.pealfactory.strike.analyser.*;
 import org.pealfactory.strike.data.*;
 import org.pealfactory.strike.pipeline.*;
 
+import java.util.*;
+
 /**
  * <p>
  * CAS Copyright 2003-2012 Mark B Davies
@@ -29,7 +31,8 @@ public class SummariserWorkItem implements AnalysisStageListener
 {
 	private char fBandNumber;
 	private Visualiser fVisualiser;
-	private double fResult;
+	private List<SummaryMetric> fMetrics = new ArrayList<SummaryMetric>();
+	private double[] fResults;
 
 	public SummariserWorkItem(char bandNumber, Visualiser visualiser)
 	{
@@ -38,43 +41,61 @@ public class SummariserWorkItem implements AnalysisStageListener
 	}
 
 	/**
-	 * Should be run on a worker thread.
+	 * Must be called before summarize().
+	 *
+	 * @param metric
+	 */
+	public void addMetric(SummaryMetric metric)
+	{
+		fMetrics.add(metric);
+	}
+
+	/**
+	 * Should be run on a worker thread. The touch is visualised once, and every metric is then evaluated
+	 * against the same averaged touch data.
 	 *
 	 * @param summariser
 	 */
 	public void summarize(Summariser summariser)
 	{
 		reloadVisualiserData(summariser);
-		fResult = fVisualiser.getAveragedTouchData().getStrikingRMSE(summariser.isInChangesOnly()).whole;
+		TouchStats touchData = fVisualiser.getAveragedTouchData();
+		double[] results = new double[fMetrics.size()];
+		for (int i=0; i<results.length; i++)
+			results[i] = fMetrics.get(i).evaluate(touchData, summariser.isInChangesOnly());
+		fResults = results;
 	}
 
 	protected void reloadVisualiserData(Summariser summariser)
 	{
-		RowSource rawTouchData = summariser.getTouchData(fBandNumber);
 		fVisualiser.clearData();
 		fVisualiser.setAnalysisListener(this);
-		fVisualiser.newRowsAvailable(rawTouchData);
-		fVisualiser.notifyLastRowRung();
+		// The pipeline takes the analysis from its cache if the band has been summarised before.
+		summariser.getPipeline(fBandNumber).analyse(fVisualiser);
 	}
 
-	public double getResult()
+	public int getNResults()
 	{
-		return fResult;
+		return fMetrics.size();
 	}
 
-	protected void setResult(double result)
+	/**
+	 * @param i 0..getNResults()-1
+	 * @return
+	 */
+	public double getResult(int i)
 	{
-		fResult = result;
+		return fResults[i];
 	}
 
-	public char getBandNumber()
+	public String getAnalysisName(int i)
 	{
-		return fBandNumber;
+		return fMetrics.get(i).getAnalysisName(fVisualiser);
 	}
 
-	public String getAnalysisName()
+	public char getBandNumber()
 	{
-		return fVisualiser.getName();
+		return fBandNumber;
 	}
 
 	protected Visualiser getVisualiser()
@@ -94,4 +115,3 @@ public class SummariserWorkItem implements AnalysisStageListener
 		// No-op
 	}
 }
-
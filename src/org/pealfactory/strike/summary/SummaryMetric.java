@@ -0,0 +1,40 @@
+package org.pealfactory.strike.summary;
+
+import org.pealfactory.strike.analyser.*;
+import org.pealfactory.strike.data.*;
+
+/**
+ * A single figure derived from a visualised touch, used to rank bands. Several metrics can be evaluated
+ * against the same visualiser run, so the touch is only visualised once per band and visualiser.
+ * <p>
+ * CAS Copyright 2003-2012 Mark B Davies
+ * </p>
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * </p>
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * </p>
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * </p>
+ */
+public interface SummaryMetric
+{
+	/**
+	 * Name of the band order this metric's results are collated into.
+	 *
+	 * @param visualiser the visualiser the metric is being evaluated against
+	 * @return
+	 */
+	public String getAnalysisName(Visualiser visualiser);
+
+	public double evaluate(TouchStats touchData, boolean inChangesOnly);
+}
@@ -1,6 +1,5 @@
 package org.pealfactory.strike.summary;
 
-import org.pealfactory.strike.*;
 import org.pealfactory.strike.pipeline.*;
 import org.pealfactory.strike.ui.*;
 
@@ -52,7 +51,6 @@ public class SummaryWindow extends BaseUI
 		//fTableModel = new SummaryTableModel();
 		fTreeManager = new SummaryTreeManager();
 		fSummariser = new Summariser(this);
-		fSummariser.setVisualiserList(CAS.getAvailableVisualisers());
 	}
 
 	public void open(SummaryContainer parent)
@@ -4,6 +4,8 @@ import org.pealfactory.strike.data.AveragedRowData;
 import org.pealfactory.strike.data.TouchStats;
 import org.pealfactory.strike.Constants;
 import org.pealfactory.strike.CAS;
+import org.pealfactory.strike.input.CasBinaryBongInput;
+import org.pealfactory.strike.input.FileInputSource;
 import org.pealfactory.strike.input.InputFactory;
 import org.pealfactory.strike.input.StrikingDataInput;
 import org.pealfactory.strike.pipeline.Pipeline;
@@ -43,7 +45,7 @@ import java.text.NumberFormat;
  *
  * @author MBD
  */
-public class CASFrame extends JFrame implements CASContainer
+public class CASFrame extends JFrame implements CASContainer, FileInputSource
 {
 	private CASWindow fWindow;
 	private static File gExportDirectory = null;
@@ -166,6 +168,11 @@ public class CASFrame extends JFrame implements CASContainer
 		return new FileReader(name);
 	}
 
+	public File getFile(String name)
+	{
+		return new File(name);
+	}
+
 	public void export()
 	{
 		File homeDirectory = CAS.getHomeDirectory();
@@ -178,10 +185,25 @@ public class CASFrame extends JFrame implements CASContainer
 			gExportDirectory = f.getParentFile();
 			try
 			{
-				PrintWriter writer = new PrintWriter(new FileWriter(f));
-				fWindow.saveFile(writer);
-				//fWindow.exportStats(writer);
-				writer.close();
+				if (f.getName().toLowerCase().endsWith(CasBinaryBongInput.EXT_CAS_BINARY))
+				{
+					OutputStream out = new BufferedOutputStream(new FileOutputStream(f));
+					try
+					{
+						fWindow.saveFile(out);
+					}
+					finally
+					{
+						out.close();
+					}
+				}
+				else
+				{
+					PrintWriter writer = new PrintWriter(new FileWriter(f));
+					fWindow.saveFile(writer);
+					//fWindow.exportStats(writer);
+					writer.close();
+				}
 			}
 			catch (IOException ex)
 			{
@@ -7,6 +7,7 @@ import org.pealfactory.strike.data.TouchStats;
 import org.pealfactory.strike.audio.PlaybackController;
 import org.pealfactory.strike.audio.MidiBellSounds;
 import org.pealfactory.strike.pipeline.Pipeline;
+import org.pealfactory.strike.pipeline.TouchCache;
 
 import java.awt.print.*;
 import java.util.List;
@@ -55,12 +56,15 @@ public class CASWindow extends BaseUI implements ChangeListener
 	private static final String ACTION_PLAY = "PLAY";
 	private static final String ACTION_STOP = "STOP";
 	private static final String ACTION_SETVISUALISER = "VISUALISER";
+	private static final String ACTION_KEEPVISUALISER = "KEEPVISUALISER";
 	private static final String ACTION_TOGGLESCROLL = "TOGGLESCROLL";
 	private static final String ACTION_RESETSPEED = "RESETSPEED";
 	private static final String ACTION_CHANGEPITCH = "CHANGEPITCH";
 	private static final String ID_PLAYBACKSPEED = "PLAYBACKSPEED";
 
 	private static final String EXT_BAND_LIST = ".lst";
+	/** Prefix for rolling stats over the last few rows */
+	private static final String TEXT_RECENT = "Recent ";
 
 	private CASContainer fParent;
 
@@ -72,6 +76,9 @@ public class CASWindow extends BaseUI implements ChangeListener
 	private MutableComboBoxModel fVisualiserNames;
 	private Map<String, Visualiser> fVisualisers = new HashMap<String, Visualiser>();
 	private Visualiser fCurrentVisualiser;
+	/** Visualisers the user wants kept up to date alongside the current one, for instant switching */
+	private Set<Visualiser> fActiveVisualisers = new HashSet<Visualiser>();
+	private JCheckBox fKeepVisualiserButton;
 
 	private JLabel fLoadingIndicator;
 	private JLabel fFileInfo;
@@ -153,6 +160,8 @@ public class CASWindow extends BaseUI implements ChangeListener
 		// Need to stop old pipeline!!!!
 		fPipeline = pipeline;
 		fPipeline.setUI(this);
+		for (Visualiser visualiser: fActiveVisualisers)
+			fPipeline.addActiveVisualiser(visualiser);
 		if (fCurrentVisualiser!=null)
 			setVisualiser(fCurrentVisualiser);
 	}
@@ -172,14 +181,39 @@ public class CASWindow extends BaseUI implements ChangeListener
 	{
 		fVisualisers.put(visualiser.getName(), visualiser);
 		fVisualiserNames.addElement(visualiser.getName());
+		// Only the visualiser being shown analyses rows, unless "Keep running" is ticked for another.
 		if (fCurrentVisualiser==null)
 			fCurrentVisualiser = visualiser;
 	}
 
+	/**
+	 * Sets whether a visualiser is kept analysing rows while another is shown. Keeping all of them
+	 * makes switching instant, at the cost of memory and CPU for each.
+	 *
+	 * @param visualiser
+	 * @param active
+	 */
+	public void setVisualiserActive(Visualiser visualiser, boolean active)
+	{
+		if (active)
+			fActiveVisualisers.add(visualiser);
+		else
+			fActiveVisualisers.remove(visualiser);
+		if (fPipeline!=null)
+		{
+			if (active)
+				fPipeline.addActiveVisualiser(visualiser);
+			else
+				fPipeline.removeActiveVisualiser(visualiser);
+		}
+	}
+
 	public void setVisualiser(Visualiser visualiser)
 	{
 		fCurrentVisualiser = visualiser;
 		fVisualiserInfo.setText(fCurrentVisualiser.getInfo());
+		if (fKeepVisualiserButton!=null)
+			fKeepVisualiserButton.setSelected(fActiveVisualisers.contains(visualiser));
 		// Pipeline marshals work off onto a separate thread, also handles queued visualiser changes.
 		if (fPipeline!=null)
 			fPipeline.setVisualiser(fCurrentVisualiser);
@@ -225,6 +259,8 @@ public class CASWindow extends BaseUI implements ChangeListener
 		visualiserCombo.addActionListener(this);
 		visualiserCombo.setActionCommand(ACTION_SETVISUALISER);
 		toolbar.add(visualiserCombo);
+		fKeepVisualiserButton = createCheckBox("Keep running", ACTION_KEEPVISUALISER, false, "Enable this checkbox to keep this visualiser analysing in the background, so switching back to it is instant");
+		toolbar.add(fKeepVisualiserButton);
 		toolbar.addSeparator();
 
 		toolbar.add(new JLabel(createIcon("general/Zoom", "Zoom")));
@@ -399,8 +435,10 @@ public class CASWindow extends BaseUI implements ChangeListener
 		TouchStats.HandBackWhole avGap = new TouchStats.HandBackWhole();
 		int nfaults = 0;
 		double faultPercentage = 0;
+		TouchStats window = null;
 		if (fData!=null)
 		{
+			window = fData.getWindowStats();
 			strikingRMSE = fData.getStrikingRMSE(fInChangesOnly);
 			discreteRMSE = fData.getDiscreteStrikingRMSE(fInChangesOnly);
 			rowLengthSD = fData.getRowLengthSD(fInChangesOnly);
@@ -414,6 +452,8 @@ public class CASWindow extends BaseUI implements ChangeListener
 		s.append("<html><table>");
 		s.append("<tr><td><b></b></td><td>Whole</td><td>Hand</td><td>Back</td></tr>");
 		rowHtml(s, TouchStats.TEXT_STRIKING_RMSE, strikingRMSE);
+		if (window!=null)
+			rowHtml(s, TEXT_RECENT+TouchStats.TEXT_STRIKING_RMSE, window.getStrikingRMSE(fInChangesOnly));
 		rowHtml(s, TouchStats.TEXT_DISCRETE_RMSE, discreteRMSE);
 		rowHtml(s, TouchStats.TEXT_INTERVAL_MEAN, avGap);
 		rowHtml(s, TouchStats.TEXT_QUICKEST_ROW, minDuration);
@@ -426,6 +466,22 @@ public class CASWindow extends BaseUI implements ChangeListener
 		s.append("</td><td>");
 		s.append(toPercentage(faultPercentage));
 		s.append("</td><td></td></tr>");
+		if (fPipeline!=null)
+		{
+			s.append("<tr><td>Truth</td><td colspan=3>");
+			s.append(fPipeline.getTruthChecker().getSummary());
+			s.append("</td></tr>");
+			String method = fPipeline.getMethodIdentifier().getMethodName();
+			if (method!=null)
+			{
+				s.append("<tr><td>Method</td><td colspan=3>");
+				s.append(method);
+				s.append(", ");
+				s.append(fPipeline.getMethodIdentifier().getLeadHeads().length);
+				s.append(" leads");
+				s.append("</td></tr>");
+			}
+		}
 		s.append("</table></html>");
 		return s.toString();
 	}
@@ -435,11 +491,25 @@ public class CASWindow extends BaseUI implements ChangeListener
 		TouchStats.HandBackWhole bellSD = new TouchStats.HandBackWhole();
 		TouchStats.HandBackWhole bellRMSE = new TouchStats.HandBackWhole();
 		TouchStats.HandBackWhole bellLate = new TouchStats.HandBackWhole();
+		TouchStats.HandBackWhole recentSD = new TouchStats.HandBackWhole();
+		TouchStats.HandBackWhole recentLate = new TouchStats.HandBackWhole();
+		TouchStats.HandBackWhole medianLate = new TouchStats.HandBackWhole();
+		TouchStats.HandBackWhole p90Late = new TouchStats.HandBackWhole();
+		TouchStats.HandBackWhole p99Late = new TouchStats.HandBackWhole();
 		if (fData!=null && fSelectedBell>0)
 		{
 			bellSD = fData.getBellSD(fSelectedBell, fInChangesOnly);
 			bellRMSE = fData.getBellRMSE(fSelectedBell, fInChangesOnly);
 			bellLate = fData.getLateness(fSelectedBell, fInChangesOnly);
+			medianLate = fData.getLatenessPercentile(fSelectedBell, 50, fInChangesOnly);
+			p90Late = fData.getLatenessPercentile(fSelectedBell, 90, fInChangesOnly);
+			p99Late = fData.getLatenessPercentile(fSelectedBell, 99, fInChangesOnly);
+			TouchStats window = fData.getWindowStats();
+			if (window!=null)
+			{
+				recentSD = window.getBellSD(fSelectedBell, fInChangesOnly);
+				recentLate = window.getLateness(fSelectedBell, fInChangesOnly);
+			}
 		}
 		final StringBuffer s = new StringBuffer();
 		s.append("<html><table>");
@@ -453,6 +523,11 @@ public class CASWindow extends BaseUI implements ChangeListener
 		rowHtml(s, TouchStats.TEXT_RMSE, bellRMSE);
 		rowHtml(s, TouchStats.TEXT_SD, bellSD);
 		rowHtml(s, TouchStats.TEXT_AV_MS_LATE, bellLate);
+		rowHtml(s, TouchStats.TEXT_MEDIAN_MS_LATE, medianLate);
+		rowHtml(s, TouchStats.TEXT_P90_MS_LATE, p90Late);
+		rowHtml(s, TouchStats.TEXT_P99_MS_LATE, p99Late);
+		rowHtml(s, TEXT_RECENT+TouchStats.TEXT_SD, recentSD);
+		rowHtml(s, TEXT_RECENT+TouchStats.TEXT_AV_MS_LATE, recentLate);
 		s.append("</table></html>");
 		return s.toString();
 	}
@@ -500,6 +575,7 @@ public class CASWindow extends BaseUI implements ChangeListener
 		fActionMap.put(ACTION_PLAY, new ActionStartPlayback());
 		fActionMap.put(ACTION_STOP, new ActionStopPlayback());
 		fActionMap.put(ACTION_SETVISUALISER, new ActionSetVisualiser());
+		fActionMap.put(ACTION_KEEPVISUALISER, new ActionKeepVisualiser());
 		fActionMap.put(ACTION_TOGGLESCROLL, new ActionToggleScroll());
 		fActionMap.put(ACTION_RESETSPEED, new ActionResetSpeed());
 		fActionMap.put(ACTION_CHANGEPITCH, new ActionChangePitch());
@@ -524,6 +600,17 @@ public class CASWindow extends BaseUI implements ChangeListener
 		}
 	}
 
+	class ActionKeepVisualiser implements ActionListener
+	{
+		@Override
+		public void actionPerformed(ActionEvent e)
+		{
+			JCheckBox checkBox = (JCheckBox)e.getSource();
+			if (fCurrentVisualiser!=null)
+				setVisualiserActive(fCurrentVisualiser, checkBox.isSelected());
+		}
+	}
+
 	class ActionSummarise implements ActionListener
 	{
 		@Override
@@ -716,6 +803,12 @@ public class CASWindow extends BaseUI implements ChangeListener
 			InputFactory factory = new InputFactory();
 			StrikingDataInput inputter = factory.createInputter(filename, fParent);
 			Pipeline newPipeline = new Pipeline(inputter);
+			TouchCache cache = CAS.getTouchCache();
+			if (cache!=null)
+				newPipeline.setTouchCache(cache, TouchCache.makeTouchKey(filename, fParent, inputter));
+			// Detach the visualisers from the old pipeline before their data is cleared.
+			if (fPipeline!=null)
+				fPipeline.stop();
 			updateFileInfo(newPipeline.getName(), newPipeline.getInputSource(), newPipeline.getInputFormat());
 			fParent.setTitle("CAS ("+newPipeline.getName()+")");
 			clearVisualiserData();
@@ -744,13 +837,34 @@ public class CASWindow extends BaseUI implements ChangeListener
 		CasBongInput.outputRowData(fData, out);
 	}
 
+	/**
+	 * Saves the touch in the compact CAS binary format.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void saveFile(OutputStream out) throws IOException
+	{
+		if (fData==null)
+			throw new IOException("No data to save");
+		CasBinaryBongInput.outputRowData(fData, getPipeline().getInputFormat(), out);
+	}
+
 	public void exportStats(PrintWriter out)
 	{
 		out.println("Analysing: "+fCurrentFile+" with "+fCurrentVisualiser.getName());
 		if (fData==null)
 			out.println("No data");
 		else
+		{
 			fData.outputStats(out, fInChangesOnly);
+			TouchStats window = fData.getWindowStats();
+			if (window!=null)
+			{
+				out.println("Last "+window.getNRows()+" rows:");
+				window.outputStats(out, fInChangesOnly);
+			}
+		}
 	}
 
 	private void updateFileInfo(String filename, String source, String format)